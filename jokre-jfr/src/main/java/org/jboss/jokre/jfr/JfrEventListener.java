@@ -0,0 +1,101 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.jfr;
+
+import org.jboss.jokre.agent.JokreEventListener;
+
+/**
+ * Event listener which records Jokre agent activity as JDK Flight Recorder events. it is registered as a
+ * service so the agent picks it up whenever this jar is on the system classpath. events which are not
+ * enabled in the current recording cost no more than an allocation and a check.
+ */
+public class JfrEventListener implements JokreEventListener
+{
+    public Object notifyBegin()
+    {
+        NotifyEvent event = new NotifyEvent();
+        event.begin();
+        return event;
+    }
+
+    public void notifyEnd(Object token, String className, String methodName, boolean added)
+    {
+        NotifyEvent event = (NotifyEvent)token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.callerClass = className;
+            event.callerMethod = methodName;
+            event.added = added;
+            event.commit();
+        }
+    }
+
+    public Object transferBegin()
+    {
+        TransferEvent event = new TransferEvent();
+        event.begin();
+        return event;
+    }
+
+    public void transferEnd(Object token, int classCount, int entryCount)
+    {
+        TransferEvent event = (TransferEvent)token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.classCount = classCount;
+            event.entryCount = entryCount;
+            event.commit();
+        }
+    }
+
+    public Object transformBegin()
+    {
+        TransformEvent event = new TransformEvent();
+        event.begin();
+        return event;
+    }
+
+    public void transformEnd(Object token, String className, boolean redefined, int originalSize, int transformedSize)
+    {
+        TransformEvent event = (TransformEvent)token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.className = className.replace('/', '.');
+            event.redefined = redefined;
+            event.originalSize = originalSize;
+            event.transformedSize = transformedSize;
+            event.sizeDelta = transformedSize - originalSize;
+            event.commit();
+        }
+    }
+
+    public void retransformFailed(String className, Throwable cause)
+    {
+        RetransformFailureEvent event = new RetransformFailureEvent();
+        if (event.shouldCommit()) {
+            event.className = className;
+            event.exception = cause.toString();
+            event.commit();
+        }
+    }
+}
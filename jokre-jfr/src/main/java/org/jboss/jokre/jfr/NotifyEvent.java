@@ -0,0 +1,49 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A sampled Map.put notification including the stack walk used to identify the caller
+ */
+@Name("org.jboss.jokre.Notify")
+@Label("Jokre Notification")
+@Category("Jokre")
+@Description("Sampled notification of a Map.put caller to the Jokre agent")
+public class NotifyEvent extends Event
+{
+    @Label("Caller Class")
+    public String callerClass;
+
+    @Label("Caller Method")
+    public String callerMethod;
+
+    @Label("Added")
+    @Description("True if the caller was newly added to the staging set")
+    public boolean added;
+}
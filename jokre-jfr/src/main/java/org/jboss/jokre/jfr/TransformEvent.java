@@ -0,0 +1,59 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Transformation of a single class by the Jokre agent transformer
+ */
+@Name("org.jboss.jokre.Transform")
+@Label("Jokre Class Transform")
+@Category("Jokre")
+@Description("Bytecode transformation of a class by the Jokre agent")
+public class TransformEvent extends Event
+{
+    @Label("Class Name")
+    public String className;
+
+    @Label("Redefined")
+    @Description("True for a retransform, false for an initial class load")
+    public boolean redefined;
+
+    @Label("Original Size")
+    @DataAmount
+    public int originalSize;
+
+    @Label("Transformed Size")
+    @DataAmount
+    public int transformedSize;
+
+    @Label("Size Delta")
+    @DataAmount
+    public int sizeDelta;
+}
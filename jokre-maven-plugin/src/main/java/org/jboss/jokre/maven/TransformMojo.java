@@ -0,0 +1,97 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.maven;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.jboss.jokre.offline.JarTransformer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies the Jokre call site transformation to the project jar so that Map.put calls whose result is
+ * not used go straight to the NonReturnMap fast path without waiting for the agent to retransform them.
+ *
+ * @goal transform
+ * @phase package
+ * @requiresDependencyResolution compile
+ */
+public class TransformMojo extends AbstractMojo
+{
+    /**
+     * the jar to transform
+     *
+     * @parameter default-value="${project.build.directory}/${project.build.finalName}.jar"
+     * @required
+     */
+    private File inputJar;
+
+    /**
+     * the jar to write. defaults to replacing the input jar
+     *
+     * @parameter
+     */
+    private File outputJar;
+
+    /**
+     * also weave the Infinispan Map implementor classes if they are present in the jar
+     *
+     * @parameter default-value="false"
+     */
+    private boolean implementors;
+
+    /**
+     * classpath used to resolve the class hierarchy of call targets
+     *
+     * @parameter default-value="${project.compileClasspathElements}"
+     * @required
+     * @readonly
+     */
+    private List<String> classpathElements;
+
+    public void execute() throws MojoExecutionException
+    {
+        if (!inputJar.isFile()) {
+            throw new MojoExecutionException("jar " + inputJar + " does not exist");
+        }
+
+        File target = (outputJar != null ? outputJar : inputJar);
+        List<File> classpath = new ArrayList<File>();
+        for (String element : classpathElements) {
+            classpath.add(new File(element));
+        }
+
+        JarTransformer transformer = new JarTransformer(inputJar, target, classpath, implementors);
+        try {
+            transformer.transform();
+        } catch (IOException ioe) {
+            throw new MojoExecutionException("unable to transform jar " + inputJar, ioe);
+        }
+
+        getLog().info("Jokre transformed " + transformer.getTransformedCount() + " of " +
+                transformer.getClassCount() + " classes in " + target);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre;
+
+import org.jboss.jokre.agent.ClassLoaderRegistry;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hit counters for transformed Map.put call sites. when site counting is enabled the transformer registers
+ * each call site it rewrites and the generated code increments one of three counters every time the site
+ * is executed: fast when the target is a NonReturnMap and the result is thrown away, slow when the target
+ * is a NonReturnMap but the result is used and fallback when the target is not a NonReturnMap. counters
+ * are striped by thread so that hot sites shared across threads do not all hit the same cache line.
+ */
+public class CallSiteCounters
+{
+    public static final int FAST = 0;
+    public static final int SLOW = 1;
+    public static final int FALLBACK = 2;
+
+    /**
+     * number of stripes per counter. must be a power of 2
+     */
+    private static final int STRIPES = 8;
+
+    /**
+     * spacing between stripes in longs so that each stripe occupies its own cache line
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * sites indexed by id. the array is replaced when it needs to grow so readers never need a lock
+     */
+    private static volatile Site[] sites = new Site[64];
+
+    /**
+     * number of registered sites. guarded by the index lock
+     */
+    private static int siteCount = 0;
+
+    /**
+     * map from site key to id used to ensure a site retransformed more than once keeps the same counters.
+     * the key includes the loader id so copies of a class defined by different loaders count separately
+     */
+    private static final HashMap<String, Integer> siteIndex = new HashMap<String, Integer>();
+
+    /**
+     * register a call site and allocate its counters
+     * @param className the internal format name of the class containing the call site
+     * @param loaderId the ClassLoaderRegistry id of the class's defining loader or ANY_LOADER if unknown
+     * @param methodName the name of the method containing the call site
+     * @param methodDesc the descriptor of the method containing the call site
+     * @param sourceFile the source file recorded in the class or null if unknown
+     * @param line the source line of the call site or -1 if unknown
+     * @param ordinal the index of this call site among the Map.put sites in its method
+     * @return the id to pass to the counting methods
+     */
+    public static int register(String className, int loaderId, String methodName, String methodDesc, String sourceFile, int line, int ordinal)
+    {
+        String key = siteKey(className, loaderId, methodName, methodDesc, ordinal);
+
+        synchronized (siteIndex) {
+            Integer existing = siteIndex.get(key);
+            if (existing != null) {
+                return existing.intValue();
+            }
+            int id = siteCount++;
+            Site[] current = sites;
+            if (id >= current.length) {
+                Site[] grown = new Site[current.length * 2];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                current = grown;
+            }
+            current[id] = new Site(key, className.replace('/', '.'), loaderId, methodName, sourceFile, line);
+            sites = current;
+            siteIndex.put(key, Integer.valueOf(id));
+            return id;
+        }
+    }
+
+    /**
+     * compute the key which identifies a call site across retransforms. the key starts with the class key,
+     * i.e. the class name in external format qualified by the loader id, so a key for ANY_LOADER, which
+     * has a bare class name, identifies the site in every loader's copy of the class and is the only form
+     * which is meaningful in a later run
+     * @param className the internal format name of the class containing the call site
+     * @param loaderId the ClassLoaderRegistry id of the class's defining loader or ANY_LOADER
+     * @param methodName the name of the method containing the call site
+     * @param methodDesc the descriptor of the method containing the call site
+     * @param ordinal the index of this call site among the Map.put sites in its method
+     * @return the key
+     */
+    public static String siteKey(String className, int loaderId, String methodName, String methodDesc, int ordinal)
+    {
+        return ClassLoaderRegistry.classKey(className.replace('/', '.'), loaderId) + "#" + methodName + methodDesc + "#" + ordinal;
+    }
+
+    public static void fast(int id)
+    {
+        increment(id, FAST);
+    }
+
+    public static void slow(int id)
+    {
+        increment(id, SLOW);
+    }
+
+    public static void fallback(int id)
+    {
+        increment(id, FALLBACK);
+    }
+
+    /**
+     * @return the number of registered call sites
+     */
+    public static int getSiteCount()
+    {
+        synchronized (siteIndex) {
+            return siteCount;
+        }
+    }
+
+    /**
+     * retrieve the site with a given id
+     * @param id a value returned by register
+     * @return the site or null if no site has been registered with that id
+     */
+    public static Site getSite(int id)
+    {
+        Site[] current = sites;
+        return (id >= 0 && id < current.length ? current[id] : null);
+    }
+
+    /**
+     * print the registered sites ordered by total traffic, busiest first
+     * @param out the stream to print to
+     */
+    public static void report(PrintStream out)
+    {
+        List<Site> ranked = new ArrayList<Site>();
+        int count = getSiteCount();
+        for (int i = 0; i < count; i++) {
+            Site site = getSite(i);
+            if (site != null) {
+                ranked.add(site);
+            }
+        }
+        Collections.sort(ranked, new Comparator<Site>()
+        {
+            public int compare(Site s1, Site s2)
+            {
+                long t1 = s1.getTotal();
+                long t2 = s2.getTotal();
+                return (t1 < t2 ? 1 : (t1 > t2 ? -1 : 0));
+            }
+        });
+
+        out.println("site count:      " + ranked.size());
+        for (Site site : ranked) {
+            long fast = site.getCount(FAST);
+            long slow = site.getCount(SLOW);
+            long fallback = site.getCount(FALLBACK);
+            long total = fast + slow + fallback;
+            long benefit = (total == 0 ? 0 : ((fast + slow) * 100) / total);
+            out.println("  " + site + " total " + total + " fast " + fast + " slow " + slow +
+                    " fallback " + fallback + " benefit " + benefit + "%");
+        }
+    }
+
+    private static void increment(int id, int kind)
+    {
+        Site[] current = sites;
+        if (id < current.length) {
+            Site site = current[id];
+            // n.b. a site registered by an offline transform in some other JVM will not be found
+            if (site != null) {
+                site.increment(kind);
+            }
+        }
+    }
+
+    /**
+     * details and counters for a single call site
+     */
+    public static class Site
+    {
+        private String key;
+        private String className;
+        private int loaderId;
+        private String methodName;
+        private String sourceFile;
+        private int line;
+        private AtomicLongArray counts;
+
+        Site(String key, String className, int loaderId, String methodName, String sourceFile, int line)
+        {
+            this.key = key;
+            this.className = className;
+            this.loaderId = loaderId;
+            this.methodName = methodName;
+            this.sourceFile = sourceFile;
+            this.line = line;
+            this.counts = new AtomicLongArray(3 * STRIPES * PADDING);
+        }
+
+        /**
+         * @return the key computed by siteKey for this site
+         */
+        public String getKey()
+        {
+            return key;
+        }
+
+        /**
+         * @return the name of the class containing the site in external format
+         */
+        public String getClassName()
+        {
+            return className;
+        }
+
+        /**
+         * @return the ClassLoaderRegistry id of the loader which defined the class containing the site or
+         * ANY_LOADER if it was not known when the site was registered
+         */
+        public int getLoaderId()
+        {
+            return loaderId;
+        }
+
+        /**
+         * @return the class key of the class containing the site, i.e. its name qualified by loader id
+         */
+        public String getClassKey()
+        {
+            return ClassLoaderRegistry.classKey(className, loaderId);
+        }
+
+        public String getMethodName()
+        {
+            return methodName;
+        }
+
+        public String getSourceFile()
+        {
+            return sourceFile;
+        }
+
+        public int getLine()
+        {
+            return line;
+        }
+
+        /**
+         * @param kind one of FAST, SLOW or FALLBACK
+         * @return the number of times the site has taken the given path
+         */
+        public long getCount(int kind)
+        {
+            long total = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                total += counts.get((kind * STRIPES + i) * PADDING);
+            }
+            return total;
+        }
+
+        public long getTotal()
+        {
+            return getCount(FAST) + getCount(SLOW) + getCount(FALLBACK);
+        }
+
+        void increment(int kind)
+        {
+            int stripe = (int)Thread.currentThread().getId() & (STRIPES - 1);
+            counts.incrementAndGet((kind * STRIPES + stripe) * PADDING);
+        }
+
+        public String toString()
+        {
+            return className + "." + methodName + "(" + (sourceFile != null ? sourceFile : "Unknown Source") +
+                    (line >= 0 ? ":" + line : "") + ")";
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Per thread hint passed from a call site which discards the result of a call to a wrapper method, such
+ * as a DAO save method which simply returns the result of Map.put, down to the wrapper itself. a
+ * transformed wrapper takes the hint on entry and, when it is present, returns null from a put call
+ * whose result it would otherwise have returned, so the put can use the fast path.
+ *
+ * a hint names the receiver of the call, or the class for a static call, and the name and descriptor of
+ * the method called. a wrapper only accepts a hint which matches its own receiver and method and it
+ * always clears the hint on entry, so a hint cannot leak into a nested call. a hint is only set for a
+ * receiver whose exact class has a transformed wrapper for the method. otherwise the hint could be
+ * left behind and picked up later by a call which needs the result. classes are identified by name and
+ * defining loader so a class with the same name in another loader does not count as transformed.
+ */
+public class DiscardHint
+{
+    private static final ThreadLocal<DiscardHint> hints = new ThreadLocal<DiscardHint>()
+    {
+        protected DiscardHint initialValue()
+        {
+            return new DiscardHint();
+        }
+    };
+
+    /**
+     * the defining loaders of the classes which have a transformed wrapper, indexed by the wrapper key and
+     * then by class name
+     */
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, DefiningLoaders>> wrappers =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, DefiningLoaders>>();
+
+    /**
+     * record that a class has a transformed wrapper method
+     * @param loader the loader which defines the class or null for the bootstrap loader
+     * @param className the class name in external format
+     * @param key the key employed by the wrapper
+     */
+    public static void register(ClassLoader loader, String className, String key)
+    {
+        ConcurrentHashMap<String, DefiningLoaders> classNames = wrappers.get(key);
+        if (classNames == null) {
+            ConcurrentHashMap<String, DefiningLoaders> newClassNames = new ConcurrentHashMap<String, DefiningLoaders>();
+            classNames = wrappers.putIfAbsent(key, newClassNames);
+            if (classNames == null) {
+                classNames = newClassNames;
+            }
+        }
+        DefiningLoaders loaders = classNames.get(className);
+        if (loaders == null) {
+            DefiningLoaders newLoaders = new DefiningLoaders();
+            loaders = classNames.putIfAbsent(className, newLoaders);
+            if (loaders == null) {
+                loaders = newLoaders;
+            }
+        }
+        loaders.add(loader);
+    }
+
+    /**
+     * called from a transformed call site immediately before it calls a wrapper whose result it discards
+     * @param target the receiver of the call or the owner class for a static call
+     * @param key the wrapper key, a method name and descriptor, qualified with the internal owner class name
+     * for a static method. this must be an interned string
+     */
+    public static void set(Object target, String key)
+    {
+        if (target == null) {
+            // the call will throw a NullPointerException before it reaches any wrapper
+            return;
+        }
+        ConcurrentHashMap<String, DefiningLoaders> classNames = wrappers.get(key);
+        if (classNames == null) {
+            return;
+        }
+        Class<?> targetClass = (target instanceof Class ? (Class<?>)target : target.getClass());
+        DefiningLoaders loaders = classNames.get(targetClass.getName());
+        if (loaders == null || !loaders.contains(targetClass.getClassLoader())) {
+            return;
+        }
+        DiscardHint hint = hints.get();
+        hint.target = target;
+        hint.key = key;
+    }
+
+    /**
+     * called from a transformed wrapper immediately before it makes a tail call to another wrapper
+     * @param target the receiver of the call or the owner class for a static call
+     * @param discard true if the wrapper's own caller discards the result
+     * @param key the key of the called wrapper
+     */
+    public static void setIf(Object target, boolean discard, String key)
+    {
+        if (discard) {
+            set(target, key);
+        }
+    }
+
+    /**
+     * called on entry to a transformed wrapper to retrieve and clear the current thread's hint
+     * @param target the wrapper's receiver or its class if it is static
+     * @param key the wrapper's key. this must be an interned string
+     * @return true if the caller discards the wrapper's result
+     */
+    public static boolean take(Object target, String key)
+    {
+        DiscardHint hint = hints.get();
+        boolean matched = (hint.target == target && hint.key == key);
+        hint.target = null;
+        hint.key = null;
+        return matched;
+    }
+
+    /**
+     * called from a put call site in a wrapper whose result is returned by the wrapper
+     * @param discard true if the wrapper's caller discards the result
+     * @return the previous value or null if the result is discarded
+     */
+    public static Object put(NonReturnMap<Object, Object> map, Object key, Object value, boolean discard)
+    {
+        if (discard) {
+            map.put$fastPath(key, value);
+            return null;
+        }
+        return map.put$alternativeSlowPath(key, value);
+    }
+
+    private Object target;
+    private String key;
+
+    /**
+     * the loaders which define a class with a given name whose wrapper has been transformed. loaders are
+     * only weakly referenced so that registering a wrapper does not stop its deployment being unloaded.
+     * lookups take no lock
+     */
+    private static class DefiningLoaders
+    {
+        private volatile boolean bootstrap = false;
+        private final CopyOnWriteArrayList<WeakReference<ClassLoader>> loaders = new CopyOnWriteArrayList<WeakReference<ClassLoader>>();
+
+        boolean contains(ClassLoader loader)
+        {
+            if (loader == null) {
+                return bootstrap;
+            }
+            for (WeakReference<ClassLoader> ref : loaders) {
+                if (ref.get() == loader) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void add(ClassLoader loader)
+        {
+            if (loader == null) {
+                bootstrap = true;
+                return;
+            }
+            // drop the entries for collected loaders while we are here
+            Iterator<WeakReference<ClassLoader>> iterator = loaders.iterator();
+            while (iterator.hasNext()) {
+                WeakReference<ClassLoader> ref = iterator.next();
+                ClassLoader existing = ref.get();
+                if (existing == loader) {
+                    return;
+                }
+                if (existing == null) {
+                    loaders.remove(ref);
+                }
+            }
+            loaders.add(new WeakReference<ClassLoader>(loader));
+        }
+    }
+}
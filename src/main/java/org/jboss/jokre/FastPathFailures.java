@@ -0,0 +1,68 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre;
+
+/**
+ * Hook for fast path writes which fail after the caller has moved on, i.e. async puts whose future
+ * completes exceptionally and write behind flushes which fail. the failures are always counted. when a
+ * handler is installed it is also told the cache, key and value of each failed write, for example so
+ * that it can reissue the write with a synchronous put.
+ */
+public class FastPathFailures
+{
+    /**
+     * callback told about each failed fast path write. it is called from whichever thread notices the
+     * failure, which may be an application thread performing a later write, so it should return promptly
+     */
+    public interface Handler
+    {
+        public void failed(String cacheName, Object key, Object value, Throwable cause);
+    }
+
+    private static volatile Handler handler = null;
+
+    /**
+     * install a handler, replacing any previous handler
+     * @param newHandler the handler or null to remove the current handler
+     */
+    public static void setHandler(Handler newHandler)
+    {
+        handler = newHandler;
+    }
+
+    /**
+     * pass a failed write to the installed handler, if any
+     */
+    public static void report(String cacheName, Object key, Object value, Throwable cause)
+    {
+        Handler current = handler;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.failed(cacheName, key, value, cause);
+        } catch (Throwable t) {
+            System.err.println("Jokre : fast path failure handler threw " + t);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre;
+
+/**
+ * interface added to Map implementors alongside NonReturnMap so that the choice of how a fast path put is
+ * performed can be made at runtime by a FastPathPolicy rather than fixed in the generated code. it also
+ * holds the instance's NearCache and gives the near cache a get which does not notify Jokre
+ */
+public interface FastPathMap<K, V>
+{
+    // methods generated by the Jokre transformer
+    public FastPathPolicy jokre$getPolicy();
+    public void jokre$setPolicy(FastPathPolicy policy);
+    public String jokre$cacheName();
+    public void put$syncNoReturn(K key, V value);
+    public Object put$async(K key, V value);
+    public void put$original(K key, V value);
+    public NearCache jokre$getNearCache();
+    public void jokre$setNearCache(NearCache nearCache);
+    public Object get$original(Object key);
+}
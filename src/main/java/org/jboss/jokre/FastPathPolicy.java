@@ -0,0 +1,488 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Policy deciding how put$fastPath performs a put for a given cache. the generated put$fastPath only
+ * consults a policy once policies have been activated, otherwise it calls set directly.
+ *
+ * when adaptive mode is enabled each cache measures the caller visible latency of the synchronous no
+ * return put (set) and of an asynchronous put (putAsync) and dispatches to whichever is currently faster.
+ * an asynchronous put is cheap when the owner of a key is remote but may cost more than a local put
+ * because of the executor handoff. note that an asynchronous put completes after put$fastPath returns
+ * and any failure it meets is not reported to the caller.
+ *
+ * a cache may also be pinned to a mode at runtime using setMode, for example to force a cache back to the
+ * original put while investigating a problem. a pinned cache does no sampling. the check made by the
+ * generated code costs a static volatile load and an instance field load plus two predictable branches
+ * and dispatch then makes one more volatile load to read the mode and pinned flag together. volatile
+ * loads are plain loads on x86 but they stop the JIT hoisting the check out of a caller's loop.
+ *
+ * finally a cache may be put in write behind mode, either at runtime or by listing it in system property
+ * WriteBehindBuffer.WRITE_BEHIND, so that its fast path writes are coalesced in a WriteBehindBuffer
+ * and flushed as bulk writes.
+ *
+ * the number of outstanding async writes may be capped, either for every cache using system property
+ * InFlightWrites.ASYNC_MAX_IN_FLIGHT or at runtime using setMaxInFlight. a write which would exceed the
+ * cap is performed synchronously. failures of async writes are then counted and passed to FastPathFailures.
+ *
+ * if a WriteJournal is configured then async and write behind writes are journaled before they are
+ * started and a cache's unacknowledged writes from a previous run are replayed when it first takes the fast path.
+ */
+public class FastPathPolicy
+{
+    public static final int SYNC_NO_RETURN = 0;
+    public static final int ASYNC = 1;
+    public static final int ORIGINAL = 2;
+    public static final int WRITE_BEHIND = 3;
+
+    /**
+     * returned by journal when a write must be performed synchronously
+     */
+    private static final long NOT_JOURNALED = -2;
+
+    private static final String[] MODE_NAMES = { "sync-no-return", "async", "original", "write-behind" };
+
+    /**
+     * system property set (to any value) in order to enable adaptive choice of the fast path put
+     */
+    public static final String ADAPTIVE_FAST_PATH = "org.jboss.jokre.adaptive.fast.path";
+
+    /**
+     * the other variant is tried for EXPLORE_CALLS calls out of every EXPLORE_PERIOD. must be a power of 2
+     */
+    private static final int EXPLORE_PERIOD = 1024;
+    private static final int EXPLORE_CALLS = 8;
+
+    /**
+     * one in every SAMPLE_PERIOD calls to the current variant is timed. must be a power of 2
+     */
+    private static final int SAMPLE_PERIOD = 64;
+
+    /**
+     * weight given to a new sample in the moving average latencies
+     */
+    private static final double ALPHA = 0.1;
+
+    /**
+     * number of samples each variant needs before we will switch between them
+     */
+    private static final int MIN_SAMPLES = 16;
+
+    /**
+     * the other variant must be this much faster before we switch to it
+     */
+    private static final double HYSTERESIS = 0.1;
+
+    /**
+     * number of samples which must be recorded after a switch before we will switch again
+     */
+    private static final int SWITCH_INTERVAL = 256;
+
+    private static final boolean adaptive = (System.getProperty(ADAPTIVE_FAST_PATH) != null);
+
+    /**
+     * true once any cache needs its policy consulting
+     */
+    private static volatile boolean active = adaptive || WriteBehindBuffer.isConfigured() || WriteJournal.getJournal() != null;
+
+    /**
+     * bit set in a policy's state when its mode is pinned
+     */
+    private static final int PINNED = 0x100;
+
+    private static final int MODE_MASK = PINNED - 1;
+
+    private static final ConcurrentHashMap<String, FastPathPolicy> policies = new ConcurrentHashMap<String, FastPathPolicy>();
+
+    /**
+     * called from generated put$fastPath methods to decide whether to consult the policy
+     * @return true if put$fastPath should call put otherwise false
+     */
+    public static boolean isActive()
+    {
+        return active;
+    }
+
+    /**
+     * perform a fast path put for a map according to its policy. called from generated put$fastPath methods
+     */
+    public static void put(FastPathMap<Object, Object> map, Object key, Object value)
+    {
+        FastPathPolicy policy = map.jokre$getPolicy();
+        if (policy == null) {
+            // racing threads will look up the same shared policy so there is no need to lock
+            policy = forCache(map.jokre$cacheName());
+            map.jokre$setPolicy(policy);
+            WriteJournal journal = WriteJournal.getJournal();
+            if (journal != null) {
+                journal.replay(policy.cacheName, map);
+            }
+        }
+        policy.dispatch(map, key, value);
+    }
+
+    /**
+     * pin every instance of a named cache to a given fast path mode until clearMode is called. this
+     * applies to instances which already exist as well as ones created later. policies are shared by
+     * cache name so there is no way to pin a single instance
+     * @param cacheName the cache name
+     * @param mode one of SYNC_NO_RETURN, ASYNC, ORIGINAL or WRITE_BEHIND
+     */
+    public static void setMode(String cacheName, int mode)
+    {
+        if (mode < SYNC_NO_RETURN || mode > WRITE_BEHIND) {
+            throw new IllegalArgumentException("invalid fast path mode " + mode);
+        }
+        FastPathPolicy policy = forCache(cacheName);
+        synchronized (policy) {
+            policy.state = mode | PINNED;
+        }
+        active = true;
+        if (mode != WRITE_BEHIND) {
+            policy.flushWriteBehind();
+        }
+    }
+
+    /**
+     * unpin a named cache so that it reverts to SYNC_NO_RETURN. if adaptive mode is enabled the mode
+     * will then be chosen adaptively once again
+     * @param cacheName the cache name
+     */
+    public static void clearMode(String cacheName)
+    {
+        FastPathPolicy policy = forCache(cacheName);
+        synchronized (policy) {
+            policy.state = SYNC_NO_RETURN;
+        }
+        policy.flushWriteBehind();
+    }
+
+    /**
+     * cap the number of outstanding async fast path writes for every instance of a named cache
+     * @param cacheName the cache name
+     * @param maxInFlight the cap or 0 to stop capping writes while still counting their failures
+     */
+    public static void setMaxInFlight(String cacheName, int maxInFlight)
+    {
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException("invalid maximum in flight writes " + maxInFlight);
+        }
+        FastPathPolicy policy = forCache(cacheName);
+        synchronized (policy) {
+            if (policy.inFlight == null) {
+                policy.inFlight = new InFlightWrites(policy.cacheName, maxInFlight);
+            } else {
+                policy.inFlight.setMaxInFlight(maxInFlight);
+            }
+        }
+    }
+
+    /**
+     * convert a mode name to a mode. "fast" is accepted as an alias for "async"
+     * @param name the mode name
+     * @return the corresponding mode
+     * @throws IllegalArgumentException if the name is not recognised
+     */
+    public static int parseMode(String name)
+    {
+        if ("fast".equals(name)) {
+            return ASYNC;
+        }
+        for (int i = 0; i < MODE_NAMES.length; i++) {
+            if (MODE_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("unknown fast path mode " + name);
+    }
+
+    /**
+     * find or create the policy shared by all instances of a named cache
+     * @param cacheName the cache name which may be null
+     * @return the policy
+     */
+    public static FastPathPolicy forCache(String cacheName)
+    {
+        String key = (cacheName != null ? cacheName : "<unnamed>");
+        FastPathPolicy policy = policies.get(key);
+        if (policy == null) {
+            FastPathPolicy newPolicy = new FastPathPolicy(key);
+            policy = policies.putIfAbsent(key, newPolicy);
+            if (policy == null) {
+                policy = newPolicy;
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * @return a description of each cache's policy, sorted by cache name
+     */
+    public static List<String> describe()
+    {
+        List<String> descriptions = new ArrayList<String>();
+        for (FastPathPolicy policy : policies.values()) {
+            descriptions.add(policy.toString());
+        }
+        Collections.sort(descriptions);
+        return descriptions;
+    }
+
+    public static void report(PrintStream out)
+    {
+        for (String description : describe()) {
+            out.println("  " + description);
+        }
+    }
+
+    private final String cacheName;
+
+    /**
+     * the current mode or'ed with PINNED if the mode is pinned. the two are kept in one field so that
+     * dispatch sees them change together. written under this
+     */
+    private volatile int state = SYNC_NO_RETURN;
+    private final AtomicLong calls = new AtomicLong();
+
+    /**
+     * buffer used in write behind mode, created on first use. it is retained after the mode changes so
+     * that the flusher thread picks up any write which raced with the change
+     */
+    private volatile WriteBehindBuffer writeBehind = null;
+
+    /**
+     * outstanding async writes or null if they are neither capped nor tracked
+     */
+    private volatile InFlightWrites inFlight = null;
+
+    /**
+     * moving average latency and sample count for each variant. guarded by this
+     */
+    private final double[] averageNanos = new double[2];
+    private final long[] samples = new long[2];
+    private long switches = 0;
+    private long samplesSinceSwitch = 0;
+
+    private FastPathPolicy(String cacheName)
+    {
+        this.cacheName = cacheName;
+        if (InFlightWrites.getDefaultMaxInFlight() > 0 || WriteJournal.getJournal() != null) {
+            inFlight = new InFlightWrites(cacheName, InFlightWrites.getDefaultMaxInFlight());
+        }
+        if (WriteBehindBuffer.isConfigured(cacheName)) {
+            state = WRITE_BEHIND | PINNED;
+        }
+    }
+
+    public String getCacheName()
+    {
+        return cacheName;
+    }
+
+    public int getMode()
+    {
+        return state & MODE_MASK;
+    }
+
+    private void dispatch(FastPathMap<Object, Object> map, Object key, Object value)
+    {
+        int current = state;
+
+        if ((current & PINNED) != 0 || !adaptive) {
+            invoke(current & MODE_MASK, map, key, value);
+            return;
+        }
+
+        long count = calls.incrementAndGet();
+        int chosen = current;
+        boolean timed;
+
+        if ((count & (EXPLORE_PERIOD - 1)) < EXPLORE_CALLS) {
+            chosen = 1 - current;
+            timed = true;
+        } else {
+            timed = ((count & (SAMPLE_PERIOD - 1)) == 0);
+        }
+
+        if (!timed) {
+            invoke(chosen, map, key, value);
+            return;
+        }
+
+        long start = System.nanoTime();
+        invoke(chosen, map, key, value);
+        record(chosen, System.nanoTime() - start);
+    }
+
+    private void invoke(int mode, FastPathMap<Object, Object> map, Object key, Object value)
+    {
+        switch (mode) {
+            case ASYNC: {
+                InFlightWrites writes = inFlight;
+                if (writes != null && !writes.acquire()) {
+                    // too many writes are outstanding so apply backpressure by writing synchronously
+                    map.put$syncNoReturn(key, value);
+                    if (ReadYourWrites.isEnabled()) {
+                        ReadYourWrites.forget(cacheName, key);
+                    }
+                    break;
+                }
+                long sequence = journal(key, value);
+                if (sequence == NOT_JOURNALED) {
+                    if (writes != null) {
+                        writes.release();
+                    }
+                    map.put$syncNoReturn(key, value);
+                    if (ReadYourWrites.isEnabled()) {
+                        ReadYourWrites.forget(cacheName, key);
+                    }
+                    break;
+                }
+                Object future = null;
+                try {
+                    future = map.put$async(key, value);
+                } finally {
+                    if (writes != null) {
+                        if (future != null) {
+                            writes.add((Future<?>)future, key, value, sequence);
+                        } else {
+                            writes.release();
+                            if (sequence >= 0) {
+                                // the caller sees the failure so the write need not be replayed
+                                WriteJournal.getJournal().acknowledge(sequence);
+                            }
+                        }
+                    }
+                }
+                if (ReadYourWrites.isEnabled()) {
+                    ReadYourWrites.record(cacheName, key, value, (Future<?>)future);
+                }
+                break;
+            }
+            case ORIGINAL:
+                map.put$original(key, value);
+                if (ReadYourWrites.isEnabled()) {
+                    ReadYourWrites.forget(cacheName, key);
+                }
+                break;
+            case WRITE_BEHIND:
+                long sequence = (key == null || value == null ? NOT_JOURNALED : journal(key, value));
+                if (sequence == NOT_JOURNALED) {
+                    // let the cache reject a null in the caller's thread and write anything which could not
+                    // be journaled synchronously
+                    map.put$syncNoReturn(key, value);
+                    if (ReadYourWrites.isEnabled()) {
+                        ReadYourWrites.forget(cacheName, key);
+                    }
+                } else if (ReadYourWrites.isEnabled()) {
+                    ReadYourWrites.record(cacheName, key, value, getWriteBehind().write(map, key, value, true, sequence));
+                } else {
+                    getWriteBehind().write(map, key, value, false, sequence);
+                }
+                break;
+            default:
+                map.put$syncNoReturn(key, value);
+                if (ReadYourWrites.isEnabled()) {
+                    ReadYourWrites.forget(cacheName, key);
+                }
+                break;
+        }
+    }
+
+    /**
+     * append a write to the journal if there is one
+     * @return the sequence number of the journaled write, -1 if there is no journal or NOT_JOURNALED if the
+     * write could not be journaled and must be performed synchronously
+     */
+    private long journal(Object key, Object value)
+    {
+        WriteJournal journal = WriteJournal.getJournal();
+        if (journal == null) {
+            return -1;
+        }
+        long sequence = journal.write(cacheName, key, value);
+        return (sequence < 0 ? NOT_JOURNALED : sequence);
+    }
+
+    private WriteBehindBuffer getWriteBehind()
+    {
+        WriteBehindBuffer buffer = writeBehind;
+        if (buffer == null) {
+            synchronized (this) {
+                buffer = writeBehind;
+                if (buffer == null) {
+                    buffer = WriteBehindBuffer.create(cacheName);
+                    writeBehind = buffer;
+                }
+            }
+        }
+        return buffer;
+    }
+
+    private void flushWriteBehind()
+    {
+        WriteBehindBuffer buffer = writeBehind;
+        if (buffer != null) {
+            buffer.flush();
+        }
+    }
+
+    private synchronized void record(int variant, long nanos)
+    {
+        if (samples[variant] == 0) {
+            averageNanos[variant] = nanos;
+        } else {
+            averageNanos[variant] += ALPHA * (nanos - averageNanos[variant]);
+        }
+        samples[variant]++;
+        samplesSinceSwitch++;
+
+        int current = state;
+        int other = 1 - current;
+        if ((current & PINNED) == 0 && samples[current] >= MIN_SAMPLES && samples[other] >= MIN_SAMPLES &&
+                samplesSinceSwitch >= SWITCH_INTERVAL &&
+                averageNanos[other] < averageNanos[current] * (1 - HYSTERESIS)) {
+            state = other;
+            switches++;
+            samplesSinceSwitch = 0;
+        }
+    }
+
+    public synchronized String toString()
+    {
+        int current = state;
+        return "cache " + cacheName + " mode " + MODE_NAMES[current & MODE_MASK] + ((current & PINNED) != 0 ? " (pinned)" : "") + " calls " + calls.get() +
+                " sync-no-return " + (long)averageNanos[SYNC_NO_RETURN] + "ns (" + samples[SYNC_NO_RETURN] + " samples)" +
+                " async " + (long)averageNanos[ASYNC] + "ns (" + samples[ASYNC] + " samples)" +
+                " switches " + switches + (inFlight != null ? " " + inFlight : "");
+    }
+}
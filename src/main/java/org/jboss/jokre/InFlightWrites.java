@@ -0,0 +1,258 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre;
+
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the async fast path writes of one cache which have not yet completed so that their number can be
+ * capped and their failures counted. the futures returned by putAsync cannot be given a listener from the
+ * agent's classes so completed writes are found by polling. the queue is reaped when the cap is reached
+ * and, without blocking, every REAP_PERIOD writes.
+ *
+ * a caller which finds the cap reached waits up to ASYNC_BLOCK_MILLIS for a write to complete and then
+ * gives up, in which case the policy performs its put synchronously.
+ *
+ * writes are always tracked when a WriteJournal is in use since a journaled write is only acknowledged
+ * when it is reaped.
+ */
+public class InFlightWrites
+{
+    /**
+     * system property specifying the maximum number of outstanding async fast path writes for each cache.
+     * the default, 0, means writes are neither capped nor tracked
+     */
+    public static final String ASYNC_MAX_IN_FLIGHT = "org.jboss.jokre.async.max.in.flight";
+
+    /**
+     * system property specifying how long in milliseconds a caller waits for an async write slot before
+     * falling back to a synchronous put. the default, 0, means the caller falls back at once
+     */
+    public static final String ASYNC_BLOCK_MILLIS = "org.jboss.jokre.async.block.millis";
+
+    /**
+     * completed writes are reaped every REAP_PERIOD writes even when the cap has not been reached.
+     * must be a power of 2
+     */
+    private static final int REAP_PERIOD = 64;
+
+    /**
+     * interval between polls of the queue by a blocked caller
+     */
+    private static final long POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static final int defaultMaxInFlight = parseIntProperty(ASYNC_MAX_IN_FLIGHT);
+    private static final long blockNanos = TimeUnit.MILLISECONDS.toNanos(parseIntProperty(ASYNC_BLOCK_MILLIS));
+
+    /**
+     * @return the cap configured for every cache or 0 if writes are not capped
+     */
+    public static int getDefaultMaxInFlight()
+    {
+        return defaultMaxInFlight;
+    }
+
+    private final String cacheName;
+    private volatile int maxInFlight;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Write> writes = new ConcurrentLinkedQueue<Write>();
+    private final ReentrantLock reapLock = new ReentrantLock();
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    public InFlightWrites(String cacheName, int maxInFlight)
+    {
+        this.cacheName = cacheName;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param maxInFlight the new cap or 0 to stop capping writes while still tracking them
+     */
+    public void setMaxInFlight(int maxInFlight)
+    {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * reserve a slot for an async write, waiting for one if necessary
+     * @return true if a slot was reserved or false if the caller should write synchronously
+     */
+    public boolean acquire()
+    {
+        if (tryAcquire()) {
+            return true;
+        }
+        reap(true);
+        if (tryAcquire()) {
+            return true;
+        }
+        if (blockNanos > 0) {
+            blocked.incrementAndGet();
+            long deadline = System.nanoTime() + blockNanos;
+            while (System.nanoTime() - deadline < 0) {
+                LockSupport.parkNanos(POLL_NANOS);
+                reap(true);
+                if (tryAcquire()) {
+                    return true;
+                }
+            }
+        }
+        fallbacks.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * give back a slot which was reserved for a write which could not be started
+     */
+    public void release()
+    {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * track a write started in a reserved slot
+     * @param sequence the WriteJournal sequence number to acknowledge once the write completes or -1
+     */
+    public void add(Future<?> future, Object key, Object value, long sequence)
+    {
+        writes.offer(new Write(future, key, value, sequence));
+        if ((added.incrementAndGet() & (REAP_PERIOD - 1)) == 0) {
+            reap(false);
+        }
+    }
+
+    private boolean tryAcquire()
+    {
+        while (true) {
+            int count = outstanding.get();
+            int max = maxInFlight;
+            if (max > 0 && count >= max) {
+                return false;
+            }
+            if (outstanding.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * remove completed writes from the queue, freeing their slots and accounting for their outcome
+     * @param wait true if the caller should wait for another thread which is already reaping
+     */
+    private void reap(boolean wait)
+    {
+        if (wait) {
+            reapLock.lock();
+        } else if (!reapLock.tryLock()) {
+            return;
+        }
+        try {
+            Iterator<Write> iterator = writes.iterator();
+            while (iterator.hasNext()) {
+                Write write = iterator.next();
+                if (!write.future.isDone()) {
+                    continue;
+                }
+                iterator.remove();
+                outstanding.decrementAndGet();
+                try {
+                    write.future.get();
+                    completed.incrementAndGet();
+                } catch (ExecutionException ee) {
+                    failed(write, ee.getCause());
+                } catch (CancellationException ce) {
+                    failed(write, ce);
+                } catch (InterruptedException ie) {
+                    // cannot happen as the future is done
+                    Thread.currentThread().interrupt();
+                }
+                if (write.sequence >= 0) {
+                    // a failed write has been reported so it need not be replayed
+                    WriteJournal.getJournal().acknowledge(write.sequence);
+                }
+            }
+        } finally {
+            reapLock.unlock();
+        }
+    }
+
+    private void failed(Write write, Throwable cause)
+    {
+        failed.incrementAndGet();
+        FastPathFailures.report(cacheName, write.key, write.value, cause);
+    }
+
+    public String toString()
+    {
+        return "in flight " + outstanding.get() + "/" + (maxInFlight > 0 ? String.valueOf(maxInFlight) : "unbounded") +
+                " completed " + completed.get() + " failed " + failed.get() + " blocked " + blocked.get() +
+                " fallbacks " + fallbacks.get();
+    }
+
+    private static int parseIntProperty(String name)
+    {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            int result = Integer.parseInt(value);
+            if (result >= 0) {
+                return result;
+            }
+        } catch (NumberFormatException nfe) {
+            // fall through
+        }
+        System.err.println("Jokre : invalid value for " + name + " : " + value);
+        return 0;
+    }
+
+    private static class Write
+    {
+        final Future<?> future;
+        final Object key;
+        final Object value;
+        final long sequence;
+
+        Write(Future<?> future, Object key, Object value, long sequence)
+        {
+            this.future = future;
+            this.key = key;
+            this.value = value;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size histogram of latencies measured in nanoseconds. values below 16 are counted exactly. larger
+ * values are counted in buckets which split each power of 2 into 8 so a reported value is never more
+ * than 12.5% below the true value. the histogram uses the same memory however many values it records.
+ */
+public class LatencyHistogram
+{
+    /**
+     * number of sub-buckets per power of 2 expressed as a shift
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * values below this limit each get their own bucket
+     */
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+    /**
+     * enough buckets to cover every positive long
+     */
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * record a single latency
+     * @param nanos the latency in nanoseconds. negative values are treated as zero
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucketIndex(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public long getMean()
+    {
+        long n = count.get();
+        return (n == 0 ? 0 : total.get() / n);
+    }
+
+    /**
+     * compute an approximate percentile
+     * @param percentile a value between 0 and 100
+     * @return the lower bound of the bucket containing the percentile or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile)
+    {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = (long)Math.ceil((percentile / 100.0) * n);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                return bucketValue(i);
+            }
+        }
+        return max.get();
+    }
+
+    public String toString()
+    {
+        return "count " + getCount() + " mean " + getMean() + "ns p50 " + getPercentile(50) + "ns p90 " +
+                getPercentile(90) + "ns p99 " + getPercentile(99) + "ns p99.9 " + getPercentile(99.9) +
+                "ns max " + getMax() + "ns";
+    }
+
+    private static int bucketIndex(long value)
+    {
+        if (value < LINEAR_LIMIT) {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketValue(int index)
+    {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + (SUB_BUCKET_BITS + 1);
+        int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+        return (1L << exponent) + ((long)subBucket << (exponent - SUB_BUCKET_BITS));
+    }
+}
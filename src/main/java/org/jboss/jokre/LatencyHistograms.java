@@ -0,0 +1,131 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per cache latency histograms for the put methods of transformed Map implementors. when implementor timing
+ * is enabled the generated put, put$fastPath and put$alternativeSlowPath methods call record with the cache
+ * name and the time the call started. this allows the cost of the void set call used by the fast path to be
+ * compared with the original put implementation under production load.
+ */
+public class LatencyHistograms
+{
+    /**
+     * the instrumented put which calls put$originalSlowPath on behalf of an untransformed call site
+     */
+    public static final int PUT = 0;
+
+    /**
+     * put$fastPath which calls set
+     */
+    public static final int FAST_PATH = 1;
+
+    /**
+     * put$alternativeSlowPath which calls put$originalSlowPath on behalf of a transformed call site
+     */
+    public static final int ALTERNATIVE_SLOW_PATH = 2;
+
+    private static final String[] KIND_NAMES = { "put", "put$fastPath", "put$alternativeSlowPath" };
+
+    /**
+     * key used for caches which do not have a name
+     */
+    private static final String UNNAMED_CACHE = "<unnamed>";
+
+    private static final ConcurrentHashMap<String, LatencyHistogram[]> histograms = new ConcurrentHashMap<String, LatencyHistogram[]>();
+
+    /**
+     * record the latency of a call which has just completed
+     * @param cacheName the name of the cache which was called
+     * @param kind one of PUT, FAST_PATH or ALTERNATIVE_SLOW_PATH
+     * @param startNanos the value of System.nanoTime() when the call started
+     */
+    public static void record(String cacheName, int kind, long startNanos)
+    {
+        long elapsed = System.nanoTime() - startNanos;
+        getHistograms(cacheName)[kind].record(elapsed);
+    }
+
+    /**
+     * @param cacheName the name of a cache
+     * @param kind one of PUT, FAST_PATH or ALTERNATIVE_SLOW_PATH
+     * @return the histogram for the cache and kind or null if nothing has been recorded for the cache
+     */
+    public static LatencyHistogram getHistogram(String cacheName, int kind)
+    {
+        LatencyHistogram[] cacheHistograms = histograms.get(cacheName != null ? cacheName : UNNAMED_CACHE);
+        return (cacheHistograms != null ? cacheHistograms[kind] : null);
+    }
+
+    /**
+     * @return true if no latency has been recorded yet
+     */
+    public static boolean isEmpty()
+    {
+        return histograms.isEmpty();
+    }
+
+    /**
+     * print percentiles for every cache and put method which has been called
+     * @param out the stream to print to
+     */
+    public static void report(PrintStream out)
+    {
+        List<String> cacheNames = new ArrayList<String>(histograms.keySet());
+        Collections.sort(cacheNames);
+        for (String cacheName : cacheNames) {
+            out.println("cache " + cacheName);
+            LatencyHistogram[] cacheHistograms = histograms.get(cacheName);
+            for (int i = 0; i < cacheHistograms.length; i++) {
+                if (cacheHistograms[i].getCount() > 0) {
+                    out.println("  " + KIND_NAMES[i] + " " + cacheHistograms[i]);
+                }
+            }
+        }
+    }
+
+    private static LatencyHistogram[] getHistograms(String cacheName)
+    {
+        if (cacheName == null) {
+            cacheName = UNNAMED_CACHE;
+        }
+        LatencyHistogram[] cacheHistograms = histograms.get(cacheName);
+        if (cacheHistograms == null) {
+            LatencyHistogram[] newHistograms = new LatencyHistogram[KIND_NAMES.length];
+            for (int i = 0; i < newHistograms.length; i++) {
+                newHistograms[i] = new LatencyHistogram();
+            }
+            cacheHistograms = histograms.putIfAbsent(cacheName, newHistograms);
+            if (cacheHistograms == null) {
+                cacheHistograms = newHistograms;
+            }
+        }
+        return cacheHistograms;
+    }
+}
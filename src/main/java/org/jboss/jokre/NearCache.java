@@ -0,0 +1,406 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre;
+
+import org.jboss.jokre.transformer.JokreTransformer;
+import org.jboss.jokre.transformer.NearCacheListenerGenerator;
+
+import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded local copy of the entries read from a cache instance. when near caching is enabled for a cache
+ * the get method of the Infinispan cache implementation notifies Jokre of its callers in the same way as
+ * put and the notified methods have their Map.get call sites redirected to NearCache.get. a hit is served
+ * without entering the cache. a miss reads the cache, bypassing the notification, and keeps the result.
+ *
+ * entries are invalidated by an Infinispan listener registered on the cache when its near cache is
+ * created. the listener class has to be defined in a loader which can see the Infinispan annotations so
+ * it is generated by NearCacheListenerGenerator and defined in a child of the cache's loader. a listener
+ * only hears about entries held on this node so in distributed mode L1 should be enabled, since it is the
+ * L1 invalidations which tell us about writes to keys owned elsewhere.
+ *
+ * each cache has STRIPES least recently used maps, each holding at most its share of
+ * NEAR_CACHE_CAPACITY entries. a miss only stores the value it read if no invalidation hit its stripe
+ * while it was reading, so a value overwritten during the read is never kept. null values are not kept.
+ * transactional caches are not near cached since a hit would bypass the transaction's view of the cache.
+ */
+public class NearCache
+{
+    /**
+     * system property listing the names of the caches to near cache, separated by commas, or * to select
+     * every cache
+     */
+    public static final String NEAR_CACHE = JokreTransformer.JOKRE_PACKAGE_PREFIX + "near.cache";
+
+    /**
+     * system property specifying the maximum number of entries held for each cache
+     */
+    public static final String NEAR_CACHE_CAPACITY = JokreTransformer.JOKRE_PACKAGE_PREFIX + "near.cache.capacity";
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * number of stripes in each near cache. must be a power of 2
+     */
+    private static final int STRIPES = 16;
+
+    private static final String CLASS_CACHE_IMPL = "org.infinispan.CacheImpl";
+
+    private static final Set<String> configuredCaches = parseCacheNames(System.getProperty(NEAR_CACHE));
+    private static final int capacity = parseCapacity();
+
+    /**
+     * shared by every cache instance which is not near cached
+     */
+    private static final NearCache DISABLED = new NearCache(null);
+
+    /**
+     * marker passed to ReadYourWrites.overlay to detect a pending write
+     */
+    private static final Object NO_VALUE = new Object();
+
+    private static final List<NearCache> nearCaches = new CopyOnWriteArrayList<NearCache>();
+
+    /**
+     * listener classes indexed by the loader of the cache classes they were defined for. the class is held
+     * weakly since it retains its loader and the listeners registered on live caches keep it alive
+     */
+    private static final Map<ClassLoader, WeakReference<Class<?>>> listenerClasses = new WeakHashMap<ClassLoader, WeakReference<Class<?>>>();
+
+    /**
+     * @return true if near caching is enabled for any cache
+     */
+    public static boolean isConfigured()
+    {
+        return !configuredCaches.isEmpty();
+    }
+
+    /**
+     * @param map a map which may be a cache
+     * @return true if map is a cache instance whose gets are near cached
+     */
+    public static boolean isNearCached(Object map)
+    {
+        return (map instanceof FastPathMap && forMap((FastPathMap<?, ?>)map) != DISABLED);
+    }
+
+    /**
+     * perform a get for a map, using its near cache if it has one. called from transformed call sites
+     * @param map the map
+     * @param key the key
+     * @return the value
+     */
+    public static Object get(Map<?, ?> map, Object key)
+    {
+        if (map instanceof FastPathMap) {
+            FastPathMap<?, ?> fastPathMap = (FastPathMap<?, ?>)map;
+            NearCache nearCache = forMap(fastPathMap);
+            if (nearCache != DISABLED) {
+                return nearCache.lookup(fastPathMap, key);
+            }
+        }
+        return map.get(key);
+    }
+
+    /**
+     * @return a description of each near cache, sorted by cache name
+     */
+    public static List<String> describe()
+    {
+        List<String> descriptions = new ArrayList<String>();
+        for (NearCache nearCache : nearCaches) {
+            descriptions.add(nearCache.toString());
+        }
+        Collections.sort(descriptions);
+        return descriptions;
+    }
+
+    public static void report(PrintStream out)
+    {
+        for (String description : describe()) {
+            out.println("  " + description);
+        }
+    }
+
+    private static NearCache forMap(FastPathMap<?, ?> map)
+    {
+        NearCache nearCache = map.jokre$getNearCache();
+        if (nearCache == null) {
+            nearCache = create(map);
+        }
+        return nearCache;
+    }
+
+    /**
+     * create the near cache for a cache instance and register its listener. this is synchronized so that
+     * racing readers cannot register two listeners
+     */
+    private static synchronized NearCache create(FastPathMap<?, ?> map)
+    {
+        NearCache nearCache = map.jokre$getNearCache();
+        if (nearCache != null) {
+            return nearCache;
+        }
+        String cacheName = map.jokre$cacheName();
+        nearCache = DISABLED;
+        // decorated caches share the underlying cache's entries but may apply flags so only the cache
+        // implementation itself is near cached
+        if (map.getClass().getName().equals(CLASS_CACHE_IMPL) &&
+                (configuredCaches.contains("*") || configuredCaches.contains(cacheName))) {
+            try {
+                if (isTransactional(map)) {
+                    System.err.println("Jokre : not near caching transactional cache " + cacheName);
+                } else {
+                    NearCache newNearCache = new NearCache(cacheName);
+                    addListener(map, newNearCache);
+                    nearCaches.add(newNearCache);
+                    nearCache = newNearCache;
+                }
+            } catch (Exception e) {
+                System.err.println("Jokre : unable to register near cache listener for cache " + cacheName + " : " + e);
+            }
+        }
+        map.jokre$setNearCache(nearCache);
+        return nearCache;
+    }
+
+    private static boolean isTransactional(FastPathMap<?, ?> map) throws Exception
+    {
+        Method method = map.getClass().getMethod("getTransactionManager");
+        return method.invoke(map) != null;
+    }
+
+    private static void addListener(FastPathMap<?, ?> map, NearCache nearCache) throws Exception
+    {
+        ClassLoader loader = map.getClass().getClassLoader();
+        Class<?> listenerClass;
+        synchronized (listenerClasses) {
+            WeakReference<Class<?>> ref = listenerClasses.get(loader);
+            listenerClass = (ref != null ? ref.get() : null);
+            if (listenerClass == null) {
+                listenerClass = new ListenerLoader(loader).define();
+                listenerClasses.put(loader, new WeakReference<Class<?>>(listenerClass));
+            }
+        }
+        Object listener = listenerClass.getConstructor(NearCache.class).newInstance(nearCache);
+        map.getClass().getMethod("addListener", Object.class).invoke(map, listener);
+    }
+
+    private static Set<String> parseCacheNames(String value)
+    {
+        Set<String> cacheNames = new HashSet<String>();
+        if (value != null) {
+            for (String cacheName : value.split(",")) {
+                cacheName = cacheName.trim();
+                if (cacheName.length() > 0) {
+                    cacheNames.add(cacheName);
+                }
+            }
+        }
+        return cacheNames;
+    }
+
+    private static int parseCapacity()
+    {
+        String value = System.getProperty(NEAR_CACHE_CAPACITY);
+        if (value == null) {
+            return DEFAULT_CAPACITY;
+        }
+        try {
+            int result = Integer.parseInt(value);
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException nfe) {
+            // fall through
+        }
+        System.err.println("Jokre : invalid value for " + NEAR_CACHE_CAPACITY + " : " + value);
+        return DEFAULT_CAPACITY;
+    }
+
+    private final String cacheName;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    private NearCache(String cacheName)
+    {
+        this.cacheName = cacheName;
+        int stripeCapacity = Math.max(1, capacity / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    private Object lookup(FastPathMap<?, ?> map, Object key)
+    {
+        if (key == null) {
+            // let the cache reject the key
+            return map.get$original(key);
+        }
+        Stripe stripe = stripeFor(key);
+        Object value;
+        long stamp;
+        synchronized (stripe) {
+            value = stripe.get(key);
+            stamp = stripe.invalidations;
+        }
+        if (value != null) {
+            hits.incrementAndGet();
+            // a hit does not enter the cache's get so it has to apply the overlay itself
+            return (ReadYourWrites.isEnabled() ? ReadYourWrites.overlay(value, map, key) : value);
+        }
+        misses.incrementAndGet();
+        value = map.get$original(key);
+        if (value == null) {
+            return null;
+        }
+        if (ReadYourWrites.isEnabled() && ReadYourWrites.overlay(NO_VALUE, map, key) != NO_VALUE) {
+            // the value may be this thread's write which other threads cannot see yet
+            return value;
+        }
+        synchronized (stripe) {
+            if (stripe.invalidations == stamp) {
+                stripe.put(key, value);
+            } else {
+                discarded.incrementAndGet();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * drop any copy of a key. called from the generated listener for every modification, removal or
+     * invalidation of the key, both before and after it happens
+     * @param key the key
+     */
+    public void invalidate(Object key)
+    {
+        if (key == null) {
+            return;
+        }
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            stripe.invalidations++;
+            stripe.remove(key);
+        }
+        invalidations.incrementAndGet();
+    }
+
+    private Stripe stripeFor(Object key)
+    {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    private int size()
+    {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the proportion of lookups which were hits
+     */
+    public double getHitRatio()
+    {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return (total == 0 ? 0 : (double)hitCount / total);
+    }
+
+    public String toString()
+    {
+        return "cache " + cacheName + " hits " + hits.get() + " misses " + misses.get() +
+                " hit ratio " + String.format("%.2f", getHitRatio()) + " size " + size() + "/" + capacity +
+                " evictions " + evictions.get() + " invalidations " + invalidations.get() + " discarded " + discarded.get();
+    }
+
+    /**
+     * least recently used map holding one stripe of a near cache. guarded by itself
+     */
+    private class Stripe extends LinkedHashMap<Object, Object>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int stripeCapacity;
+        /**
+         * the number of invalidations which have hit this stripe
+         */
+        long invalidations = 0;
+
+        Stripe(int stripeCapacity)
+        {
+            super(16, 0.75f, true);
+            this.stripeCapacity = stripeCapacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest)
+        {
+            if (size() > stripeCapacity) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * loader used to define the generated listener class. its parent is the loader of the cache classes
+     * so the listener can resolve the Infinispan annotation and event types
+     */
+    private static class ListenerLoader extends ClassLoader
+    {
+        ListenerLoader(ClassLoader parent)
+        {
+            super(parent);
+        }
+
+        Class<?> define()
+        {
+            byte[] bytes = NearCacheListenerGenerator.generate();
+            return defineClass(NearCacheListenerGenerator.LISTENER_CLASS_NAME, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Static entry points called from transformed call sites when the agent was attached after the Map implementor
+ * classes were loaded. retransformation cannot add the NonReturnMap interface or its methods to a loaded
+ * class so call sites are routed through this class instead. it dispatches on the runtime class of the
+ * target, which means instances created before the agent was attached are handled too.
+ *
+ * put$excludedSite is also called from call sites which have been excluded from transformation whether or not
+ * the agent was attached late.
+ */
+public class NonReturnMapBridge
+{
+    /**
+     * names of the implementor classes which declare the void set method, in external format
+     */
+    private static final String[] IMPLEMENTOR_CLASS_NAMES = {
+            "org.infinispan.CacheSupport",
+            "org.infinispan.AbstractDelegatingCache"
+    };
+
+    /**
+     * value recorded for classes which do not inherit a set method from an implementor class
+     */
+    private static final Object NO_SET_METHOD = new Object();
+
+    /**
+     * cache of set methods indexed by runtime class. values are either a Method or NO_SET_METHOD
+     */
+    private static final ConcurrentHashMap<Class<?>, Object> setMethods = new ConcurrentHashMap<Class<?>, Object>();
+
+    /**
+     * flag set while the bridge is calling an instrumented put on behalf of an already transformed call site
+     */
+    private static final ThreadLocal<Boolean> notifySuppressed = new ThreadLocal<Boolean>();
+
+    @SuppressWarnings("unchecked")
+    public static void put$fastPath(Map<Object, Object> map, Object key, Object value)
+    {
+        if (map instanceof NonReturnMap) {
+            ((NonReturnMap<Object, Object>)map).put$fastPath(key, value);
+            return;
+        }
+
+        Method set = findSetMethod(map.getClass());
+
+        if (set == null) {
+            map.put(key, value);
+            return;
+        }
+
+        try {
+            set.invoke(map, key, value);
+        } catch (IllegalAccessException e) {
+            // should not happen as we made the method accessible
+            map.put(key, value);
+        } catch (InvocationTargetException e) {
+            // set declares no checked exceptions so the cause must be unchecked
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw (Error)cause;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Object put$alternativeSlowPath(Map<Object, Object> map, Object key, Object value)
+    {
+        if (map instanceof NonReturnMap) {
+            return ((NonReturnMap<Object, Object>)map).put$alternativeSlowPath(key, value);
+        }
+
+        if (findSetMethod(map.getClass()) == null) {
+            return map.put(key, value);
+        }
+
+        // the put we call is instrumented so stop it renotifying a caller which has already been transformed
+
+        notifySuppressed.set(Boolean.TRUE);
+        try {
+            return map.put(key, value);
+        } finally {
+            notifySuppressed.remove();
+        }
+    }
+
+    /**
+     * put called from a call site which has been excluded from transformation because it mostly sees plain
+     * maps. a NonReturnMap is sent to its uninstrumented put so that it does not notify the agent
+     */
+    @SuppressWarnings("unchecked")
+    public static Object put$excludedSite(Map<Object, Object> map, Object key, Object value)
+    {
+        if (map instanceof NonReturnMap) {
+            return ((NonReturnMap<Object, Object>)map).put$alternativeSlowPath(key, value);
+        }
+        return map.put(key, value);
+    }
+
+    /**
+     * @return true if the current thread is executing a put on behalf of a transformed call site
+     */
+    public static boolean isNotifySuppressed()
+    {
+        return notifySuppressed.get() != null;
+    }
+
+    private static Method findSetMethod(Class<?> clazz)
+    {
+        Object cached = setMethods.get(clazz);
+
+        if (cached == null) {
+            Method set = lookupSetMethod(clazz);
+            cached = (set != null ? set : NO_SET_METHOD);
+            setMethods.put(clazz, cached);
+        }
+
+        return (cached == NO_SET_METHOD ? null : (Method)cached);
+    }
+
+    private static Method lookupSetMethod(Class<?> clazz)
+    {
+        for (Class<?> candidate = clazz; candidate != null; candidate = candidate.getSuperclass()) {
+            String name = candidate.getName();
+            for (int i = 0; i < IMPLEMENTOR_CLASS_NAMES.length; i++) {
+                if (name.equals(IMPLEMENTOR_CLASS_NAMES[i])) {
+                    try {
+                        Method set = candidate.getDeclaredMethod("set", Object.class, Object.class);
+                        set.setAccessible(true);
+                        return set;
+                    } catch (Exception e) {
+                        return null;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
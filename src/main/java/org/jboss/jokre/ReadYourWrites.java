@@ -0,0 +1,229 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Per thread overlay which lets a thread read back a value it has written through the fast path while
+ * the write is still in flight, i.e. while an async put has not completed or a write behind put has not
+ * been flushed. when enabled the get method of the Infinispan cache implementation is instrumented to pass
+ * its result through overlay, which substitutes the pending value if the calling thread has one for the
+ * same cache and key.
+ *
+ * entries are only ever touched by the thread which owns them so no locking is needed. an entry is evicted
+ * when it is read after its write has completed, when the thread writes the same key through a synchronous
+ * fast path or when the thread's overlay is swept. the overlay is swept of completed writes whenever it
+ * doubles in size. only get is covered. other reads such as containsKey or getAsync see the cache contents.
+ */
+public class ReadYourWrites
+{
+    /**
+     * system property set (to any value) in order to enable the overlay
+     */
+    public static final String READ_YOUR_WRITES = "org.jboss.jokre.read.your.writes";
+
+    /**
+     * something which reports whether a pending write has completed
+     */
+    public interface Completion
+    {
+        public boolean isDone();
+    }
+
+    /**
+     * an overlay with this many entries or less is never swept
+     */
+    private static final int MIN_SWEEP_SIZE = 64;
+
+    private static final String UNNAMED_CACHE = "<unnamed>";
+
+    private static final boolean enabled = (System.getProperty(READ_YOUR_WRITES) != null);
+
+    /**
+     * true once any thread has recorded a pending write. until then gets skip the thread local lookup
+     */
+    private static volatile boolean active = false;
+
+    private static final ThreadLocal<Overlay> overlays = new ThreadLocal<Overlay>()
+    {
+        protected Overlay initialValue()
+        {
+            return new Overlay();
+        }
+    };
+
+    /**
+     * @return true if the overlay is enabled
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * record an async write made by the current thread
+     * @param cacheName the name of the cache written
+     * @param key the key written
+     * @param value the value written
+     * @param future the future returned by putAsync
+     */
+    public static void record(String cacheName, Object key, Object value, final Future<?> future)
+    {
+        record(cacheName, key, value, new Completion()
+        {
+            public boolean isDone()
+            {
+                return future.isDone();
+            }
+        });
+    }
+
+    /**
+     * record a write made by the current thread which completes later
+     * @param cacheName the name of the cache written
+     * @param key the key written
+     * @param value the value written
+     * @param completion reports when the write has completed
+     */
+    public static void record(String cacheName, Object key, Object value, Completion completion)
+    {
+        if (!active) {
+            active = true;
+        }
+        overlays.get().put(cacheName, key, new Pending(value, completion));
+    }
+
+    /**
+     * forget any pending write to a key by the current thread because it has since written the key
+     * synchronously
+     * @param cacheName the name of the cache written
+     * @param key the key written
+     */
+    public static void forget(String cacheName, Object key)
+    {
+        if (active) {
+            overlays.get().remove(cacheName, key);
+        }
+    }
+
+    /**
+     * called before each return from the instrumented get method
+     * @param result the value get is about to return
+     * @param map the cache
+     * @param key the key passed to get
+     * @return the value the current thread has written to the key if its write is pending, otherwise result
+     */
+    public static Object overlay(Object result, Object map, Object key)
+    {
+        if (!active || !(map instanceof FastPathMap)) {
+            return result;
+        }
+        Overlay overlay = overlays.get();
+        if (overlay.isEmpty()) {
+            return result;
+        }
+        String cacheName = ((FastPathMap)map).jokre$cacheName();
+        Pending pending = overlay.get(cacheName, key);
+        if (pending == null) {
+            return result;
+        }
+        // the get may have read the cache before the write completed so the pending value is returned
+        // even if the write has completed by now. it is the value the cache held when the write completed
+        if (pending.completion.isDone()) {
+            overlay.remove(cacheName, key);
+        }
+        return pending.value;
+    }
+
+    private static class Pending
+    {
+        final Object value;
+        final Completion completion;
+
+        Pending(Object value, Completion completion)
+        {
+            this.value = value;
+            this.completion = completion;
+        }
+    }
+
+    private static class Overlay
+    {
+        private final HashMap<String, HashMap<Object, Pending>> caches = new HashMap<String, HashMap<Object, Pending>>();
+        private int size = 0;
+        private int sweepSize = MIN_SWEEP_SIZE;
+
+        boolean isEmpty()
+        {
+            return size == 0;
+        }
+
+        Pending get(String cacheName, Object key)
+        {
+            HashMap<Object, Pending> pendings = caches.get(cacheName != null ? cacheName : UNNAMED_CACHE);
+            return (pendings != null ? pendings.get(key) : null);
+        }
+
+        void put(String cacheName, Object key, Pending pending)
+        {
+            String name = (cacheName != null ? cacheName : UNNAMED_CACHE);
+            HashMap<Object, Pending> pendings = caches.get(name);
+            if (pendings == null) {
+                pendings = new HashMap<Object, Pending>();
+                caches.put(name, pendings);
+            }
+            if (pendings.put(key, pending) == null) {
+                size++;
+                if (size > sweepSize) {
+                    sweep();
+                }
+            }
+        }
+
+        void remove(String cacheName, Object key)
+        {
+            HashMap<Object, Pending> pendings = caches.get(cacheName != null ? cacheName : UNNAMED_CACHE);
+            if (pendings != null && pendings.remove(key) != null) {
+                size--;
+            }
+        }
+
+        private void sweep()
+        {
+            for (HashMap<Object, Pending> pendings : caches.values()) {
+                Iterator<Map.Entry<Object, Pending>> iterator = pendings.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().getValue().completion.isDone()) {
+                        iterator.remove();
+                        size--;
+                    }
+                }
+            }
+            sweepSize = Math.max(MIN_SWEEP_SIZE, size * 2);
+        }
+    }
+}
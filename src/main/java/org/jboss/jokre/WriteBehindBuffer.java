@@ -0,0 +1,434 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write behind buffer used by a FastPathPolicy in WRITE_BEHIND mode. fast path writes are collected in a
+ * striped buffer where a later write to a key replaces any earlier write which has not yet been flushed.
+ * buffered writes are flushed to the cache as a single putAll every WRITE_BEHIND_INTERVAL milliseconds and
+ * a stripe is flushed by the writer which fills it.
+ *
+ * a buffered write is not visible to readers until it is flushed and a flush which fails is reported,
+ * including to FastPathFailures, but not retried. a write made through any other path, e.g. an untransformed call site, may be overwritten
+ * by an older buffered write to the same key. so this mode should only be enabled for caches where that
+ * is acceptable.
+ */
+public class WriteBehindBuffer
+{
+    /**
+     * system property listing the names of the caches which start in write behind mode, separated by
+     * commas, or * to select every cache
+     */
+    public static final String WRITE_BEHIND = "org.jboss.jokre.write.behind";
+
+    /**
+     * system property specifying the maximum number of buffered keys for each cache
+     */
+    public static final String WRITE_BEHIND_CAPACITY = "org.jboss.jokre.write.behind.capacity";
+
+    /**
+     * system property specifying the interval in milliseconds between flushes
+     */
+    public static final String WRITE_BEHIND_INTERVAL = "org.jboss.jokre.write.behind.interval";
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final long DEFAULT_INTERVAL = 100L;
+
+    /**
+     * number of stripes in each buffer. must be a power of 2
+     */
+    private static final int STRIPES = 16;
+
+    private static final Set<String> configuredCaches = parseCacheNames(System.getProperty(WRITE_BEHIND));
+    private static final int capacity = (int)parseLongProperty(WRITE_BEHIND_CAPACITY, DEFAULT_CAPACITY);
+    private static final long interval = parseLongProperty(WRITE_BEHIND_INTERVAL, DEFAULT_INTERVAL);
+
+    private static final List<WriteBehindBuffer> buffers = new CopyOnWriteArrayList<WriteBehindBuffer>();
+    private static Thread flusher = null;
+
+    /**
+     * @return true if any cache is configured to start in write behind mode
+     */
+    public static boolean isConfigured()
+    {
+        return !configuredCaches.isEmpty();
+    }
+
+    /**
+     * @param cacheName the name of a cache
+     * @return true if the cache is configured to start in write behind mode
+     */
+    public static boolean isConfigured(String cacheName)
+    {
+        return configuredCaches.contains("*") || configuredCaches.contains(cacheName);
+    }
+
+    /**
+     * create a buffer and register it with the flusher thread
+     * @param cacheName the name of the cache whose writes are buffered
+     * @return the new buffer
+     */
+    public static WriteBehindBuffer create(String cacheName)
+    {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(cacheName);
+        buffers.add(buffer);
+        startFlusher();
+        return buffer;
+    }
+
+    /**
+     * @return a description of each buffer, sorted by cache name
+     */
+    public static List<String> describe()
+    {
+        List<String> descriptions = new ArrayList<String>();
+        for (WriteBehindBuffer buffer : buffers) {
+            descriptions.add(buffer.toString());
+        }
+        Collections.sort(descriptions);
+        return descriptions;
+    }
+
+    public static void report(PrintStream out)
+    {
+        for (String description : describe()) {
+            out.println("  " + description);
+        }
+    }
+
+    /**
+     * flush every buffer
+     */
+    public static void flushAll()
+    {
+        for (WriteBehindBuffer buffer : buffers) {
+            buffer.flush();
+        }
+    }
+
+    private static synchronized void startFlusher()
+    {
+        if (flusher != null) {
+            return;
+        }
+        flusher = new Thread("Jokre write behind")
+        {
+            public void run()
+            {
+                while (true) {
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException ie) {
+                        // ignore
+                    }
+                    flushAll();
+                }
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+        // buffered writes would otherwise be lost at exit
+        Runtime.getRuntime().addShutdownHook(new Thread("Jokre write behind shutdown")
+        {
+            public void run()
+            {
+                flushAll();
+            }
+        });
+    }
+
+    private static Set<String> parseCacheNames(String value)
+    {
+        Set<String> cacheNames = new HashSet<String>();
+        if (value != null) {
+            for (String cacheName : value.split(",")) {
+                cacheName = cacheName.trim();
+                if (cacheName.length() > 0) {
+                    cacheNames.add(cacheName);
+                }
+            }
+        }
+        return cacheNames;
+    }
+
+    private static long parseLongProperty(String name, long defaultValue)
+    {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long result = Long.parseLong(value);
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException nfe) {
+            // fall through
+        }
+        System.err.println("Jokre : invalid value for " + name + " : " + value);
+        return defaultValue;
+    }
+
+    private final String cacheName;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final int stripeCapacity = Math.max(1, capacity / STRIPES);
+    private final AtomicInteger occupancy = new AtomicInteger();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong flushedEntries = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+    private WriteBehindBuffer(String cacheName)
+    {
+        this.cacheName = cacheName;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * buffer a write, flushing its stripe if it is full
+     * @param map the cache being written
+     * @param key the key which must not be null
+     * @param value the value which must not be null
+     * @param track true if the caller needs to know when the write has been flushed
+     * @param sequence the WriteJournal sequence number to acknowledge once the write has been flushed or -1
+     * @return a completion which reports when the write has been flushed or null if track is false
+     */
+    public ReadYourWrites.Completion write(FastPathMap<Object, Object> map, Object key, Object value, boolean track, long sequence)
+    {
+        int hash = key.hashCode();
+        Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+        boolean full;
+        Ticket ticket = null;
+
+        writes.incrementAndGet();
+        synchronized (stripe) {
+            Map<Object, Object> entries = stripe.pending.get(map);
+            if (entries == null) {
+                entries = new HashMap<Object, Object>();
+                stripe.pending.put(map, entries);
+            }
+            if (entries.put(key, value) == null) {
+                stripe.size++;
+                occupancy.incrementAndGet();
+            }
+            full = (stripe.size >= stripeCapacity);
+            if (sequence >= 0) {
+                // a write replaced by a later one is acknowledged along with it
+                if (stripe.journaled == null) {
+                    stripe.journaled = new ArrayList<Long>();
+                }
+                stripe.journaled.add(sequence);
+            }
+            if (track) {
+                // the write will be included in the next swap
+                ticket = new Ticket(stripe, stripe.swaps + 1);
+            }
+        }
+
+        if (full) {
+            flush(stripe);
+        }
+
+        return ticket;
+    }
+
+    /**
+     * flush every stripe with a single bulk write for each cache instance
+     */
+    public void flush()
+    {
+        flush(stripes);
+    }
+
+    /**
+     * @return the number of keys currently buffered
+     */
+    public int getOccupancy()
+    {
+        return occupancy.get();
+    }
+
+    /**
+     * @return the ratio of buffered writes to flushed entries
+     */
+    public double getCoalescingRatio()
+    {
+        long flushed = flushedEntries.get();
+        return (flushed == 0 ? 0 : (double)writes.get() / flushed);
+    }
+
+    public LatencyHistogram getFlushLatency()
+    {
+        return flushLatency;
+    }
+
+    private void flush(Stripe... toFlush)
+    {
+        // flush locks are always taken in stripe order so the flusher thread cannot deadlock with a writer
+        // which is flushing a single stripe. holding them until the bulk write completes ensures that an
+        // older value for a key is never written after a newer one
+
+        for (Stripe stripe : toFlush) {
+            stripe.flushLock.lock();
+        }
+        long[] swaps = new long[toFlush.length];
+        List<Long> journaled = null;
+        try {
+            IdentityHashMap<FastPathMap<Object, Object>, Map<Object, Object>> batches = null;
+            for (int i = 0; i < toFlush.length; i++) {
+                Stripe stripe = toFlush[i];
+                IdentityHashMap<FastPathMap<Object, Object>, Map<Object, Object>> pending;
+                synchronized (stripe) {
+                    if (stripe.size == 0) {
+                        continue;
+                    }
+                    pending = stripe.pending;
+                    occupancy.addAndGet(-stripe.size);
+                    stripe.pending = new IdentityHashMap<FastPathMap<Object, Object>, Map<Object, Object>>();
+                    stripe.size = 0;
+                    swaps[i] = ++stripe.swaps;
+                    if (stripe.journaled != null) {
+                        if (journaled == null) {
+                            journaled = stripe.journaled;
+                        } else {
+                            journaled.addAll(stripe.journaled);
+                        }
+                        stripe.journaled = null;
+                    }
+                }
+                if (batches == null) {
+                    batches = pending;
+                    continue;
+                }
+                for (Map.Entry<FastPathMap<Object, Object>, Map<Object, Object>> entry : pending.entrySet()) {
+                    Map<Object, Object> batch = batches.get(entry.getKey());
+                    if (batch == null) {
+                        batches.put(entry.getKey(), entry.getValue());
+                    } else {
+                        batch.putAll(entry.getValue());
+                    }
+                }
+            }
+            if (batches != null) {
+                for (Map.Entry<FastPathMap<Object, Object>, Map<Object, Object>> entry : batches.entrySet()) {
+                    writeBatch(entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            for (int i = toFlush.length - 1; i >= 0; i--) {
+                if (swaps[i] != 0) {
+                    // a write which failed is dropped so it is complete either way
+                    toFlush[i].completed = swaps[i];
+                }
+                toFlush[i].flushLock.unlock();
+            }
+            if (journaled != null) {
+                WriteJournal journal = WriteJournal.getJournal();
+                for (Long sequence : journaled) {
+                    journal.acknowledge(sequence);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeBatch(FastPathMap<Object, Object> map, Map<Object, Object> batch)
+    {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            ((Map<Object, Object>)map).putAll(batch);
+            flushedEntries.addAndGet(batch.size());
+        } catch (Throwable t) {
+            failures.incrementAndGet();
+            System.err.println("Jokre : write behind flush of " + batch.size() + " entries to cache " + cacheName + " failed : " + t);
+            for (Map.Entry<Object, Object> entry : batch.entrySet()) {
+                FastPathFailures.report(cacheName, entry.getKey(), entry.getValue(), t);
+            }
+        }
+        flushes.incrementAndGet();
+        flushLatency.record(System.nanoTime() - start);
+    }
+
+    public String toString()
+    {
+        return "cache " + cacheName + " writes " + writes.get() + " flushed " + flushedEntries.get() +
+                " coalescing " + String.format("%.2f", getCoalescingRatio()) + " occupancy " + occupancy.get() + "/" + capacity +
+                " flushes " + flushes.get() + " failures " + failures.get() + " flush latency " + flushLatency;
+    }
+
+    private static class Stripe
+    {
+        final ReentrantLock flushLock = new ReentrantLock();
+        IdentityHashMap<FastPathMap<Object, Object>, Map<Object, Object>> pending = new IdentityHashMap<FastPathMap<Object, Object>, Map<Object, Object>>();
+        int size = 0;
+        /**
+         * WriteJournal sequence numbers of the pending writes or null if none were journaled
+         */
+        List<Long> journaled = null;
+        /**
+         * the number of times the pending writes have been swapped out for flushing. guarded by the stripe
+         */
+        long swaps = 0;
+        /**
+         * the number of the last swap whose writes have been flushed
+         */
+        volatile long completed = 0;
+    }
+
+    private static class Ticket implements ReadYourWrites.Completion
+    {
+        private final Stripe stripe;
+        private final long swap;
+
+        Ticket(Stripe stripe, long swap)
+        {
+            this.stripe = stripe;
+            this.swap = swap;
+        }
+
+        public boolean isDone()
+        {
+            return stripe.completed >= swap;
+        }
+    }
+}
@@ -0,0 +1,649 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Local append only journal of async and write behind fast path writes. a write is appended before it is
+ * handed to the cache and acknowledged once it has completed, successfully or not. if the JVM dies in
+ * between then the write is replayed, using a synchronous put, the first time its cache takes the fast
+ * path after a restart.
+ *
+ * the journal is written through a memory mapped file so an append costs a copy into the page cache and
+ * survives a crash of the JVM. if JOURNAL_FORCE is set each append also waits for the mapping to be
+ * forced to disk, which makes it survive a crash of the OS. a single thread does the forcing so that
+ * concurrent appends share each force (group commit).
+ *
+ * the journal alternates between two files. when the current file fills up the unacknowledged records
+ * are copied to the other file and its header, which carries a higher epoch, is written last. if they
+ * would not all fit then the current file is kept and the new write is reported as not journaled, so a
+ * write which was given a sequence number is never dropped from the journal. on restart
+ * the file with the highest valid epoch is read. within a file each record is followed by a zero length
+ * marker and carries a checksum so a torn record ends the scan.
+ *
+ * keys and values must be serializable. a write which cannot be journaled is performed synchronously.
+ * note that a replayed write may overwrite a newer value written through another path since the restart.
+ */
+public class WriteJournal
+{
+    /**
+     * system property naming the journal. the files used are this name with suffix .0 and .1
+     */
+    public static final String JOURNAL_FILE = "org.jboss.jokre.journal.file";
+
+    /**
+     * system property specifying the size in bytes of each journal file
+     */
+    public static final String JOURNAL_SIZE = "org.jboss.jokre.journal.size";
+
+    /**
+     * system property set (to any value) to make each append wait until the journal has been forced to disk
+     */
+    public static final String JOURNAL_FORCE = "org.jboss.jokre.journal.force";
+
+    private static final long DEFAULT_SIZE = 64L * 1024 * 1024;
+
+    private static final int MAGIC = 0x4a4b524a;
+    private static final int HEADER_SIZE = 16;
+    private static final byte TYPE_WRITE = 1;
+    private static final byte TYPE_ACK = 2;
+
+    private static final WriteJournal journal = open();
+
+    /**
+     * @return the journal or null if journaling is not enabled
+     */
+    public static WriteJournal getJournal()
+    {
+        return journal;
+    }
+
+    private static WriteJournal open()
+    {
+        String fileName = System.getProperty(JOURNAL_FILE);
+        if (fileName == null) {
+            return null;
+        }
+        long size = DEFAULT_SIZE;
+        String sizeString = System.getProperty(JOURNAL_SIZE);
+        if (sizeString != null) {
+            try {
+                size = Long.parseLong(sizeString);
+            } catch (NumberFormatException nfe) {
+                size = -1;
+            }
+            if (size <= HEADER_SIZE || size > Integer.MAX_VALUE) {
+                System.err.println("Jokre : invalid value for " + JOURNAL_SIZE + " : " + sizeString);
+                size = DEFAULT_SIZE;
+            }
+        }
+        try {
+            return new WriteJournal(fileName, (int)size, System.getProperty(JOURNAL_FORCE) != null);
+        } catch (IOException ioe) {
+            System.err.println("Jokre : unable to open journal " + fileName + " : " + ioe);
+            return null;
+        }
+    }
+
+    private final String fileName;
+    private final int size;
+    private final boolean force;
+    private final RandomAccessFile[] files = new RandomAccessFile[2];
+    private final MappedByteBuffer[] buffers = new MappedByteBuffer[2];
+
+    /**
+     * the index of the file currently appended to, its epoch and the append position. guarded by this
+     */
+    private int current;
+    private long epoch;
+    private int position;
+
+    /**
+     * the bodies of the write records which have not been acknowledged, in sequence order
+     */
+    private final ConcurrentSkipListMap<Long, byte[]> unacknowledged = new ConcurrentSkipListMap<Long, byte[]>();
+
+    /**
+     * unacknowledged records from the previous run indexed by cache name. a record is only removed once
+     * it has been replayed so that it is still copied by a compaction which runs during the replay.
+     * guarded by itself
+     */
+    private final Map<String, List<byte[]>> recovered = new HashMap<String, List<byte[]>>();
+
+    /**
+     * names of the caches whose recovered records are being or have been replayed. guarded by recovered
+     */
+    private final Set<String> replaying = new HashSet<String>();
+
+    private final AtomicLong nextSequence = new AtomicLong(1);
+
+    /**
+     * count of bytes ever appended and of bytes forced to disk, used for group commit. guarded by commitLock
+     */
+    private final Object commitLock = new Object();
+    private long appended = 0;
+    private long committed = 0;
+
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong acknowledgements = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong unjournaled = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    /**
+     * true while the unacknowledged writes are too big to compact. guarded by this
+     */
+    private boolean full = false;
+    private final AtomicLong forces = new AtomicLong();
+
+    private WriteJournal(String fileName, int size, boolean force) throws IOException
+    {
+        this.fileName = fileName;
+        this.size = size;
+        this.force = force;
+        for (int i = 0; i < 2; i++) {
+            files[i] = new RandomAccessFile(new File(fileName + "." + i), "rw");
+            buffers[i] = files[i].getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        recover();
+        if (force) {
+            startCommitter();
+        }
+    }
+
+    /**
+     * append a write
+     * @return the sequence number to acknowledge once the write completes or -1 if the write could not be
+     * journaled, in which case the caller must write synchronously
+     */
+    public long write(String cacheName, Object key, Object value)
+    {
+        byte[] body;
+        long sequence = nextSequence.getAndIncrement();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeByte(TYPE_WRITE);
+            data.writeLong(sequence);
+            data.writeUTF(cacheName);
+            data.flush();
+            ObjectOutputStream objects = new ObjectOutputStream(bytes);
+            objects.writeObject(key);
+            objects.writeObject(value);
+            objects.close();
+            body = bytes.toByteArray();
+        } catch (IOException ioe) {
+            // most likely the key or value is not serializable
+            unjournaled.incrementAndGet();
+            return -1;
+        }
+        if (!append(sequence, body)) {
+            unjournaled.incrementAndGet();
+            return -1;
+        }
+        writes.incrementAndGet();
+        return sequence;
+    }
+
+    /**
+     * record that a journaled write has completed
+     * @param sequence the sequence number returned by write
+     */
+    public void acknowledge(long sequence)
+    {
+        if (unacknowledged.remove(sequence) == null) {
+            return;
+        }
+        acknowledgements.incrementAndGet();
+        appendAcknowledgement(sequence);
+    }
+
+    private void appendAcknowledgement(long sequence)
+    {
+        byte[] body = new byte[9];
+        body[0] = TYPE_ACK;
+        for (int i = 0; i < 8; i++) {
+            body[1 + i] = (byte)(sequence >>> (56 - 8 * i));
+        }
+        // an acknowledgement which is lost only means the write is replayed so there is no need to wait
+        appendNoWait(body);
+    }
+
+    /**
+     * replay the writes to a cache which were journaled but not acknowledged before the last restart. this
+     * is called the first time each cache instance takes the fast path and only replays once per cache name
+     * @param cacheName the cache name
+     * @param map the cache
+     */
+    public void replay(String cacheName, FastPathMap<Object, Object> map)
+    {
+        List<byte[]> bodies;
+        synchronized (recovered) {
+            if (!replaying.add(cacheName)) {
+                return;
+            }
+            bodies = recovered.get(cacheName);
+        }
+        if (bodies == null) {
+            return;
+        }
+        while (true) {
+            byte[] body;
+            synchronized (recovered) {
+                if (bodies.isEmpty()) {
+                    recovered.remove(cacheName);
+                    return;
+                }
+                body = bodies.get(0);
+            }
+            boolean done = false;
+            try {
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+                data.readByte();
+                long sequence = data.readLong();
+                data.readUTF();
+                ObjectInputStream objects = new ReplayInputStream(data, map.getClass().getClassLoader());
+                Object key = objects.readObject();
+                Object value = objects.readObject();
+                map.put$syncNoReturn(key, value);
+                replayed.incrementAndGet();
+                done = true;
+                synchronized (recovered) {
+                    bodies.remove(0);
+                }
+                appendAcknowledgement(sequence);
+            } catch (Exception e) {
+                System.err.println("Jokre : unable to replay journaled write to cache " + cacheName + " : " + e);
+            }
+            if (!done) {
+                // leave the record in the file so that it is retried after the next restart unless a
+                // compaction discards it first
+                synchronized (recovered) {
+                    bodies.remove(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * append a write record and add it to the unacknowledged set
+     * @return false if the record could not be appended
+     */
+    private boolean append(long sequence, byte[] body)
+    {
+        long end;
+        synchronized (this) {
+            if (!appendRecord(body)) {
+                return false;
+            }
+            unacknowledged.put(sequence, body);
+            end = appended(body);
+        }
+        if (force) {
+            awaitCommit(end);
+        }
+        return true;
+    }
+
+    private void appendNoWait(byte[] body)
+    {
+        synchronized (this) {
+            if (appendRecord(body)) {
+                appended(body);
+            }
+        }
+    }
+
+    /**
+     * write a record at the current position, compacting into the other file if there is no room.
+     * the caller must hold this
+     * @return false if there is no room even after compacting
+     */
+    private boolean appendRecord(byte[] body)
+    {
+        if (position + 12 + body.length > size) {
+            if (!compact(body.length)) {
+                return false;
+            }
+        }
+        position = writeRecord(buffers[current], position, body);
+        return true;
+    }
+
+    private long appended(byte[] body)
+    {
+        synchronized (commitLock) {
+            appended += 8 + body.length;
+            commitLock.notifyAll();
+            return appended;
+        }
+    }
+
+    /**
+     * write a record and the following end marker. the length is written last so that a scan which
+     * meets a partly written record finds either the old end marker or a bad checksum
+     * @return the position following the record
+     */
+    private static int writeRecord(MappedByteBuffer buffer, int position, byte[] body)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        buffer.putInt(position + 8 + body.length, 0);
+        buffer.putInt(position + 4, (int)crc.getValue());
+        for (int i = 0; i < body.length; i++) {
+            buffer.put(position + 8 + i, body[i]);
+        }
+        buffer.putInt(position, body.length);
+        return position + 8 + body.length;
+    }
+
+    /**
+     * copy the unacknowledged writes into the other file and switch to it. nothing is copied unless all
+     * the unacknowledged writes fit with room to spare for a following record. the caller must hold this
+     * @param reserve the length of the record body which must fit after the copied records or -1 if no
+     * room is needed
+     * @return true if the journal switched files or false if it kept the current file
+     */
+    private boolean compact(int reserve)
+    {
+        // acknowledgements only ever remove entries and we hold this so no writes can be added while we copy
+        long needed = HEADER_SIZE + 4 + (reserve < 0 ? 0 : 8 + reserve);
+        for (byte[] body : unacknowledged.values()) {
+            needed += 8 + body.length;
+        }
+        synchronized (recovered) {
+            for (List<byte[]> bodies : recovered.values()) {
+                for (byte[] body : bodies) {
+                    needed += 8 + body.length;
+                }
+            }
+            if (needed > size) {
+                overflows.incrementAndGet();
+                if (!full) {
+                    full = true;
+                    System.err.println("Jokre : journal " + fileName + " is full with " + unacknowledged.size() +
+                            " unacknowledged writes. writes will be performed synchronously until it drains");
+                }
+                return false;
+            }
+            if (full) {
+                full = false;
+                System.err.println("Jokre : journal " + fileName + " has drained after " + overflows.get() +
+                        " writes were not journaled");
+            }
+            int next = 1 - current;
+            MappedByteBuffer buffer = buffers[next];
+            // invalidate the other file's header first so it is never mistaken for a complete copy
+            buffer.putInt(0, 0);
+            int nextPosition = HEADER_SIZE;
+            buffer.putInt(nextPosition, 0);
+            for (byte[] body : unacknowledged.values()) {
+                nextPosition = writeRecord(buffer, nextPosition, body);
+            }
+            for (List<byte[]> bodies : recovered.values()) {
+                for (byte[] body : bodies) {
+                    nextPosition = writeRecord(buffer, nextPosition, body);
+                }
+            }
+            switchTo(next, nextPosition);
+            return true;
+        }
+    }
+
+    private void switchTo(int next, int nextPosition)
+    {
+        MappedByteBuffer buffer = buffers[next];
+        buffer.force();
+        writeHeader(buffer, epoch + 1);
+        buffer.force();
+        forces.addAndGet(2);
+        compactions.incrementAndGet();
+        current = next;
+        epoch++;
+        position = nextPosition;
+    }
+
+    private static void writeHeader(MappedByteBuffer buffer, long epoch)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(MAGIC);
+        for (int i = 0; i < 8; i++) {
+            crc.update((int)(epoch >>> (56 - 8 * i)));
+        }
+        buffer.putLong(4, epoch);
+        buffer.putInt(12, (int)crc.getValue());
+        buffer.putInt(0, MAGIC);
+    }
+
+    private static long readEpoch(MappedByteBuffer buffer)
+    {
+        if (buffer.getInt(0) != MAGIC) {
+            return -1;
+        }
+        long epoch = buffer.getLong(4);
+        CRC32 crc = new CRC32();
+        crc.update(MAGIC);
+        for (int i = 0; i < 8; i++) {
+            crc.update((int)(epoch >>> (56 - 8 * i)));
+        }
+        return (buffer.getInt(12) == (int)crc.getValue() ? epoch : -1);
+    }
+
+    /**
+     * load the unacknowledged writes from the newest valid file then start a fresh file containing them
+     */
+    private void recover()
+    {
+        long epoch0 = readEpoch(buffers[0]);
+        long epoch1 = readEpoch(buffers[1]);
+        current = (epoch1 > epoch0 ? 1 : 0);
+        epoch = Math.max(Math.max(epoch0, epoch1), 0);
+        long maxSequence = 0;
+        position = HEADER_SIZE;
+
+        if (epoch0 >= 0 || epoch1 >= 0) {
+            MappedByteBuffer buffer = buffers[current];
+            Map<Long, byte[]> pending = new TreeMap<Long, byte[]>();
+            int scan = HEADER_SIZE;
+            while (scan + 8 <= size) {
+                int length = buffer.getInt(scan);
+                if (length <= 0 || scan + 8 + length > size) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    body[i] = buffer.get(scan + 8 + i);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if (buffer.getInt(scan + 4) != (int)crc.getValue() || length < 9) {
+                    break;
+                }
+                long sequence = 0;
+                for (int i = 0; i < 8; i++) {
+                    sequence = (sequence << 8) | (body[1 + i] & 0xff);
+                }
+                maxSequence = Math.max(maxSequence, sequence);
+                if (body[0] == TYPE_WRITE) {
+                    pending.put(sequence, body);
+                } else {
+                    pending.remove(sequence);
+                }
+                scan += 8 + length;
+            }
+            // if the compaction below fails we carry on appending to this file
+            position = scan;
+            for (byte[] body : pending.values()) {
+                try {
+                    DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+                    data.skipBytes(9);
+                    String cacheName = data.readUTF();
+                    List<byte[]> bodies = recovered.get(cacheName);
+                    if (bodies == null) {
+                        bodies = new ArrayList<byte[]>();
+                        recovered.put(cacheName, bodies);
+                    }
+                    bodies.add(body);
+                } catch (IOException ioe) {
+                    // cannot happen as the checksum matched
+                }
+            }
+        }
+
+        nextSequence.set(maxSequence + 1);
+        // carry the recovered writes into a fresh file so they stay journaled until they are replayed.
+        // they were read from a file of the same size without the acknowledged records so they fit
+        if (!compact(-1)) {
+            System.err.println("Jokre : unable to compact recovered journal " + fileName);
+        }
+    }
+
+    private void awaitCommit(long end)
+    {
+        synchronized (commitLock) {
+            while (committed < end) {
+                try {
+                    commitLock.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void startCommitter()
+    {
+        Thread committer = new Thread("Jokre journal committer")
+        {
+            public void run()
+            {
+                while (true) {
+                    long target;
+                    synchronized (commitLock) {
+                        while (committed >= appended) {
+                            try {
+                                commitLock.wait();
+                            } catch (InterruptedException ie) {
+                                // ignore
+                            }
+                        }
+                        target = appended;
+                    }
+                    // a compaction may switch files while we force so force both. forcing a clean
+                    // mapping is cheap
+                    buffers[0].force();
+                    buffers[1].force();
+                    forces.incrementAndGet();
+                    synchronized (commitLock) {
+                        committed = target;
+                        commitLock.notifyAll();
+                    }
+                }
+            }
+        };
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    public String toString()
+    {
+        int recoveredCount = 0;
+        synchronized (recovered) {
+            for (List<byte[]> bodies : recovered.values()) {
+                recoveredCount += bodies.size();
+            }
+        }
+        return "journal " + fileName + " writes " + writes.get() + " acknowledged " + acknowledgements.get() +
+                " outstanding " + unacknowledged.size() + " awaiting replay " + recoveredCount + " replayed " + replayed.get() +
+                " unjournaled " + unjournaled.get() + " compactions " + compactions.get() + " full " + overflows.get() +
+                " forces " + forces.get();
+    }
+
+    public static void report(PrintStream out)
+    {
+        if (journal != null) {
+            out.println("  " + journal);
+        }
+    }
+
+    /**
+     * object stream which resolves classes using the loader of the cache being replayed into as well as
+     * the usual loader
+     */
+    private static class ReplayInputStream extends ObjectInputStream
+    {
+        private final ClassLoader loader;
+
+        ReplayInputStream(InputStream in, ClassLoader loader) throws IOException
+        {
+            super(in);
+            this.loader = loader;
+        }
+
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+        {
+            try {
+                return super.resolveClass(desc);
+            } catch (ClassNotFoundException cnfe) {
+                ClassLoader contextLoader = Thread.currentThread().getContextClassLoader();
+                if (contextLoader != null) {
+                    try {
+                        return Class.forName(desc.getName(), false, contextLoader);
+                    } catch (ClassNotFoundException e) {
+                        // fall through
+                    }
+                }
+                if (loader != null) {
+                    return Class.forName(desc.getName(), false, loader);
+                }
+                throw cnfe;
+            }
+        }
+    }
+}
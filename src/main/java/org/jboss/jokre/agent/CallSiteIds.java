@@ -0,0 +1,211 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.agent;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Interns class name, loader id and method name triples as dense int ids so that update sets can keep
+ * their per entry state in arrays indexed by id rather than in maps keyed by concatenated class#method
+ * strings. the ids are shared by every update set so entries can be moved between sets by id.
+ *
+ * lookups take no lock and allocate nothing. the table is open addressed and each slot holds an id plus
+ * one, with 0 marking an empty slot. an id is only stored in its slot after its names have been written
+ * so a reader which sees the id also sees the names. inserts synchronize on the table owner and replace
+ * the table when it is half full. ids are never reused. the names of an id belonging to a collected
+ * loader are cleared by release so that they can no longer match.
+ */
+public class CallSiteIds
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+
+    /**
+     * the number of ids allocated. guarded by this
+     */
+    private int count = 0;
+
+    /**
+     * find the id of an entry
+     * @param className the class name in external format
+     * @param loaderId the id of the defining loader or ANY_LOADER
+     * @param methodName the method name
+     * @return the id or -1 if the entry has not been interned
+     */
+    public int lookup(String className, int loaderId, String methodName)
+    {
+        return table.lookup(className, loaderId, methodName, hash(className, loaderId, methodName));
+    }
+
+    /**
+     * find the id of an entry, allocating one if it has not yet been interned
+     * @param className the class name in external format
+     * @param loaderId the id of the defining loader or ANY_LOADER
+     * @param methodName the method name
+     * @return the id
+     */
+    public int intern(String className, int loaderId, String methodName)
+    {
+        int hash = hash(className, loaderId, methodName);
+        int id = table.lookup(className, loaderId, methodName, hash);
+        if (id >= 0) {
+            return id;
+        }
+        synchronized (this) {
+            id = table.lookup(className, loaderId, methodName, hash);
+            if (id >= 0) {
+                return id;
+            }
+            if (count == table.classNames.length) {
+                table = table.resize(count);
+            }
+            id = count++;
+            table.insert(id, className, loaderId, methodName, hash);
+            return id;
+        }
+    }
+
+    /**
+     * @return one more than the highest id allocated so far
+     */
+    public synchronized int size()
+    {
+        return count;
+    }
+
+    /**
+     * @return the class name of an id or null if it has been released
+     */
+    public String className(int id)
+    {
+        return table.classNames[id];
+    }
+
+    /**
+     * @return the loader id of an id
+     */
+    public int loaderId(int id)
+    {
+        return table.loaderIds[id];
+    }
+
+    /**
+     * @return the method name of an id or null if it has been released
+     */
+    public String methodName(int id)
+    {
+        return table.methodNames[id];
+    }
+
+    /**
+     * @return the class key, i.e. class name qualified by loader id, of an id
+     */
+    public String classKey(int id)
+    {
+        Table current = table;
+        return ClassLoaderRegistry.classKey(current.classNames[id], current.loaderIds[id]);
+    }
+
+    /**
+     * clear the names of every id belonging to a collected loader so that they can be garbage collected.
+     * the ids stay allocated but will never match a lookup again
+     * @param loaderIds the ids of the collected loaders
+     */
+    public synchronized void release(List<Integer> loaderIds)
+    {
+        Table current = table;
+        for (int id = 0; id < count; id++) {
+            if (loaderIds.contains(current.loaderIds[id])) {
+                current.classNames[id] = null;
+                current.methodNames[id] = null;
+            }
+        }
+    }
+
+    private static int hash(String className, int loaderId, String methodName)
+    {
+        int hash = (className.hashCode() * 31 + methodName.hashCode()) * 31 + loaderId;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static class Table
+    {
+        final AtomicIntegerArray slots;
+        final String[] classNames;
+        final int[] loaderIds;
+        final String[] methodNames;
+        final int[] hashes;
+
+        Table(int capacity)
+        {
+            slots = new AtomicIntegerArray(capacity);
+            // keep the table at most half full
+            classNames = new String[capacity / 2];
+            loaderIds = new int[capacity / 2];
+            methodNames = new String[capacity / 2];
+            hashes = new int[capacity / 2];
+        }
+
+        int lookup(String className, int loaderId, String methodName, int hash)
+        {
+            int mask = slots.length() - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int slot = slots.get(i);
+                if (slot == 0) {
+                    return -1;
+                }
+                int id = slot - 1;
+                if (hashes[id] == hash && loaderIds[id] == loaderId &&
+                        methodName.equals(methodNames[id]) && className.equals(classNames[id])) {
+                    return id;
+                }
+            }
+        }
+
+        void insert(int id, String className, int loaderId, String methodName, int hash)
+        {
+            classNames[id] = className;
+            loaderIds[id] = loaderId;
+            methodNames[id] = methodName;
+            hashes[id] = hash;
+            int mask = slots.length() - 1;
+            int i = hash & mask;
+            while (slots.get(i) != 0) {
+                i = (i + 1) & mask;
+            }
+            // publish the id last so that readers see its names
+            slots.set(i, id + 1);
+        }
+
+        Table resize(int count)
+        {
+            Table resized = new Table(slots.length() * 2);
+            for (int id = 0; id < count; id++) {
+                resized.insert(id, classNames[id], loaderIds[id], methodNames[id], hashes[id]);
+            }
+            return resized;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A profile file listing the class#method entries whose call sites were transformed in an earlier run.
+ * the file holds one entry per line. blank lines and lines starting with '#' are ignored.
+ */
+public class CallSiteProfile
+{
+    private File file;
+
+    public CallSiteProfile(File file)
+    {
+        this.file = file;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * read the entries recorded in the profile
+     * @return a list of class#method entries which is empty if the file does not exist or cannot be read
+     */
+    public List<String> load()
+    {
+        List<String> entries = new ArrayList<String>();
+
+        if (!file.isFile()) {
+            return entries;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("#")) {
+                        continue;
+                    }
+                    // ignore anything which does not look like an entry
+                    int hashIdx = line.indexOf('#');
+                    if (hashIdx > 0 && hashIdx < line.length() - 1) {
+                        entries.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ioe) {
+            System.err.println("CallSiteProfile : Error reading profile " + file);
+        }
+
+        return entries;
+    }
+
+    /**
+     * write the supplied entries to the profile replacing any existing contents. the entries are written
+     * to a temporary file which is then renamed so a crash never leaves a truncated profile
+     * @param entries the class#method entries to record
+     * @return true if the profile was written otherwise false
+     */
+    public boolean save(List<String> entries)
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+            try {
+                writer.write("# Jokre call site profile\n");
+                for (String entry : entries) {
+                    writer.write(entry);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+            // renameTo will not replace an existing file on all platforms
+            if (!tmpFile.renameTo(file)) {
+                file.delete();
+                if (!tmpFile.renameTo(file)) {
+                    System.err.println("CallSiteProfile : Unable to install profile " + file);
+                    return false;
+                }
+            }
+            tmpFile = null;
+            return true;
+        } catch (IOException ioe) {
+            System.err.println("CallSiteProfile : Error writing profile " + file);
+            return false;
+        } finally {
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.agent;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Registry assigning an id to each class loader whose classes notify the agent. update set entries are
+ * keyed by class name plus loader id so that only the copy of a class which notified is retransformed
+ * when several loaders define classes with the same name. loaders are only weakly referenced so the
+ * registry does not stop deployments from being unloaded. the ids of collected loaders can be drained
+ * so that their entries can be purged.
+ */
+public class ClassLoaderRegistry
+{
+    /**
+     * id used for entries which apply to every loader, for example those preloaded from a profile
+     */
+    public static final int ANY_LOADER = -1;
+
+    /**
+     * id used for the bootstrap loader which is never collected
+     */
+    public static final int BOOTSTRAP_LOADER = 0;
+
+    private final Map<ClassLoader, LoaderRef> refs = new WeakHashMap<ClassLoader, LoaderRef>();
+    private final ReferenceQueue<ClassLoader> collected = new ReferenceQueue<ClassLoader>();
+    private int nextId = BOOTSTRAP_LOADER + 1;
+
+    /**
+     * find or assign the id for a loader
+     * @param loader the loader or null for the bootstrap loader
+     * @return the loader's id
+     */
+    public synchronized int idOf(ClassLoader loader)
+    {
+        if (loader == null) {
+            return BOOTSTRAP_LOADER;
+        }
+        LoaderRef ref = refs.get(loader);
+        if (ref == null) {
+            ref = new LoaderRef(loader, nextId++, collected);
+            refs.put(loader, ref);
+        }
+        return ref.id;
+    }
+
+    /**
+     * find the id for a loader without assigning one
+     * @param loader the loader or null for the bootstrap loader
+     * @return the loader's id or ANY_LOADER if it has not been assigned one, in which case only entries
+     * which apply to every loader can match its classes
+     */
+    public synchronized int existingIdOf(ClassLoader loader)
+    {
+        if (loader == null) {
+            return BOOTSTRAP_LOADER;
+        }
+        LoaderRef ref = refs.get(loader);
+        return (ref != null ? ref.id : ANY_LOADER);
+    }
+
+    /**
+     * @return the ids of loaders which have been collected since the last call or null if there are none
+     */
+    public List<Integer> drainCollected()
+    {
+        List<Integer> ids = null;
+        Reference<? extends ClassLoader> ref;
+        while ((ref = collected.poll()) != null) {
+            if (ids == null) {
+                ids = new ArrayList<Integer>();
+            }
+            ids.add(((LoaderRef)ref).id);
+        }
+        return ids;
+    }
+
+    /**
+     * @return the number of live loaders which have been assigned an id
+     */
+    public synchronized int size()
+    {
+        return refs.size();
+    }
+
+    /**
+     * qualify a class name with a loader id
+     * @param className the class name in external format
+     * @param loaderId the loader id
+     * @return the class key used to index update sets. the key for ANY_LOADER is the bare class name
+     */
+    public static String classKey(String className, int loaderId)
+    {
+        return (loaderId == ANY_LOADER ? className : className + "@" + loaderId);
+    }
+
+    /**
+     * @param classKey a class key
+     * @return the class name part of the key
+     */
+    public static String className(String classKey)
+    {
+        int atIdx = classKey.indexOf('@');
+        return (atIdx < 0 ? classKey : classKey.substring(0, atIdx));
+    }
+
+    /**
+     * @param classKey a class key
+     * @return the loader id part of the key
+     */
+    public static int loaderId(String classKey)
+    {
+        int atIdx = classKey.indexOf('@');
+        return (atIdx < 0 ? ANY_LOADER : Integer.parseInt(classKey.substring(atIdx + 1)));
+    }
+
+    private static class LoaderRef extends WeakReference<ClassLoader>
+    {
+        final int id;
+
+        LoaderRef(ClassLoader loader, int id, ReferenceQueue<ClassLoader> queue)
+        {
+            super(loader, queue);
+            this.id = id;
+        }
+    }
+}
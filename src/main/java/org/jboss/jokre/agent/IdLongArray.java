@@ -0,0 +1,95 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.agent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Array of longs indexed by CallSiteIds id which grows as ids are allocated. storage is allocated in
+ * chunks on the first write to an id in the chunk so an array which only records a few ids stays small
+ * and growth never copies values. reads take no lock and see 0 for an id which has never been written.
+ */
+public class IdLongArray
+{
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * stands in for an unallocated chunk when 0 is written. it is never written with anything else
+     */
+    private static final AtomicLongArray EMPTY = new AtomicLongArray(CHUNK_SIZE);
+
+    /**
+     * the chunk directory. it is replaced rather than updated so readers always see initialised chunks
+     */
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+    public long get(int id)
+    {
+        AtomicLongArray[] current = chunks;
+        int index = id >>> CHUNK_BITS;
+        if (index >= current.length || current[index] == null) {
+            return 0;
+        }
+        return current[index].get(id & CHUNK_MASK);
+    }
+
+    public void set(int id, long value)
+    {
+        chunk(id, value != 0).set(id & CHUNK_MASK, value);
+    }
+
+    public boolean compareAndSet(int id, long expect, long update)
+    {
+        return chunk(id, expect != 0 || update != 0).compareAndSet(id & CHUNK_MASK, expect, update);
+    }
+
+    /**
+     * @return the chunk holding an id, allocating it if necessary, or a shared empty chunk if none has
+     * been allocated and create is false
+     */
+    private AtomicLongArray chunk(int id, boolean create)
+    {
+        AtomicLongArray[] current = chunks;
+        int index = id >>> CHUNK_BITS;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        if (!create) {
+            return EMPTY;
+        }
+        synchronized (this) {
+            current = chunks;
+            if (index < current.length && current[index] != null) {
+                return current[index];
+            }
+            AtomicLongArray[] replacement = new AtomicLongArray[Math.max(current.length, index + 1)];
+            System.arraycopy(current, 0, replacement, 0, current.length);
+            AtomicLongArray chunk = new AtomicLongArray(CHUNK_SIZE);
+            replacement[index] = chunk;
+            chunks = replacement;
+            return chunk;
+        }
+    }
+}
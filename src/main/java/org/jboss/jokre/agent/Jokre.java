@@ -22,20 +22,118 @@
 */
 package org.jboss.jokre.agent;
 
+import org.jboss.jokre.CallSiteCounters;
+import org.jboss.jokre.FastPathPolicy;
+import org.jboss.jokre.LatencyHistograms;
+import org.jboss.jokre.NearCache;
+import org.jboss.jokre.NonReturnMapBridge;
+import org.jboss.jokre.WriteBehindBuffer;
+import org.jboss.jokre.WriteJournal;
 import org.jboss.jokre.transformer.JokreTransformer;
 import org.jboss.jokre.transformer.MapAdapterConstants;
+import org.jboss.jokre.transformer.TransformCache;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Jokre agent transformer used to retransform call sites for Map.put calls so that they call an optimized method instead
  */
 public class Jokre implements ClassFileTransformer
 {
+    /**
+     * system property naming a file used to record transformed call sites at shutdown and replay them at startup
+     */
+    public static final String PROFILE_FILE = JokreTransformer.JOKRE_PACKAGE_PREFIX + "profile.file";
+
+    /**
+     * system property set (to any value) in order to stop the agent registering its statistics MBean
+     */
+    public static final String JMX_DISABLED = JokreTransformer.JOKRE_PACKAGE_PREFIX + "jmx.disabled";
+
+    /**
+     * system property naming a file to which statistics are periodically appended as JSON lines
+     */
+    public static final String STATS_FILE = JokreTransformer.JOKRE_PACKAGE_PREFIX + "stats.file";
+
+    /**
+     * system property specifying the interval in milliseconds between statistics exports
+     */
+    public static final String STATS_INTERVAL = JokreTransformer.JOKRE_PACKAGE_PREFIX + "stats.interval";
+
+    /**
+     * default interval between statistics exports
+     */
+    private static final long DEFAULT_STATS_INTERVAL = 10000L;
+
+    /**
+     * system property specifying that 1 in every N Map.put notifications is reported to the event listener
+     */
+    public static final String EVENTS_NOTIFY_SAMPLE = JokreTransformer.JOKRE_PACKAGE_PREFIX + "events.notify.sample";
+
+    /**
+     * default sample rate for notifications reported to the event listener
+     */
+    private static final int DEFAULT_EVENTS_NOTIFY_SAMPLE = 64;
+
+    /**
+     * system property specifying the fraction of calls at a transformed site which must go to a plain Map
+     * rather than a NonReturnMap before the site is reverted to a plain put call. setting this property
+     * enables call site counting
+     */
+    public static final String DETRANSFORM_THRESHOLD = JokreTransformer.JOKRE_PACKAGE_PREFIX + "detransform.threshold";
+
+    /**
+     * system property specifying the number of calls a site must make before it is considered for reverting
+     */
+    public static final String DETRANSFORM_MIN_CALLS = JokreTransformer.JOKRE_PACKAGE_PREFIX + "detransform.min.calls";
+
+    /**
+     * system property specifying the interval in milliseconds between checks for sites to revert
+     */
+    public static final String DETRANSFORM_INTERVAL = JokreTransformer.JOKRE_PACKAGE_PREFIX + "detransform.interval";
+
+    private static final long DEFAULT_DETRANSFORM_MIN_CALLS = 10000L;
+    private static final long DEFAULT_DETRANSFORM_INTERVAL = 5000L;
+
+    /**
+     * system property specifying the number of worker threads used to transform a batch of classes before
+     * they are retransformed. 0 disables the workers so that classes are transformed during the retransform
+     */
+    public static final String TRANSFORM_THREADS = JokreTransformer.JOKRE_PACKAGE_PREFIX + "transform.threads";
+
+    private static final int MAX_DEFAULT_TRANSFORM_THREADS = 4;
+
+    /**
+     * number of frames above the put caller which are examined for wrapper callers
+     */
+    private static final int MAX_WRAPPER_DEPTH = 4;
+
+    /**
+     * number of distinct callers recorded for any one wrapper method
+     */
+    private static final int MAX_WRAPPER_CALLERS = 16;
+
+    /**
+     * prefix used to mark excluded call sites in the profile file
+     */
+    private static final String EXCLUDED_SITE_PREFIX = "!";
+
     // public API
 
     /**
@@ -45,36 +143,133 @@ public class Jokre implements ClassFileTransformer
      */
     public static boolean notifyMapPut()
     {
+        if (theJokre == null) {
+            // implementor classes may have been woven offline and then run without the agent. in that
+            // case there is nobody to retransform the caller so just carry on with the normal put
+            return false;
+        }
+
+        if (theJokre.lateAttach && NonReturnMapBridge.isNotifySuppressed()) {
+            // the bridge is calling put on behalf of a call site which has already been transformed
+            return false;
+        }
+
+        // n.b. the stack trace is obtained in this method so that the put and its caller are at fixed depths
+
+        JokreEventListener listener = theJokre.eventListener;
+        boolean sampled = (listener != null && theJokre.sampleNotification());
+        Object token = (sampled ? listener.notifyBegin() : null);
+        String callerClass = null;
+        String callerMethod = null;
+        boolean added = false;
+
+        try {
+            Thread currentThread =  Thread.currentThread();
+            StackTraceElement[] stackTrace = currentThread.getStackTrace();
+            // n.b. the class context is also obtained here so that its entries line up with the stack trace
+            Class<?>[] classContext = callerContext.classContext();
+            // we should get called from a Map.put implementation and we want to replace its caller
+            int length = stackTrace.length;
+            if (length < 4) {
+                throw new InvalidNotifyException("notifyMapPut must be called below Map.put call site");
+            }
+            StackTraceElement putCall = stackTrace[2];
+
+            if (putCall.getMethodName() != "put") {
+                throw new InvalidNotifyException("notifyMapPut must be called from Map.put implementation");
+            }
+
+            StackTraceElement putCaller = stackTrace[3];
+
+            if (putCaller.isNativeMethod()) {
+                System.err.println("oops put called via native code!!!");
+                // hmm, this would be a call site we cannot modify. this should never happen!
+                return false;
+            }
+
+            callerClass = putCaller.getClassName();
+            callerMethod = putCaller.getMethodName();
+
+            int loaderId = theJokre.loaderIdOf(classContext, 3, callerClass);
+
+            added = theJokre.addToStaging(callerClass, loaderId, callerMethod);
+
+            if (theJokre.followWrappers) {
+                theJokre.recordWrapperCallers(stackTrace, classContext);
+            }
+
+            return added;
+        } finally {
+            if (sampled) {
+                listener.notifyEnd(token, callerClass, callerMethod, added);
+            }
+        }
+    }
+
+    /**
+     * if the cache is near cached then validate that the caller is a get method and add the classname and
+     * method name of its caller to the Jokre agent's update set so that its get call sites are redirected
+     * to the NearCache
+     * @param map the cache whose get method is calling
+     * @return true if the caller has not yet been added to the update set or false if it has been added
+     * or the cache is not near cached
+     */
+    public static boolean notifyMapGet(Object map)
+    {
+        if (theJokre == null || !NearCache.isNearCached(map)) {
+            return false;
+        }
+
+        // n.b. the stack trace is obtained in this method so that the get and its caller are at fixed depths
 
         Thread currentThread =  Thread.currentThread();
         StackTraceElement[] stackTrace = currentThread.getStackTrace();
-        // we should get called from a Map.put implementation and we want to replace its caller
+        Class<?>[] classContext = callerContext.classContext();
         int length = stackTrace.length;
         if (length < 4) {
-            throw new InvalidNotifyException("notifyMapPut must be called below Map.put call site");
+            throw new InvalidNotifyException("notifyMapGet must be called below Map.get call site");
         }
-        StackTraceElement putCall = stackTrace[2];
+        StackTraceElement getCall = stackTrace[2];
 
-        if (putCall.getMethodName() != "put") {
-            throw new InvalidNotifyException("notifyMapPut must be called from Map.put implementation");
+        if (getCall.getMethodName() != "get") {
+            throw new InvalidNotifyException("notifyMapGet must be called from Map.get implementation");
         }
 
-        StackTraceElement putCaller = stackTrace[3];
+        StackTraceElement getCaller = stackTrace[3];
 
-        if (putCaller.isNativeMethod()) {
-            System.err.println("oops put called via native code!!!");
-            // hmm, this would be a call site we cannot modify. this should never happen!
+        if (getCaller.isNativeMethod()) {
+            // a reflective call. there is no call site we can modify
             return false;
         }
 
-        String callerClass = putCaller.getClassName();
-        String callerMethod = putCaller.getMethodName();
+        String callerClass = getCaller.getClassName();
+        int loaderId = theJokre.loaderIdOf(classContext, 3, callerClass);
 
-        if (theJokre == null) {
-            System.err.println("Jokre java agent is not installed!!!");
-        }
+        return theJokre.addToStaging(callerClass, loaderId, getCaller.getMethodName());
+    }
 
-        return theJokre.addToStaging(callerClass, callerMethod);
+    /**
+     * write the class#method entries which have been transformed so far to the profile file so that
+     * the next run can transform them when their classes are first loaded
+     * @return true if the profile was written or false if no profile file is configured or the write failed
+     */
+    public static boolean saveProfile()
+    {
+        if (theJokre == null || theJokre.profile == null) {
+            return false;
+        }
+        List<String> entries = theJokre.updated.classMethodNames();
+        // loader ids are only meaningful in this run so, like the update set entries, excluded sites are
+        // saved with their loader id removed and apply to every loader when the profile is next loaded
+        HashSet<String> siteKeys = new HashSet<String>();
+        for (String siteKey : theJokre.jokreTransformer.getExcludedSites()) {
+            int hashIdx = siteKey.indexOf('#');
+            siteKeys.add(ClassLoaderRegistry.className(siteKey.substring(0, hashIdx)) + siteKey.substring(hashIdx));
+        }
+        for (String siteKey : siteKeys) {
+            entries.add(EXCLUDED_SITE_PREFIX + siteKey);
+        }
+        return theJokre.profile.save(entries);
     }
 
     /**
@@ -87,6 +282,34 @@ public class Jokre implements ClassFileTransformer
         theJokre.staging.stats();
         System.out.println("Updates");
         theJokre.updated.stats();
+        System.out.println("class loaders:   " + theJokre.loaders.size());
+        if (CallSiteCounters.getSiteCount() > 0) {
+            System.out.println("Call sites");
+            CallSiteCounters.report(System.out);
+        }
+        List<String> policies = FastPathPolicy.describe();
+        if (!policies.isEmpty()) {
+            System.out.println("Fast path policies");
+            FastPathPolicy.report(System.out);
+        }
+        List<String> buffers = WriteBehindBuffer.describe();
+        if (!buffers.isEmpty()) {
+            System.out.println("Write behind buffers");
+            WriteBehindBuffer.report(System.out);
+        }
+        List<String> nearCaches = NearCache.describe();
+        if (!nearCaches.isEmpty()) {
+            System.out.println("Near caches");
+            NearCache.report(System.out);
+        }
+        if (WriteJournal.getJournal() != null) {
+            System.out.println("Write journal");
+            WriteJournal.report(System.out);
+        }
+        if (!LatencyHistograms.isEmpty()) {
+            System.out.println("Latencies");
+            LatencyHistograms.report(System.out);
+        }
     }
 
     // public constructor for use by Jokre Main class
@@ -95,6 +318,16 @@ public class Jokre implements ClassFileTransformer
     // an instance reflectively, thus ensuring it uses the correct version of this class.
 
     public Jokre(Instrumentation inst)
+    {
+        this(inst, false);
+    }
+
+    /**
+     * create the Jokre agent
+     * @param inst the instrumentation object supplied to the agent
+     * @param attached true if the agent was attached to a running JVM rather than loaded on the command line
+     */
+    public Jokre(Instrumentation inst, boolean attached)
     {
         synchronized (Jokre.class) {
             if (theJokre != null) {
@@ -103,23 +336,270 @@ public class Jokre implements ClassFileTransformer
             theJokre =  this;
         }
         this.inst = inst;
-        checkInfinispan();
-        jokreTransformer = new JokreTransformer();
+        lateAttach = checkInfinispan(attached);
+        computeDetransformSettings();
+        boolean countCallSites = (detransformThreshold > 0 || System.getProperty(JokreTransformer.COUNT_CALL_SITES) != null);
+        jokreTransformer = new JokreTransformer(lateAttach, countCallSites);
+        followWrappers = jokreTransformer.isFollowingWrappers();
+        precomputer = createPrecomputer();
+        loadProfile();
+        jokreStats = new JokreStats(staging, updated, counters);
+        notifySampleRate = computeNotifySampleRate();
+        eventListener = loadEventListener();
+        startStatsExporter();
         jokreThread = new JokreThread(this);
         jokreThread.start();
     }
 
+    /**
+     * when the agent has been attached after infinispan was loaded retransform the loaded Map implementor
+     * classes so that their put methods notify the agent. this must be called once the agent has been
+     * installed as a transformer
+     */
+    public void retransformImplementors()
+    {
+        if (!lateAttach) {
+            return;
+        }
+
+        List<Class<?>> implementors = new ArrayList<Class<?>>();
+        for (Class<?> clazz : inst.getAllLoadedClasses()) {
+            if (isMapImplementorClass(clazz.getName().replace('.', '/'))) {
+                implementors.add(clazz);
+            }
+        }
+
+        for (Class<?> clazz : implementors) {
+            try {
+                inst.retransformClasses(clazz);
+                counters.retransformSuccesses.incrementAndGet();
+            } catch (Exception e) {
+                counters.retransformFailures.incrementAndGet();
+                if (eventListener != null) {
+                    eventListener.retransformFailed(clazz.getName(), e);
+                }
+                // call sites invoking this class will never be notified so will not be optimized
+                System.err.println("Jokre : unable to retransform Map implementor " + clazz.getName() + " : " + e);
+            }
+        }
+    }
+
     // protected API for use by background thread
 
     protected void runJokre()
     {
+        // register from the agent thread rather than during premain so we do not bootstrap
+        // JMX before the application has had a chance to configure it
+
+        registerMBean();
+
         while (true) {
-            waitForUpdates();
-            UpdateSet diffs = staging.transfer(updated);
-            List<String> classNames = diffs.classNames();
+            if (detransformThreshold > 0) {
+                // wake up periodically to look for sites which should be reverted
+                staging.waitForUpdates(detransformInterval);
+                if (staging.getEntryCount() > 0) {
+                    transferUpdates();
+                }
+                detransformSites();
+            } else {
+                waitForUpdates();
+                transferUpdates();
+            }
+            if (followWrappers) {
+                followWrappers();
+            }
+        }
+    }
+
+    /**
+     * move newly notified entries from the staging set to the updated set and retransform their classes
+     */
+    private void transferUpdates()
+    {
+        purgeCollectedLoaders();
+        Object token = (eventListener != null ? eventListener.transferBegin() : null);
+        UpdateSet diffs = staging.transfer(updated);
+        List<String> classNames = diffs.classNames();
+        if (classNames != null) {
+            retransform(classNames);
+        }
+        if (eventListener != null) {
+            eventListener.transferEnd(token, (classNames != null ? classNames.size() : 0), diffs.getEntryCount());
+        }
+    }
+
+    /**
+     * arrange for the recorded callers of newly transformed wrapper methods to tell the wrapper when they
+     * discard its result. a caller which has already been transformed is retransformed straight away and
+     * may turn out to be a wrapper itself. other callers are staged so they are transformed on the next pass
+     */
+    private void followWrappers()
+    {
+        List<String> wrappers = jokreTransformer.drainWrappers();
+
+        while (!wrappers.isEmpty()) {
+            List<String> classNames = null;
+            for (String wrapper : wrappers) {
+                Set<String> callers = wrapperCallers.get(wrapper);
+                if (callers == null) {
+                    continue;
+                }
+                String wrapperName = wrapper.substring(wrapper.indexOf('#') + 1);
+                for (String caller : callers) {
+                    int hashIdx = caller.indexOf('#');
+                    String callerKey = caller.substring(0, hashIdx);
+                    String callerClass = ClassLoaderRegistry.className(callerKey);
+                    int loaderId = ClassLoaderRegistry.loaderId(callerKey);
+                    String callerMethod = caller.substring(hashIdx + 1);
+                    if (!jokreTransformer.addWrapperCall(callerClass.replace('.', '/'), callerMethod, wrapperName)) {
+                        continue;
+                    }
+                    counters.wrapperCalls.incrementAndGet();
+                    if (!updated.contains(callerClass, loaderId, callerMethod)) {
+                        addToStaging(callerClass, loaderId, callerMethod);
+                    } else {
+                        if (classNames == null) {
+                            classNames = new ArrayList<String>();
+                        }
+                        if (!classNames.contains(callerKey)) {
+                            classNames.add(callerKey);
+                        }
+                    }
+                }
+            }
             if (classNames != null) {
                 retransform(classNames);
             }
+            wrappers = jokreTransformer.drainWrappers();
+        }
+    }
+
+    /**
+     * record the callers of the methods on the stack above a put caller in case the put caller turns
+     * out to be a wrapper which returns the put result. callers are recorded as class key#method
+     * @param stackTrace the stack captured by notifyMapPut
+     * @param classContext the class context captured by notifyMapPut
+     */
+    private void recordWrapperCallers(StackTraceElement[] stackTrace, Class<?>[] classContext)
+    {
+        int limit = Math.min(stackTrace.length - 1, 3 + MAX_WRAPPER_DEPTH);
+        for (int i = 3; i < limit; i++) {
+            StackTraceElement caller = stackTrace[i + 1];
+            if (caller.isNativeMethod() || isReflectionClass(caller.getClassName())) {
+                // we cannot transform these and there is no point looking beyond them
+                return;
+            }
+            String wrapper = stackTrace[i].getClassName() + "#" + stackTrace[i].getMethodName();
+            Set<String> callers = wrapperCallers.get(wrapper);
+            if (callers == null) {
+                Set<String> newCallers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                callers = wrapperCallers.putIfAbsent(wrapper, newCallers);
+                if (callers == null) {
+                    callers = newCallers;
+                }
+            }
+            if (callers.size() < MAX_WRAPPER_CALLERS) {
+                String callerClass = caller.getClassName();
+                String callerKey = ClassLoaderRegistry.classKey(callerClass, loaderIdOf(classContext, i + 1, callerClass));
+                callers.add(callerKey + "#" + caller.getMethodName());
+            }
+        }
+    }
+
+    /**
+     * identify the loader of a class on the stack
+     * @param classContext the class context captured by notifyMapPut
+     * @param index the index of the class's frame in the stack trace captured alongside the class context
+     * @param className the name of the class in external format
+     * @return the loader's id or ANY_LOADER if the class cannot be found in the context
+     */
+    private int loaderIdOf(Class<?>[] classContext, int index, String className)
+    {
+        Class<?> clazz = null;
+        if (index < classContext.length && classContext[index].getName().equals(className)) {
+            clazz = classContext[index];
+        } else {
+            // the frames did not line up so fall back to the first class with the right name
+            for (Class<?> candidate : classContext) {
+                if (candidate.getName().equals(className)) {
+                    clazz = candidate;
+                    break;
+                }
+            }
+        }
+        if (clazz == null) {
+            // retransforming every class with this name is safe if wasteful
+            return ClassLoaderRegistry.ANY_LOADER;
+        }
+        return loaders.idOf(clazz.getClassLoader());
+    }
+
+    /**
+     * drop the entries and recorded wrapper callers belonging to class loaders which have been collected
+     */
+    private void purgeCollectedLoaders()
+    {
+        List<Integer> loaderIds = loaders.drainCollected();
+        if (loaderIds == null) {
+            return;
+        }
+        int count = updated.purge(loaderIds) + staging.purge(loaderIds);
+        callSiteIds.release(loaderIds);
+        jokreTransformer.releaseExcludedSites(loaderIds);
+        for (Set<String> callers : wrapperCallers.values()) {
+            Iterator<String> iterator = callers.iterator();
+            while (iterator.hasNext()) {
+                String caller = iterator.next();
+                if (loaderIds.contains(ClassLoaderRegistry.loaderId(caller.substring(0, caller.indexOf('#'))))) {
+                    iterator.remove();
+                }
+            }
+        }
+        counters.purgedEntries.addAndGet(count);
+    }
+
+    private static boolean isReflectionClass(String className)
+    {
+        return (className.startsWith("java.lang.reflect.") ||
+                className.startsWith("sun.reflect.") ||
+                className.startsWith("jdk.internal.reflect."));
+    }
+
+    /**
+     * revert transformed call sites which mostly see plain Maps. the inserted guard and the bigger method
+     * body are pure overhead at such sites. a reverted site is remembered so it is not transformed again.
+     * its put call is replaced with NonReturnMapBridge.put$excludedSite so that the occasional cache it
+     * sees does not notify us. only the copy of the class defined by the site's loader is reverted
+     */
+    private void detransformSites()
+    {
+        List<String> classKeys = null;
+        int siteCount = CallSiteCounters.getSiteCount();
+
+        for (int i = 0; i < siteCount; i++) {
+            CallSiteCounters.Site site = CallSiteCounters.getSite(i);
+            if (site == null || jokreTransformer.getExcludedSites().contains(site.getKey())) {
+                continue;
+            }
+            long total = site.getTotal();
+            long fallback = site.getCount(CallSiteCounters.FALLBACK);
+            if (total < detransformMinCalls || fallback < detransformThreshold * total) {
+                continue;
+            }
+            if (jokreTransformer.excludeSite(site.getKey())) {
+                System.out.println("Jokre : reverting call site " + site + " fallback " + fallback + " of " + total);
+                counters.detransformedSites.incrementAndGet();
+                if (classKeys == null) {
+                    classKeys = new ArrayList<String>();
+                }
+                if (!classKeys.contains(site.getClassKey())) {
+                    classKeys.add(site.getClassKey());
+                }
+            }
+        }
+
+        if (classKeys != null) {
+            retransform(classKeys);
         }
     }
 
@@ -145,32 +625,307 @@ public class Jokre implements ClassFileTransformer
      */
     private JokreTransformer jokreTransformer = null;
 
+    /**
+     * interns the class#method entries shared by the staging and updated sets
+     */
+    private CallSiteIds callSiteIds = new CallSiteIds();
+
     /**
      * the agent uses a staging update set to record updates which have not yet been retransformed
      */
-    private UpdateSet staging = new UpdateSet();
+    private UpdateSet staging = new UpdateSet(callSiteIds);
 
     /**
      * the agent uses a second update set to record updates which have been retransformed
      */
-    private UpdateSet updated =  new UpdateSet(true);
+    private UpdateSet updated =  new UpdateSet(callSiteIds, true);
+
+    /**
+     * workers used to transform classes ahead of a retransform or null if they are disabled
+     */
+    private TransformPrecomputer precomputer = null;
+
+    /**
+     * registry identifying the loaders of classes which have notified the agent
+     */
+    private ClassLoaderRegistry loaders = new ClassLoaderRegistry();
+
+    /**
+     * used to obtain the classes of the methods on the stack when a put notifies the agent
+     */
+    private static final CallerContext callerContext = new CallerContext();
+
+    /**
+     * profile file used to record transformed entries across runs or null if none is configured
+     */
+    private CallSiteProfile profile = null;
+
+    /**
+     * true if the agent was attached after infinispan had been loaded. in this case the implementor classes
+     * cannot acquire the NonReturnMap API so call sites are routed through NonReturnMapBridge instead
+     */
+    private boolean lateAttach = false;
+
+    /**
+     * fraction of fallback calls at which a site is reverted or 0 if sites are never reverted
+     */
+    private double detransformThreshold = 0;
+
+    /**
+     * number of calls a site must make before it is considered for reverting
+     */
+    private long detransformMinCalls = DEFAULT_DETRANSFORM_MIN_CALLS;
+
+    /**
+     * interval between checks for sites to revert
+     */
+    private long detransformInterval = DEFAULT_DETRANSFORM_INTERVAL;
+
+    /**
+     * true if discarded put results are passed down through wrapper methods
+     */
+    private boolean followWrappers = false;
+
+    /**
+     * callers seen above each method which may be a wrapper, indexed by class#method with the class in
+     * external format
+     */
+    private ConcurrentHashMap<String, Set<String>> wrapperCallers = new ConcurrentHashMap<String, Set<String>>();
+
+    private void computeDetransformSettings()
+    {
+        String thresholdString = System.getProperty(DETRANSFORM_THRESHOLD);
+        if (thresholdString == null) {
+            return;
+        }
+        if (lateAttach) {
+            // bridged call sites have no inline guard so they cannot be counted
+            System.err.println("Jokre : call sites cannot be reverted when the agent is attached after infinispan");
+            return;
+        }
+        try {
+            detransformThreshold = Double.parseDouble(thresholdString);
+        } catch (NumberFormatException nfe) {
+            detransformThreshold = 0;
+        }
+        if (!(detransformThreshold > 0 && detransformThreshold <= 1)) {
+            System.err.println("Jokre : invalid value for " + DETRANSFORM_THRESHOLD + " : " + thresholdString);
+            detransformThreshold = 0;
+            return;
+        }
+        detransformMinCalls = parseLongProperty(DETRANSFORM_MIN_CALLS, DEFAULT_DETRANSFORM_MIN_CALLS);
+        detransformInterval = parseLongProperty(DETRANSFORM_INTERVAL, DEFAULT_DETRANSFORM_INTERVAL);
+    }
+
+    private TransformPrecomputer createPrecomputer()
+    {
+        int threadCount = Math.min(Runtime.getRuntime().availableProcessors(), MAX_DEFAULT_TRANSFORM_THREADS);
+        String value = System.getProperty(TRANSFORM_THREADS);
+        if (value != null) {
+            try {
+                threadCount = Integer.parseInt(value);
+            } catch (NumberFormatException nfe) {
+                threadCount = -1;
+            }
+            if (threadCount < 0) {
+                System.err.println("Jokre : invalid value for " + TRANSFORM_THREADS + " : " + value);
+                threadCount = 0;
+            }
+        }
+        return (threadCount > 0 ? new TransformPrecomputer(this, threadCount) : null);
+    }
+
+    private static long parseLongProperty(String name, long defaultValue)
+    {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long result = Long.parseLong(value);
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException nfe) {
+            // fall through
+        }
+        System.err.println("Jokre : invalid value for " + name + " : " + value);
+        return defaultValue;
+    }
+
+    /**
+     * counters recording retransform and transform activity
+     */
+    private JokreCounters counters = new JokreCounters();
+
+    /**
+     * statistics view exported via JMX and the optional stats file
+     */
+    private JokreStats jokreStats;
+
+    /**
+     * listener to be told about agent activity or null if none was found
+     */
+    private volatile JokreEventListener eventListener = null;
+
+    /**
+     * notifications are reported to the event listener once every notifySampleRate calls
+     */
+    private int notifySampleRate;
+
+    /**
+     * count of notifications used to select those which are reported to the event listener
+     */
+    private AtomicInteger notifyCount = new AtomicInteger();
+
+    /**
+     * @return true if the current notification should be reported to the event listener
+     */
+    private boolean sampleNotification()
+    {
+        return (notifyCount.getAndIncrement() % notifySampleRate) == 0;
+    }
+
+    /**
+     * locate the first event listener implementation registered as a service
+     * @return the listener or null if none is available
+     */
+    private static JokreEventListener loadEventListener()
+    {
+        try {
+            ServiceLoader<JokreEventListener> serviceLoader = ServiceLoader.load(JokreEventListener.class, ClassLoader.getSystemClassLoader());
+            Iterator<JokreEventListener> iterator = serviceLoader.iterator();
+            if (iterator.hasNext()) {
+                return iterator.next();
+            }
+        } catch (Throwable th) {
+            // a broken or incompatible listener must not stop the agent working
+            System.err.println("Jokre : unable to load event listener : " + th);
+        }
+        return null;
+    }
+
+    private static int computeNotifySampleRate()
+    {
+        String sampleString = System.getProperty(EVENTS_NOTIFY_SAMPLE);
+        if (sampleString != null) {
+            try {
+                int sample = Integer.parseInt(sampleString);
+                if (sample > 0) {
+                    return sample;
+                }
+            } catch (NumberFormatException nfe) {
+                // fall through
+            }
+            System.err.println("Jokre : invalid value for " + EVENTS_NOTIFY_SAMPLE + " : " + sampleString);
+        }
+        return DEFAULT_EVENTS_NOTIFY_SAMPLE;
+    }
+
+    /**
+     * register the statistics MBean with the platform MBean server unless this has been disabled
+     */
+    private void registerMBean()
+    {
+        if (System.getProperty(JMX_DISABLED) != null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(jokreStats, new ObjectName(JokreStats.OBJECT_NAME));
+        } catch (Exception e) {
+            System.err.println("Jokre : unable to register statistics MBean : " + e);
+        }
+    }
+
+    /**
+     * start a thread to append statistics to the stats file if one is configured
+     */
+    private void startStatsExporter()
+    {
+        String statsFile = System.getProperty(STATS_FILE);
+        if (statsFile == null) {
+            return;
+        }
+        long interval = DEFAULT_STATS_INTERVAL;
+        String intervalString = System.getProperty(STATS_INTERVAL);
+        if (intervalString != null) {
+            try {
+                interval = Long.parseLong(intervalString);
+            } catch (NumberFormatException nfe) {
+                System.err.println("Jokre : invalid value for " + STATS_INTERVAL + " : " + intervalString);
+            }
+            if (interval <= 0) {
+                interval = DEFAULT_STATS_INTERVAL;
+            }
+        }
+        new StatsExporter(jokreStats, new File(statsFile), interval).start();
+    }
+
+    /**
+     * preload the update set with entries recorded in the profile file, if one is configured, so that
+     * their call sites are transformed when the owning class is first loaded rather than after a
+     * notification and retransform. also arrange for the profile to be rewritten at shutdown
+     */
+    private void loadProfile()
+    {
+        String profileFile = System.getProperty(PROFILE_FILE);
+        if (profileFile == null) {
+            return;
+        }
+        profile = new CallSiteProfile(new File(profileFile));
+
+        for (String classMethodName : profile.load()) {
+            if (classMethodName.startsWith(EXCLUDED_SITE_PREFIX)) {
+                // only honour reverted sites while reverting is enabled so that they can be retried
+                if (detransformThreshold > 0) {
+                    jokreTransformer.excludeSite(classMethodName.substring(EXCLUDED_SITE_PREFIX.length()));
+                }
+                continue;
+            }
+            int hashIdx = classMethodName.indexOf('#');
+            updated.preload(classMethodName.substring(0, hashIdx), classMethodName.substring(hashIdx + 1));
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread("Jokre profile writer")
+        {
+            public void run()
+            {
+                saveProfile();
+            }
+        });
+    }
 
     /**
-     * ensure that no infinispan classes have been loaded into the runtime
+     * check whether any infinispan classes have been loaded into the runtime. that is only acceptable
+     * when the agent has been attached to a running JVM
+     * @param attached true if the agent was attached to a running JVM
+     * @return true if infinispan has been loaded and the agent must run in late attach mode
      */
 
-    private void checkInfinispan()
+    private boolean checkInfinispan(boolean attached)
     {
-        for (Class clazz : inst.getAllLoadedClasses()) {
-            if (isMapImplementorClass(clazz.getName())) {
-                throw new RuntimeException("Invalid attempt to load Jokre agent after loading infinispan");
+        for (Class<?> clazz : inst.getAllLoadedClasses()) {
+            if (isMapImplementorClass(clazz.getName().replace('.', '/'))) {
+                if (!attached) {
+                    throw new RuntimeException("Invalid attempt to load Jokre agent after loading infinispan");
+                }
+                return true;
             }
         }
+        return false;
     }
 
-    private boolean addToStaging(String callerClass,  String callerMethod)
+    private boolean addToStaging(String callerClass, int loaderId, String callerMethod)
     {
-        boolean result = staging.add(callerClass, callerMethod);
+        // a caller which has already been processed may still call put, for example because some of its
+        // sites have been reverted. staging it again would only cause the agent to wake up for nothing
+
+        if (updated.contains(callerClass, loaderId, callerMethod)) {
+            return false;
+        }
+
+        boolean result = staging.add(callerClass, loaderId, callerMethod);
 
         // m.b. the locking scheme may mean that we rewake the agent after it has just processed that
         // insert but that does no harm and and it ensures that the notify is fast because we don't hold
@@ -197,24 +952,85 @@ public class Jokre implements ClassFileTransformer
         staging.waitForUpdates();
     }
 
-    private void retransform(List<String> classNames)
+    /**
+     * retransform loaded classes
+     * @param classKeys the keys of the classes to be retransformed. a key which names a loader only
+     * matches the class defined by that loader. a bare class name matches every class with that name
+     */
+    private void retransform(List<String> classKeys)
     {
-        Class[] classes = inst.getAllLoadedClasses();
-        for (Class clazz : classes) {
+        HashSet<String> classNames = new HashSet<String>();
+        for (String classKey : classKeys) {
+            classNames.add(ClassLoaderRegistry.className(classKey));
+        }
+        List<Class<?>> matches = new ArrayList<Class<?>>();
+        Class<?>[] classes = inst.getAllLoadedClasses();
+        for (Class<?> clazz : classes) {
             String name = clazz.getName();
-            if (classNames.contains(name)) {
-                try {
-                    inst.retransformClasses(clazz);
-                } catch (Exception e) {
-                    // oops -- what is the consequence of this?
-                    // if we get an exception here then the client will keep on renotifying
-                    // a call  to the slow path method which will slow down calls via this path
-                    // a little. this may not be significant and must be weighed against gains
-                    // made elsewhere. dumping stats on renotifications will show where this
-                    // is happening.
+            if (!classNames.contains(name)) {
+                continue;
+            }
+            int loaderId = loaders.existingIdOf(clazz.getClassLoader());
+            if (classKeys.contains(name) || classKeys.contains(ClassLoaderRegistry.classKey(name, loaderId))) {
+                matches.add(clazz);
+            }
+        }
+
+        if (precomputer != null) {
+            precomputer.precompute(matches);
+        }
+
+        for (Class<?> clazz : matches) {
+            try {
+                inst.retransformClasses(clazz);
+                counters.retransformSuccesses.incrementAndGet();
+            } catch (Exception e) {
+                counters.retransformFailures.incrementAndGet();
+                if (eventListener != null) {
+                    eventListener.retransformFailed(clazz.getName(), e);
                 }
+                // oops -- what is the consequence of this?
+                // if we get an exception here then the client will keep on renotifying
+                // a call  to the slow path method which will slow down calls via this path
+                // a little. this may not be significant and must be weighed against gains
+                // made elsewhere. dumping stats on renotifications will show where this
+                // is happening.
             }
         }
+
+        if (precomputer != null) {
+            precomputer.clear();
+        }
+    }
+
+    /**
+     * @return the methods to be transformed in a loaded class or null if there are none
+     */
+    List<String> listMethods(Class<?> clazz)
+    {
+        return updated.listMethods(clazz.getName(), loaders.existingIdOf(clazz.getClassLoader()));
+    }
+
+    /**
+     * transform the bytes of a loaded class ahead of retransforming it. called from the precomputer's
+     * worker threads
+     * @return the transformed bytes or null if the class does not need transforming
+     */
+    byte[] precomputeClass(Class<?> clazz, byte[] classfileBuffer, List<String> methodNames)
+    {
+        String className = clazz.getName().replace('.', '/');
+        boolean isImplementor = isMapImplementorClass(className);
+
+        if (!isImplementor && methodNames == null && !jokreTransformer.isMapGetClass(className)) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        try {
+            return transformClass(clazz.getClassLoader(), className, clazz, clazz.getProtectionDomain(), classfileBuffer, isImplementor, methodNames);
+        } finally {
+            counters.transformNanos.addAndGet(System.nanoTime() - start);
+        }
     }
 
     //
@@ -237,6 +1053,17 @@ public class Jokre implements ClassFileTransformer
         }
     }
 
+    /**
+     * security manager subclass used only to expose the class context. it is never installed
+     */
+    private static class CallerContext extends SecurityManager
+    {
+        public Class<?>[] classContext()
+        {
+            return getClassContext();
+        }
+    }
+
     //
     // implementation of interface ClassFileTransformer
     //
@@ -255,17 +1082,88 @@ public class Jokre implements ClassFileTransformer
     {
         byte[] bytes = classfileBuffer;
 
-        if (isMapImplementorClass(className)) {
+        boolean isImplementor = isMapImplementorClass(className);
+        String classNameExternal = className.replace('/', '.');
+        int loaderId = loaders.existingIdOf(loader);
+        List<String> methodNames =  updated.listMethods(classNameExternal, loaderId);
+
+        if (!isImplementor && methodNames == null && !jokreTransformer.isMapGetClass(className)) {
+            return bytes;
+        }
+
+        long start = System.nanoTime();
+        Object token = (eventListener != null ? eventListener.transformBegin() : null);
+        try {
+            byte[] precomputedBytes = null;
+            if (classBeingRedefined != null && precomputer != null) {
+                precomputedBytes = precomputer.take(classBeingRedefined, classfileBuffer, methodNames);
+            }
+            if (precomputedBytes != null) {
+                counters.precomputedTransforms.incrementAndGet();
+                bytes = precomputedBytes;
+            } else {
+                bytes = transformClass(loader, className, classBeingRedefined, protectionDomain, classfileBuffer, isImplementor, methodNames);
+            }
+            if (methodNames != null) {
+                updated.transformed(classNameExternal, loaderId, methodNames);
+            }
+        } finally {
+            if (bytes != classfileBuffer) {
+                counters.transformCount.incrementAndGet();
+            }
+            counters.transformNanos.addAndGet(System.nanoTime() - start);
+            if (eventListener != null) {
+                eventListener.transformEnd(token, className, classBeingRedefined != null, classfileBuffer.length, bytes.length);
+            }
+        }
+
+        return bytes;
+    }
+
+    private byte[] transformClass(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                  ProtectionDomain protectionDomain, byte[] classfileBuffer, boolean isImplementor, List<String> methodNames)
+    {
+        byte[] bytes = classfileBuffer;
+
+        // if we have seen these bytes and this transform before then reuse the result
+
+        TransformCache transformCache = jokreTransformer.getTransformCache();
+        String cacheKey = null;
+        if (transformCache != null) {
+            cacheKey = transformCache.key(classfileBuffer, isImplementor, jokreTransformer.getVariant(), methodNames);
+            byte[] cachedBytes = transformCache.load(className, cacheKey);
+            if (cachedBytes != null) {
+                return cachedBytes;
+            }
+        }
+
+        if (isImplementor && lateAttach) {
+            // we cannot add the NonReturnMap API to a loaded class so just make put notify us
+
+            bytes = jokreTransformer.instrumentMapImplementorPut(className, bytes);
+        } else if (isImplementor) {
             // modify this implementation so it supports a void put
 
             bytes = jokreTransformer.extendMapImplementorAPI(loader, className, classBeingRedefined, protectionDomain, bytes);
         }
 
-        String classNameExternal = className.replace('/', '.');
-        List<String> methodNames =  updated.listMethods(classNameExternal);
+        if (jokreTransformer.isMapGetClass(className)) {
+            // let threads read back their own fast path writes while they are in flight and/or have
+            // get notify us of its callers for near caching
+
+            bytes = jokreTransformer.instrumentMapGet(className, bytes);
+        }
+
         if (methodNames != null) {
-            bytes = jokreTransformer.transform(loader, className, classBeingRedefined, protectionDomain, bytes, methodNames);
-            updated.transformed(classNameExternal, methodNames);
+            // call sites are registered and excluded per loader so the loader needs an id even if the
+            // methods to transform were preloaded for every loader
+            bytes = jokreTransformer.transform(loader, loaders.idOf(loader), className, classBeingRedefined, protectionDomain, bytes, methodNames);
+        }
+
+        // only cache successful transforms. a failed transform hands back the bytes it was given
+
+        if (cacheKey != null && bytes != classfileBuffer) {
+            transformCache.store(className, cacheKey, bytes);
         }
 
         return bytes;
@@ -0,0 +1,71 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.agent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters recording the work done by the Jokre agent thread and transformer
+ */
+public class JokreCounters
+{
+    /**
+     * classes successfully retransformed by the agent thread
+     */
+    final AtomicLong retransformSuccesses = new AtomicLong();
+
+    /**
+     * classes which the agent thread failed to retransform
+     */
+    final AtomicLong retransformFailures = new AtomicLong();
+
+    /**
+     * class loads or retransforms which were modified by the transformer
+     */
+    final AtomicLong transformCount = new AtomicLong();
+
+    /**
+     * total time spent in the transformer for those class loads or retransforms
+     */
+    final AtomicLong transformNanos = new AtomicLong();
+
+    /**
+     * call sites reverted to a plain put because they mostly see plain Maps
+     */
+    final AtomicLong detransformedSites = new AtomicLong();
+
+    /**
+     * calls to wrapper methods which have been arranged to pass down a discarded result
+     */
+    final AtomicLong wrapperCalls = new AtomicLong();
+
+    /**
+     * update set entries dropped because the loader of their class was collected
+     */
+    final AtomicLong purgedEntries = new AtomicLong();
+
+    /**
+     * retransforms which used bytes transformed ahead of time by the worker threads
+     */
+    final AtomicLong precomputedTransforms = new AtomicLong();
+}
@@ -0,0 +1,86 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.agent;
+
+/**
+ * Listener notified of work done by the Jokre agent. implementations are located at startup using
+ * java.util.ServiceLoader so a profiler integration such as the jokre-jfr module can be enabled simply
+ * by adding its jar to the classpath. each begin method returns a token which is handed back to the
+ * matching end method, allowing an implementation to time the operation. a null token is permitted.
+ * callbacks may be made from inside a class file transform so implementations must not trigger
+ * transformation of application classes.
+ */
+public interface JokreEventListener
+{
+    /**
+     * called when a sampled Map.put notification starts
+     * @return a token to pass to notifyEnd
+     */
+    public Object notifyBegin();
+
+    /**
+     * called when a sampled Map.put notification completes
+     * @param token the value returned by notifyBegin
+     * @param className the class of the caller which was notified or null if it could not be identified
+     * @param methodName the method of the caller which was notified or null if it could not be identified
+     * @param added true if the caller was newly added to the staging set
+     */
+    public void notifyEnd(Object token, String className, String methodName, boolean added);
+
+    /**
+     * called when the agent thread starts transferring a batch of staged entries
+     * @return a token to pass to transferEnd
+     */
+    public Object transferBegin();
+
+    /**
+     * called when the agent thread has transferred and retransformed a batch of staged entries
+     * @param token the value returned by transferBegin
+     * @param classCount the number of classes the agent attempted to retransform
+     * @param entryCount the number of class#method entries in the batch
+     */
+    public void transferEnd(Object token, int classCount, int entryCount);
+
+    /**
+     * called when the agent transformer starts work on a class which it needs to modify
+     * @return a token to pass to transformEnd
+     */
+    public Object transformBegin();
+
+    /**
+     * called when the agent transformer finishes work on a class
+     * @param token the value returned by transformBegin
+     * @param className the internal format name of the class
+     * @param redefined true if this was a retransform rather than an initial load
+     * @param originalSize the size of the class file presented to the transformer
+     * @param transformedSize the size of the class file returned by the transformer
+     */
+    public void transformEnd(Object token, String className, boolean redefined, int originalSize, int transformedSize);
+
+    /**
+     * called when the agent thread fails to retransform a class
+     * @param className the name of the class
+     * @param cause the exception thrown by the retransform
+     */
+    public void retransformFailed(String className, Throwable cause);
+}
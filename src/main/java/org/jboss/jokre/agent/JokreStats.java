@@ -0,0 +1,213 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.agent;
+
+import org.jboss.jokre.FastPathPolicy;
+import org.jboss.jokre.NearCache;
+import org.jboss.jokre.WriteBehindBuffer;
+import org.jboss.jokre.WriteJournal;
+
+import java.util.List;
+
+/**
+ * Implementation of the Jokre management interface which reads its values from the agent's update sets
+ * and counters
+ */
+public class JokreStats implements JokreStatsMBean
+{
+    /**
+     * the name under which the agent registers its statistics
+     */
+    public static final String OBJECT_NAME = "org.jboss.jokre:type=Jokre";
+
+    private UpdateSet staging;
+    private UpdateSet updated;
+    private JokreCounters counters;
+
+    public JokreStats(UpdateSet staging, UpdateSet updated, JokreCounters counters)
+    {
+        this.staging = staging;
+        this.updated = updated;
+        this.counters = counters;
+    }
+
+    public int getStagingClassCount()
+    {
+        return staging.getClassCount();
+    }
+
+    public int getStagingEntryCount()
+    {
+        return staging.getEntryCount();
+    }
+
+    public int getStagingRenotifications()
+    {
+        return staging.getRenotifications();
+    }
+
+    public int getStagingIndexRaces()
+    {
+        return staging.getIndexRaces();
+    }
+
+    public int getStagingInsertionRaces()
+    {
+        return staging.getInsertionRaces();
+    }
+
+    public int getUpdatedClassCount()
+    {
+        return updated.getClassCount();
+    }
+
+    public int getUpdatedEntryCount()
+    {
+        return updated.getEntryCount();
+    }
+
+    public int getUpdatedRenotifications()
+    {
+        return updated.getRenotifications();
+    }
+
+    public int getUpdatedIndexRaces()
+    {
+        return updated.getIndexRaces();
+    }
+
+    public int getUpdatedInsertionRaces()
+    {
+        return updated.getInsertionRaces();
+    }
+
+    public long getRetransformSuccesses()
+    {
+        return counters.retransformSuccesses.get();
+    }
+
+    public long getRetransformFailures()
+    {
+        return counters.retransformFailures.get();
+    }
+
+    public long getTransformCount()
+    {
+        return counters.transformCount.get();
+    }
+
+    public long getTransformTimeMillis()
+    {
+        return counters.transformNanos.get() / 1000000L;
+    }
+
+    public long getDetransformedSites()
+    {
+        return counters.detransformedSites.get();
+    }
+
+    public long getWrapperCalls()
+    {
+        return counters.wrapperCalls.get();
+    }
+
+    public long getPurgedEntries()
+    {
+        return counters.purgedEntries.get();
+    }
+
+    public long getPrecomputedTransforms()
+    {
+        return counters.precomputedTransforms.get();
+    }
+
+    public String[] getFastPathPolicies()
+    {
+        List<String> policies = FastPathPolicy.describe();
+        return policies.toArray(new String[policies.size()]);
+    }
+
+    public String[] getWriteBehindBuffers()
+    {
+        List<String> buffers = WriteBehindBuffer.describe();
+        return buffers.toArray(new String[buffers.size()]);
+    }
+
+    public String[] getNearCaches()
+    {
+        List<String> nearCaches = NearCache.describe();
+        return nearCaches.toArray(new String[nearCaches.size()]);
+    }
+
+    public String getWriteJournal()
+    {
+        WriteJournal journal = WriteJournal.getJournal();
+        return (journal != null ? journal.toString() : "");
+    }
+
+    public void setFastPathMode(String cacheName, String mode)
+    {
+        FastPathPolicy.setMode(cacheName, FastPathPolicy.parseMode(mode));
+    }
+
+    public void clearFastPathMode(String cacheName)
+    {
+        FastPathPolicy.clearMode(cacheName);
+    }
+
+    public void setAsyncMaxInFlight(String cacheName, int maxInFlight)
+    {
+        FastPathPolicy.setMaxInFlight(cacheName, maxInFlight);
+    }
+
+    /**
+     * render the current statistics as a single line JSON object
+     * @param timestamp the time in milliseconds to record against the values
+     * @return the JSON text without a trailing newline
+     */
+    public String toJSON(long timestamp)
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"timestamp\":").append(timestamp);
+        builder.append(",\"stagingClassCount\":").append(getStagingClassCount());
+        builder.append(",\"stagingEntryCount\":").append(getStagingEntryCount());
+        builder.append(",\"stagingRenotifications\":").append(getStagingRenotifications());
+        builder.append(",\"stagingIndexRaces\":").append(getStagingIndexRaces());
+        builder.append(",\"stagingInsertionRaces\":").append(getStagingInsertionRaces());
+        builder.append(",\"updatedClassCount\":").append(getUpdatedClassCount());
+        builder.append(",\"updatedEntryCount\":").append(getUpdatedEntryCount());
+        builder.append(",\"updatedRenotifications\":").append(getUpdatedRenotifications());
+        builder.append(",\"updatedIndexRaces\":").append(getUpdatedIndexRaces());
+        builder.append(",\"updatedInsertionRaces\":").append(getUpdatedInsertionRaces());
+        builder.append(",\"retransformSuccesses\":").append(getRetransformSuccesses());
+        builder.append(",\"retransformFailures\":").append(getRetransformFailures());
+        builder.append(",\"transformCount\":").append(getTransformCount());
+        builder.append(",\"transformTimeMillis\":").append(getTransformTimeMillis());
+        builder.append(",\"detransformedSites\":").append(getDetransformedSites());
+        builder.append(",\"wrapperCalls\":").append(getWrapperCalls());
+        builder.append(",\"purgedEntries\":").append(getPurgedEntries());
+        builder.append(",\"precomputedTransforms\":").append(getPrecomputedTransforms());
+        builder.append("}");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.agent;
+
+/**
+ * Management interface exposing the Jokre agent's statistics. the agent registers an implementation with
+ * the platform MBean server under name org.jboss.jokre:type=Jokre
+ */
+public interface JokreStatsMBean
+{
+    /**
+     * @return the number of classes with notified call sites waiting to be processed
+     */
+    public int getStagingClassCount();
+
+    /**
+     * @return the number of notified class#method entries waiting to be processed
+     */
+    public int getStagingEntryCount();
+
+    /**
+     * @return the number of notifications for entries which were already waiting to be processed
+     */
+    public int getStagingRenotifications();
+
+    public int getStagingIndexRaces();
+
+    public int getStagingInsertionRaces();
+
+    /**
+     * @return the number of classes with call sites which have been processed by the agent
+     */
+    public int getUpdatedClassCount();
+
+    /**
+     * @return the number of class#method entries which have been processed by the agent
+     */
+    public int getUpdatedEntryCount();
+
+    /**
+     * @return the number of notifications for entries which had already been processed
+     */
+    public int getUpdatedRenotifications();
+
+    public int getUpdatedIndexRaces();
+
+    public int getUpdatedInsertionRaces();
+
+    /**
+     * @return the number of classes successfully retransformed by the agent
+     */
+    public long getRetransformSuccesses();
+
+    /**
+     * @return the number of classes the agent failed to retransform
+     */
+    public long getRetransformFailures();
+
+    /**
+     * @return the number of class loads or retransforms which the agent transformer modified
+     */
+    public long getTransformCount();
+
+    /**
+     * @return the total time spent in the agent transformer in milliseconds
+     */
+    public long getTransformTimeMillis();
+
+    /**
+     * @return the number of call sites reverted to a plain put because they mostly see plain Maps
+     */
+    public long getDetransformedSites();
+
+    /**
+     * @return the number of callers which have been arranged to tell a wrapper method that they discard its result
+     */
+    public long getWrapperCalls();
+
+    /**
+     * @return the number of update set entries dropped because the loader of their class was collected
+     */
+    public long getPurgedEntries();
+
+    /**
+     * @return the number of retransforms which used bytes transformed ahead of time by the worker threads
+     */
+    public long getPrecomputedTransforms();
+
+    /**
+     * @return a description of the fast path policy of each cache which has consulted one
+     */
+    public String[] getFastPathPolicies();
+
+    /**
+     * @return the writes, coalescing ratio, occupancy and flush latency of each write behind buffer
+     */
+    public String[] getWriteBehindBuffers();
+
+    /**
+     * @return the hits, misses, size, evictions and invalidations of each near cache
+     */
+    public String[] getNearCaches();
+
+    /**
+     * @return the writes, acknowledgements and replays recorded by the write journal or an empty string if
+     * journaling is not enabled
+     */
+    public String getWriteJournal();
+
+    /**
+     * pin every instance of a named cache to a fast path put mode. the mode is kept per cache name not
+     * per cache instance
+     * @param cacheName the cache name
+     * @param mode one of sync-no-return, async (or fast), original and write-behind
+     */
+    public void setFastPathMode(String cacheName, String mode);
+
+    /**
+     * return a named cache to the default choice of fast path put mode
+     * @param cacheName the cache name
+     */
+    public void clearFastPathMode(String cacheName);
+
+    /**
+     * cap the number of outstanding async fast path writes for a named cache
+     * @param cacheName the cache name
+     * @param maxInFlight the cap or 0 to stop capping writes while still counting their failures
+     */
+    public void setAsyncMaxInFlight(String cacheName, int maxInFlight);
+}
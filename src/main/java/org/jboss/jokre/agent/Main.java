@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.jar.JarFile;
@@ -64,6 +65,17 @@ public class Main
 
     public static void premain(String args, Instrumentation inst)
             throws Exception
+    {
+        install(args, inst, false);
+    }
+
+    public static void agentmain(String args, Instrumentation inst) throws Exception
+    {
+        install(args, inst, true);
+    }
+
+    private static void install(String args, Instrumentation inst, boolean attached)
+            throws Exception
     {
         // guard against the agent being loaded twice
         synchronized (Main.class) {
@@ -126,20 +138,21 @@ public class Main
 
         ClassFileTransformer transformer;
         ClassLoader loader = ClassLoader.getSystemClassLoader();
-        Class transformerClazz;
+        Class<?> transformerClazz;
 
         // create the Jokre agent via reflection in case we want to put the Jokre lib into the bootstrap classpath
 
         //transformer = new Jokre(inst);
         transformerClazz = loader.loadClass("org.jboss.jokre.agent.Jokre");
-        Constructor constructor = transformerClazz.getConstructor(Instrumentation.class);
-        transformer = (ClassFileTransformer)constructor.newInstance(new Object[] { inst });
+        Constructor<?> constructor = transformerClazz.getConstructor(Instrumentation.class, boolean.class);
+        transformer = (ClassFileTransformer)constructor.newInstance(new Object[] { inst, attached });
 
         inst.addTransformer(transformer, true);
-    }
 
-    public static void agentmain(String args, Instrumentation inst) throws Exception
-    {
-        premain(args, inst);
+        if (attached) {
+            // infinispan may already be loaded in which case its put methods need instrumenting now
+            Method method = transformerClazz.getMethod("retransformImplementors");
+            method.invoke(transformer);
+        }
     }
 }
@@ -0,0 +1,84 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.agent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Daemon thread which periodically appends a snapshot of the agent statistics to a file. each snapshot
+ * is written as a single line JSON object so the file can be tailed or loaded line by line for graphing
+ */
+public class StatsExporter extends Thread
+{
+    private JokreStats stats;
+    private File file;
+    private long intervalMillis;
+
+    public StatsExporter(JokreStats stats, File file, long intervalMillis)
+    {
+        this.stats = stats;
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+        this.setDaemon(true);
+        this.setName("Jokre stats exporter");
+    }
+
+    public void run()
+    {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException ie) {
+                // ignore
+            }
+            if (!export()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * append the current statistics to the export file
+     * @return false if the file could not be written
+     */
+    public synchronized boolean export()
+    {
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            try {
+                writer.write(stats.toJSON(System.currentTimeMillis()));
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+            return true;
+        } catch (IOException ioe) {
+            System.err.println("StatsExporter : Error writing statistics to " + file + " : " + ioe.getMessage());
+            return false;
+        }
+    }
+}
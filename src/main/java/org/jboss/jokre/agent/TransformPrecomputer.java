@@ -0,0 +1,181 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.agent;
+
+import org.jboss.jokre.transformer.ClassHierarchyResolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of worker threads used by the agent thread to transform a batch of classes in parallel before it
+ * retransforms them. the work done inside retransformClasses, while the VM holds the classes for
+ * redefinition, then reduces to a lookup. each worker reads the class file bytes from the defining loader.
+ * precomputed bytes are only used when the bytes handed to the transformer are identical to the ones
+ * which were read and the set of methods to transform is unchanged. otherwise, for example when the
+ * class was modified by another agent or is a JDK class restored from the shared archive, the class is
+ * transformed inline as before.
+ */
+public class TransformPrecomputer
+{
+    private final Jokre jokre;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<Class<?>, Precomputed> precomputed = new ConcurrentHashMap<Class<?>, Precomputed>();
+
+    public TransformPrecomputer(Jokre jokre, int threadCount)
+    {
+        this.jokre = jokre;
+        this.executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "Jokre transformer " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * transform a batch of classes in parallel and wait for the results
+     * @param classes the classes which are about to be retransformed
+     */
+    public void precompute(List<Class<?>> classes)
+    {
+        List<Future<?>> futures = new ArrayList<Future<?>>(classes.size());
+        for (final Class<?> clazz : classes) {
+            futures.add(executor.submit(new Callable<Object>()
+            {
+                public Object call() throws Exception
+                {
+                    precompute(clazz);
+                    return null;
+                }
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException ie) {
+                // ignore -- the class will be transformed inline
+            } catch (ExecutionException ee) {
+                System.err.println("Jokre : unable to precompute transform for " + classes.get(i).getName() + " : " + ee.getCause());
+            }
+        }
+    }
+
+    /**
+     * retrieve and discard the precomputed bytes for a class
+     * @param clazz the class being retransformed
+     * @param classfileBuffer the bytes handed to the transformer
+     * @param methodNames the methods which are to be transformed
+     * @return the transformed bytes or null if they were not precomputed from the same input
+     */
+    public byte[] take(Class<?> clazz, byte[] classfileBuffer, List<String> methodNames)
+    {
+        Precomputed entry = precomputed.remove(clazz);
+        if (entry == null || !Arrays.equals(entry.input, classfileBuffer) || !sameMethods(entry.methodNames, methodNames)) {
+            return null;
+        }
+        return entry.output;
+    }
+
+    /**
+     * discard any results which were not taken, for example because a retransform failed
+     */
+    public void clear()
+    {
+        precomputed.clear();
+    }
+
+    private void precompute(Class<?> clazz) throws IOException
+    {
+        byte[] input = readClassBytes(clazz);
+        if (input == null) {
+            return;
+        }
+        List<String> methodNames = jokre.listMethods(clazz);
+        byte[] output = jokre.precomputeClass(clazz, input, methodNames);
+        if (output != null) {
+            precomputed.put(clazz, new Precomputed(input, methodNames, output));
+        }
+    }
+
+    private static boolean sameMethods(List<String> methodNames1, List<String> methodNames2)
+    {
+        if (methodNames1 == null || methodNames2 == null) {
+            return methodNames1 == methodNames2;
+        }
+        return new HashSet<String>(methodNames1).equals(new HashSet<String>(methodNames2));
+    }
+
+    private static byte[] readClassBytes(Class<?> clazz) throws IOException
+    {
+        String resourceName = clazz.getName().replace('.', '/') + ".class";
+        ClassLoader loader = clazz.getClassLoader();
+        InputStream stream = (loader != null ? loader.getResourceAsStream(resourceName) : ClassHierarchyResolver.getBootstrapResourceAsStream(resourceName));
+        if (stream == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = stream.read(buffer)) > 0) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static class Precomputed
+    {
+        final byte[] input;
+        final List<String> methodNames;
+        final byte[] output;
+
+        Precomputed(byte[] input, List<String> methodNames, byte[] output)
+        {
+            this.input = input;
+            this.methodNames = methodNames;
+            this.output = output;
+        }
+    }
+}
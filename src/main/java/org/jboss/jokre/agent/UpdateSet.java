@@ -22,10 +22,13 @@
 */
 package org.jboss.jokre.agent;
 
+import org.jboss.jokre.LatencyHistogram;
+
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -33,116 +36,221 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Class used to collect details of methods which need to be updated by the agent.
+ * Class used to collect details of methods which need to be updated by the agent. entries are indexed by
+ * class key and method name where the class key is a class name qualified by the id of its defining loader
+ * (see ClassLoaderRegistry). a bare class name applies to the class whatever its loader.
+ *
+ * each class#method entry is interned as an int id by a CallSiteIds table shared with the other update
+ * sets it exchanges entries with. membership and timestamps are kept in arrays indexed by id so checking
+ * or adding an entry which is already known neither allocates nor takes a lock.
+ *
+ * only the latest timestamps for each entry are retained. lifecycle latencies are accumulated in fixed
+ * size histograms so the memory used stays constant however often methods are retransformed.
  */
 public class UpdateSet
 {
-    /**
-     * value used as a marker to identify entries in the concurrent hash map index
-     */
-    private static Object PRESENT = new Object();
-
     private final AtomicInteger renotifications = new AtomicInteger();
     private final AtomicInteger indexRaces = new AtomicInteger();
     private final AtomicInteger insertionRaces = new AtomicInteger();
 
     /**
-     * index by classname and methodname used to detect entries which have already been
-     * notified. note we use a normal hashmap and synchronize explicitly on it because
-     * we want the inserting clients threads and the removing agent thread to be able
-     * to sleep on this index.
+     * the table used to intern entries
+     */
+    private final CallSiteIds ids;
+    /**
+     * 1 for each id which is in this set, otherwise 0
+     */
+    private final IdLongArray members;
+    /**
+     * the number of entries in this set. we synchronize on this explicitly when waiting or waking up
+     * because we want the inserting client threads and the removing agent thread to be able to sleep
+     * on it
      */
-    private HashMap<String, Object> classMethodIndex;
+    private final AtomicInteger entryCount;
     /**
-     * a map keyed by class#method to record when a specific method was first notified
+     * records the nanoTime when each entry was first notified
      */
-    private ConcurrentHashMap<String, Long> notifiedTimestamps;
+    private final IdLongArray notifiedTimestamps;
     /**
-     * a map keyed by class#method to record when a notify for a specific method was noticed by the agent
+     * records the nanoTime when a notify for each entry was noticed by the agent
      */
-    private ConcurrentHashMap<String, Long> processedTimestamps;
+    private final IdLongArray processedTimestamps;
     /**
-     * a map keyed by class#method to record when a the agent first performed transformation of a specific method
+     * records the nanoTime when the agent last performed transformation of each entry
      */
-    private ConcurrentHashMap<String, List<Long>> transformedTimestamps;
+    private final IdLongArray transformedTimestamps;
     /**
-     * index by classname which allows identification of methods associated with
+     * records how many times each entry has been transformed
      */
-    private ConcurrentHashMap<String, MethodUpdateSet> classIndex;
+    private final IdLongArray transformCounts;
+    /**
+     * latency from notification of an entry to the agent noticing it
+     */
+    private final LatencyHistogram notifyToProcess;
+    /**
+     * latency from the agent noticing an entry to its first transformation
+     */
+    private final LatencyHistogram processToTransform;
+    /**
+     * index by class key which allows identification of methods associated with a class
+     */
+    private final ConcurrentHashMap<String, MethodUpdateSet> classIndex;
 
-    public UpdateSet()
+    public UpdateSet(CallSiteIds ids)
     {
-        this(false);
+        this(ids, false);
     }
 
-    public UpdateSet(boolean trackTransforms)
+    public UpdateSet(CallSiteIds ids, boolean trackTransforms)
     {
-        classMethodIndex = new HashMap<String, Object>();
+        this.ids = ids;
+        members = new IdLongArray();
+        entryCount = new AtomicInteger();
         classIndex = new ConcurrentHashMap<String, MethodUpdateSet>();
         // we timestamp class#method entries  when they are notified, detected by the agent and trasformed
         // the notified timestamps are set when an entry is added to the agent's notified update set
         // the processed timestamps are set when an entry is added to the agent's transform update set
         // and the notified timestamp is copied across from notified to transform update set at the same time
         // the transformed timestamp is updated when the transformed bytecode is generated
-        notifiedTimestamps = new ConcurrentHashMap<String, Long>();
+        notifiedTimestamps = new IdLongArray();
         if (trackTransforms) {
-            processedTimestamps = new ConcurrentHashMap<String, Long>();
-            transformedTimestamps = new ConcurrentHashMap<String, List<Long>>();
+            processedTimestamps = new IdLongArray();
+            transformedTimestamps = new IdLongArray();
+            transformCounts = new IdLongArray();
+            notifyToProcess = new LatencyHistogram();
+            processToTransform = new LatencyHistogram();
         } else {
             processedTimestamps = null;
             transformedTimestamps = null;
+            transformCounts = null;
+            notifyToProcess = null;
+            processToTransform = null;
         }
     }
 
     /**
      * add an entry to the update set if it is not already present
      * @param className the name of the class to be updated
-     * @param methodName the name of the method of thast class  to be updated
+     * @param loaderId the id of the class's defining loader or ANY_LOADER
+     * @param methodName the name of the method of that class to be updated
      * @return true if the entry has been added or false if it is already present
      */
-    public boolean add(String className, String methodName)
+    public boolean add(String className, int loaderId, String methodName)
     {
-        // the classmethod index provides a quick check allowing us to avoid
-        // synchronizing on the full index if we have already seen this entry
-        // this avoids the situation where the more extensive processing needed
-        // to handle new index entries locks out threads which are merely
-        // notifying a known entry.
-        String classMethodName = className +  "#" + methodName;
-        boolean present;
-
-        synchronized (classMethodIndex) {
-            present = classMethodIndex.put(classMethodName, PRESENT) == null;
-        }
-        if (!present) {
+        return add(ids.intern(className, loaderId, methodName));
+    }
+
+    private boolean add(int id)
+    {
+        // the membership flag provides a quick check allowing us to avoid indexing an entry we have
+        // already seen. this avoids the situation where the more extensive processing needed to handle
+        // new index entries slows down threads which are merely notifying a known entry.
+        if (!members.compareAndSet(id, 0, 1)) {
             // track renotifications for performance checking
             renotifications.incrementAndGet();
             return false;
-        } else if (processedTimestamps != null) {
-            processedTimestamps.put(classMethodName, System.currentTimeMillis());
+        }
+        entryCount.incrementAndGet();
+        if (processedTimestamps != null) {
+            processedTimestamps.set(id, System.nanoTime());
         } else {
-            notifiedTimestamps.put(classMethodName, System.currentTimeMillis());
+            notifiedTimestamps.set(id, System.nanoTime());
         }
         // this is a new entry so update the full index
 
-        return fullyIndex(className, methodName);
+        return fullyIndex(id);
+    }
+
+    /**
+     * add an entry recorded by a profile from an earlier run. the entry applies to every loader and is
+     * timestamped as if it had been notified and processed at startup
+     * @param className the name of the class to be updated
+     * @param methodName the name of the method of that class to be updated
+     * @return true if the entry has been added or false if it is already present
+     */
+    public boolean preload(String className, String methodName)
+    {
+        int id = ids.intern(className, ClassLoaderRegistry.ANY_LOADER, methodName);
+        if (!add(id)) {
+            return false;
+        }
+        long processed = (processedTimestamps != null ? processedTimestamps.get(id) : 0);
+        notifiedTimestamps.set(id, (processed != 0 ? processed : System.nanoTime()));
+        return true;
+    }
+
+    /**
+     * @return a snapshot of the class#method entries currently in this set with loader ids removed. an
+     * entry which was added for several loaders is only included once
+     */
+    public List<String> classMethodNames()
+    {
+        HashSet<String> names = new HashSet<String>();
+        int size = ids.size();
+        for (int id = 0; id < size; id++) {
+            if (members.get(id) != 0) {
+                String className = ids.className(id);
+                String methodName = ids.methodName(id);
+                if (className != null && methodName != null) {
+                    names.add(className + "#" + methodName);
+                }
+            }
+        }
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * remove all entries belonging to loaders which have been collected. a collected loader cannot
+     * notify again so this does not race with add
+     * @param loaderIds the ids of the collected loaders
+     * @return the number of entries removed
+     */
+    public int purge(List<Integer> loaderIds)
+    {
+        int count = 0;
+        Enumeration<String> keys = classIndex.keys();
+        while (keys.hasMoreElements()) {
+            String classKey = keys.nextElement();
+            if (!loaderIds.contains(ClassLoaderRegistry.loaderId(classKey))) {
+                continue;
+            }
+            MethodUpdateSet methodUpdateSet = classIndex.remove(classKey);
+            int[] entryIds = (methodUpdateSet != null ? methodUpdateSet.reset() : null);
+            if (entryIds == null) {
+                continue;
+            }
+            for (int id : entryIds) {
+                if (members.compareAndSet(id, 1, 0)) {
+                    entryCount.decrementAndGet();
+                }
+                notifiedTimestamps.set(id, 0);
+                if (processedTimestamps != null) {
+                    processedTimestamps.set(id, 0);
+                    transformedTimestamps.set(id, 0);
+                    transformCounts.set(id, 0);
+                }
+                count++;
+            }
+        }
+        return count;
     }
 
     /**
      * insert a newly notified entry into a method update set which is indexed in the class
-     * index by the owner class name
-     * @param className
-     * @param methodName
+     * index by the owner class key
+     * @param id the entry's id
      * @return true if the entry was successfully added and false if it was already present (not
      * sure yet that this should ever return false)
      */
-    private boolean fullyIndex(String className, String methodName)
+    private boolean fullyIndex(int id)
     {
-        MethodUpdateSet methodUpdates = classIndex.get(className);
-        
+        String classKey = ids.classKey(id);
+        MethodUpdateSet methodUpdates = classIndex.get(classKey);
+
         if (methodUpdates == null) {
             // use putIfAbsent to resolve insertion races for the method update set
-            MethodUpdateSet newMethodUpdates = new MethodUpdateSet(className);
-            methodUpdates = classIndex.putIfAbsent(className, newMethodUpdates);
+            MethodUpdateSet newMethodUpdates = new MethodUpdateSet(classKey);
+            methodUpdates = classIndex.putIfAbsent(classKey, newMethodUpdates);
             // count if we had an indexing race
             if (methodUpdates != null) {
                 indexRaces.incrementAndGet();
@@ -150,11 +258,11 @@ public class UpdateSet
                 methodUpdates = newMethodUpdates;
             }
         }
-        
+
         // we may see a repeat entry because we started then insert just as an old entry was being
         // transferred
 
-        if (!methodUpdates.add(methodName)) {
+        if (!methodUpdates.add(id)) {
             insertionRaces.incrementAndGet();
             return false;
         }
@@ -171,20 +279,19 @@ public class UpdateSet
      */
     public UpdateSet transfer(UpdateSet target)
     {
-        UpdateSet diff = new UpdateSet();
+        UpdateSet diff = new UpdateSet(ids);
         // iterate over all entries in the table
         Enumeration<MethodUpdateSet> methodUpdateSets = classIndex.elements();
 
         while(methodUpdateSets.hasMoreElements()) {
-            // retrieve the class and method names for this entry, resetting the method name set to empty
+            // retrieve the ids for this entry, resetting the method update set to empty
             MethodUpdateSet methodUpdateSet = methodUpdateSets.nextElement();
-            String className = methodUpdateSet.getClassName();
-            List<String> methodNames = methodUpdateSet.reset();
-            if (methodNames != null) {
+            int[] entryIds = methodUpdateSet.reset();
+            if (entryIds != null) {
 
                 // copy the entries to the target set and, where appropriate, the difference set
 
-                for (String methodName : methodNames) {
+                for (int id : entryIds) {
                     // first remove the entry so that we can sleep when the index is empty.
                     // we will eventually stop being renotified because the bytecode transform
                     // will bypass each call to the notifying method
@@ -193,17 +300,19 @@ public class UpdateSet
                     // transform a specific class. if that happens then we may need to do the delete from
                     // a shadow index and retain the main index list to avoid renotifications
 
-                    String classMethodName = className + "#" + methodName;
-                    synchronized (classMethodIndex) {
-                        classMethodIndex.remove(classMethodName);
+                    if (members.compareAndSet(id, 1, 0)) {
+                        entryCount.decrementAndGet();
                     }
 
-                    if (target.add(className, methodName)) {
+                    if (target.add(id)) {
                         // propagate the notified  timestamp
-                        Long notifiedTimestamp = notifiedTimestamps.get(classMethodName);
-                        target.notifiedTimestamps.put(classMethodName, notifiedTimestamp);
+                        long notified = notifiedTimestamps.get(id);
+                        target.notifiedTimestamps.set(id, notified);
+                        if (target.notifyToProcess != null && notified != 0) {
+                            target.notifyToProcess.record(target.processedTimestamps.get(id) - notified);
+                        }
                         // add tis to the diff set so we retransform the class
-                        diff.add(className, methodName);
+                        diff.add(id);
                     }
                 }
             }
@@ -216,7 +325,7 @@ public class UpdateSet
 
     public List<String> classNames()
     {
-        if (classMethodIndex.isEmpty()) {
+        if (entryCount.get() == 0) {
             return null;
         }
         List<String> classNames = new ArrayList<String>();
@@ -237,8 +346,8 @@ public class UpdateSet
      */
     public void wakeup()
     {
-        synchronized (classMethodIndex) {
-            classMethodIndex.notifyAll();
+        synchronized (entryCount) {
+            entryCount.notifyAll();
         }
     }
 
@@ -248,19 +357,60 @@ public class UpdateSet
      */
     public void waitForUpdates()
     {
-        synchronized (classMethodIndex) {
-            while (classMethodIndex.isEmpty()) {
+        synchronized (entryCount) {
+            while (entryCount.get() == 0) {
+                try {
+                    entryCount.wait();
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * this is called by the Jokre agent thread when it also has periodic work to do. it waits until new
+     * updates are available or the timeout expires
+     * @param timeoutMillis the maximum time to wait
+     */
+    public void waitForUpdates(long timeoutMillis)
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (entryCount) {
+            long remaining = timeoutMillis;
+            while (entryCount.get() == 0 && remaining > 0) {
                 try {
-                    classMethodIndex.wait();
+                    entryCount.wait(remaining);
                 } catch (InterruptedException ie) {
                     // ignore
                 }
+                remaining = deadline - System.currentTimeMillis();
             }
         }
     }
 
-    public List<String> listMethods(String className) {
-        MethodUpdateSet updateSet = classIndex.get(className);
+    /**
+     * @return true if this set contains the given entry either for the given loader or for any loader
+     */
+    public boolean contains(String className, int loaderId, String methodName)
+    {
+        return (contains(ids.lookup(className, loaderId, methodName)) ||
+                (loaderId != ClassLoaderRegistry.ANY_LOADER &&
+                        contains(ids.lookup(className, ClassLoaderRegistry.ANY_LOADER, methodName))));
+    }
+
+    private boolean contains(int id)
+    {
+        return (id >= 0 && members.get(id) != 0);
+    }
+
+    /**
+     * list the methods to be updated in a class
+     * @param classKey the class key
+     * @return the method names or null if there are none
+     */
+    public List<String> listMethods(String classKey) {
+        MethodUpdateSet updateSet = classIndex.get(classKey);
         if (updateSet != null) {
             return updateSet.collect();
         } else {
@@ -268,44 +418,125 @@ public class UpdateSet
         }
     }
 
-    public void transformed(String className, List<String> methodNames)
+    /**
+     * list the methods to be updated in a class defined by a given loader. this includes the methods
+     * entered for any loader
+     * @param className the class name in external format
+     * @param loaderId the id of the defining loader or ANY_LOADER if it has no id
+     * @return the method names or null if there are none
+     */
+    public List<String> listMethods(String className, int loaderId)
+    {
+        List<String> methodNames = listMethods(className);
+        if (loaderId == ClassLoaderRegistry.ANY_LOADER) {
+            return methodNames;
+        }
+        List<String> loaderMethodNames = listMethods(ClassLoaderRegistry.classKey(className, loaderId));
+        if (methodNames == null) {
+            return loaderMethodNames;
+        }
+        if (loaderMethodNames != null) {
+            for (String methodName : loaderMethodNames) {
+                if (!methodNames.contains(methodName)) {
+                    methodNames.add(methodName);
+                }
+            }
+        }
+        return methodNames;
+    }
+
+    public void transformed(String className, int loaderId, List<String> methodNames)
     {
         // no need for null check as this is only ever called on the update set
+        long now = System.nanoTime();
         for (String methodname : methodNames) {
-            String classMethodName = className + "#" + methodname;
-            // no need for lock as this only ever happens single-threaded
-            List<Long> timestamps = transformedTimestamps.get(classMethodName);
-            if (timestamps == null) {
-                timestamps = new ArrayList<Long>();
-                transformedTimestamps.put(classMethodName, timestamps);
+            int id = ids.lookup(className, loaderId, methodname);
+            if (!contains(id)) {
+                // the method was entered for any loader
+                id = ids.lookup(className, ClassLoaderRegistry.ANY_LOADER, methodname);
+                if (!contains(id)) {
+                    continue;
+                }
             }
-            synchronized (timestamps) {
-                timestamps.add(System.currentTimeMillis());
+            // only the first transform measures the agent's response. later ones are retransforms
+            // of the same class which we just count
+            long processed = processedTimestamps.get(id);
+            long transformCount = transformCounts.get(id);
+            if (transformCount == 0 && processed != 0) {
+                processToTransform.record(now - processed);
             }
+            transformCounts.set(id, transformCount + 1);
+            transformedTimestamps.set(id, now);
         }
     }
 
+    /**
+     * @return the number of classes with entries in this set
+     */
+    public int getClassCount()
+    {
+        return classIndex.size();
+    }
+
+    /**
+     * @return the number of class#method entries in this set. for the staging set this is the number of
+     * notifications still waiting to be processed by the agent
+     */
+    public int getEntryCount()
+    {
+        return entryCount.get();
+    }
+
+    public int getRenotifications()
+    {
+        return renotifications.get();
+    }
+
+    public int getIndexRaces()
+    {
+        return indexRaces.get();
+    }
+
+    public int getInsertionRaces()
+    {
+        return insertionRaces.get();
+    }
+
     public void stats()
     {
-        Set<String> classMethodKeys = classMethodIndex.keySet();
         Set<String> classKeys = classIndex.keySet();
+        List<Integer> entryIds = new ArrayList<Integer>();
+        int size = ids.size();
+        for (int id = 0; id < size; id++) {
+            if (members.get(id) != 0) {
+                entryIds.add(id);
+            }
+        }
         System.out.println("class count:     " + classKeys.size());
         dumpNames(System.out, classKeys);
-        System.out.println("entry count:     " + classMethodKeys.size());
+        System.out.println("entry count:     " + entryIds.size());
         if (transformedTimestamps == null) {
-            dumpNames(System.out, classMethodKeys);
+            List<String> names = new ArrayList<String>();
+            for (int id : entryIds) {
+                names.add(ids.classKey(id) + "#" + ids.methodName(id));
+            }
+            dumpNames(System.out, names);
         } else {
-            dumpTimestamps(System.out, classMethodKeys);
+            dumpTimestamps(System.out, entryIds);
+        }
+        if (notifyToProcess != null) {
+            System.out.println("notify to process:    " + notifyToProcess);
+            System.out.println("process to transform: " + processToTransform);
         }
         System.out.println("renotifications: " + renotifications);
         System.out.println("indexRaces:      " + indexRaces);
         System.out.println("insertionRaces:  " + insertionRaces);
     }
 
-    private void dumpNames(PrintStream out, Set<String> classes)
+    private void dumpNames(PrintStream out, Iterable<String> names)
     {
         StringBuilder builder = new StringBuilder();
-        Iterator<String> iterator = classes.iterator();
+        Iterator<String> iterator = names.iterator();
         builder.append("[");
         String prefix = "";
         while (iterator.hasNext()) {
@@ -318,42 +549,43 @@ public class UpdateSet
         out.println(builder.toString());
     }
 
-    private void dumpTimestamps(PrintStream out, Set<String> classMethodNames)
+    private void dumpTimestamps(PrintStream out, List<Integer> entryIds)
     {
         StringBuilder builder = new StringBuilder();
-        Iterator<String> iterator = classMethodNames.iterator();
         builder.append("  [");
         String prefix = "\n    ";
-        while (iterator.hasNext()) {
-            String classMethodName = iterator.next();
-            Long notified = notifiedTimestamps.get(classMethodName);
-            Long processed = processedTimestamps.get(classMethodName);
-            List<Long> transformed = transformedTimestamps.get(classMethodName);
+        long now = System.nanoTime();
+        for (int id : entryIds) {
+            long notified = notifiedTimestamps.get(id);
+            long processed = processedTimestamps.get(id);
+            long transformed = transformedTimestamps.get(id);
+            long transformCount = transformCounts.get(id);
             builder.append(prefix);
-            builder.append(classMethodName);
+            builder.append(ids.classKey(id));
+            builder.append('#');
+            builder.append(ids.methodName(id));
             // ensure we did not catch this in mid update
-            if (notified == null) {
+            if (notified == 0) {
                 builder.append("transferring . . .");
-            } else  if (processed == null) {
+            } else  if (processed == 0) {
                 builder.append(" notify ");
-                builder.append(System.currentTimeMillis() - notified);
+                builder.append(millis(now - notified));
                 builder.append( "ms");
-            } else  if (transformed == null) {
+            } else  if (transformCount == 0) {
                 builder.append(" notify ");
-                builder.append(processed - notified);
+                builder.append(millis(processed - notified));
                 builder.append( "ms process ") ;
-                builder.append(System.currentTimeMillis() - processed);
+                builder.append(millis(now - processed));
                 builder.append( "ms");
             } else {
                 builder.append(" notified ");
-                builder.append(processed - notified);
-                builder.append( "ms process") ;
-                synchronized(transformed) {
-                    for (int i = 0; i < transformed.size(); i++) {
-                        builder.append( " ");
-                        builder.append(transformed.get(i) - processed);
-                        builder.append( "ms transform");
-                    }
+                builder.append(millis(processed - notified));
+                builder.append( "ms process ") ;
+                builder.append(millis(transformed - processed));
+                builder.append( "ms transform");
+                if (transformCount > 1) {
+                    builder.append(" x");
+                    builder.append(transformCount);
                 }
             }
         }
@@ -361,56 +593,76 @@ public class UpdateSet
         out.println(builder.toString());
     }
 
+    private static long millis(long nanos)
+    {
+        return nanos / 1000000;
+    }
+
+    /**
+     * the ids of the entries for one class key. guarded by itself
+     */
     public class MethodUpdateSet
     {
         public MethodUpdateSet(String className)
         {
             this.className = className;
-            this.methods = new ConcurrentHashMap<String, Object>();
+            this.entryIds = new int[4];
+            this.size = 0;
         }
 
-        public boolean add(String methodName)
+        public synchronized boolean add(int id)
         {
-            return (methods.putIfAbsent(methodName, PRESENT) == null);
+            for (int i = 0; i < size; i++) {
+                if (entryIds[i] == id) {
+                    return false;
+                }
+            }
+            if (size == entryIds.length) {
+                entryIds = Arrays.copyOf(entryIds, size * 2);
+            }
+            entryIds[size++] = id;
+            return true;
         }
 
         public String getClassName()
         {
             return className;
         }
-        
-        public List<String> reset()
+
+        /**
+         * @return the ids in this set or null if it is empty. the set is left empty
+         */
+        public synchronized int[] reset()
         {
-            Enumeration<String> enumeration =  methods.keys();
-            if (enumeration.hasMoreElements()) {
-                ArrayList<String> methodNames = new ArrayList<String>();
-                while (enumeration.hasMoreElements()) {
-                    String methodName = enumeration.nextElement();
-                    methodNames.add(methodName);
-                    methods.remove(methodName);
-                }
-                return methodNames;
-            } else {
+            if (size == 0) {
                 return null;
             }
+            int[] result = Arrays.copyOf(entryIds, size);
+            size = 0;
+            return result;
         }
 
         public List<String> collect()
         {
-            Enumeration<String> enumeration =  methods.keys();
-            if (enumeration.hasMoreElements()) {
-                ArrayList<String> methodNames = new ArrayList<String>();
-                while (enumeration.hasMoreElements()) {
-                    String methodName = enumeration.nextElement();
+            int[] snapshot;
+            synchronized (this) {
+                if (size == 0) {
+                    return null;
+                }
+                snapshot = Arrays.copyOf(entryIds, size);
+            }
+            ArrayList<String> methodNames = new ArrayList<String>();
+            for (int id : snapshot) {
+                String methodName = ids.methodName(id);
+                if (methodName != null) {
                     methodNames.add(methodName);
                 }
-                return methodNames;
-            } else {
-                return null;
             }
+            return methodNames;
         }
 
         private String className;
-        private ConcurrentHashMap<String, Object> methods;
+        private int[] entryIds;
+        private int size;
     }
 }
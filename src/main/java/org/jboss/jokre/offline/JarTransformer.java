@@ -0,0 +1,247 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.offline;
+
+import org.jboss.jokre.transformer.JokreTransformer;
+import org.jboss.jokre.transformer.MapAdapterConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Offline tool which applies the Jokre call site transformation to every class in a jar ahead of time. Map.put
+ * call sites are rewritten to use the NonReturnMap API exactly as the agent would rewrite them after
+ * notification. optionally the Infinispan implementor classes can be woven too so that no agent is needed.
+ *
+ * usage: java -cp jokre.jar org.jboss.jokre.offline.JarTransformer [-implementors] [-classpath path] in.jar out.jar
+ */
+public class JarTransformer
+{
+    private File inputJar;
+    private File outputJar;
+    private List<File> classpath;
+    private boolean transformImplementors;
+
+    private int classCount;
+    private int transformedCount;
+
+    public JarTransformer(File inputJar, File outputJar, List<File> classpath, boolean transformImplementors)
+    {
+        this.inputJar = inputJar;
+        this.outputJar = outputJar;
+        this.classpath = classpath;
+        this.transformImplementors = transformImplementors;
+    }
+
+    public static void main(String[] args)
+    {
+        boolean implementors = false;
+        List<File> classpath = new ArrayList<File>();
+        List<String> jars = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-implementors")) {
+                implementors = true;
+            } else if (arg.equals("-classpath") || arg.equals("-cp")) {
+                if (++i == args.length) {
+                    usage();
+                }
+                for (String path : args[i].split(File.pathSeparator)) {
+                    classpath.add(new File(path));
+                }
+            } else if (arg.startsWith("-")) {
+                usage();
+            } else {
+                jars.add(arg);
+            }
+        }
+
+        if (jars.size() != 2) {
+            usage();
+        }
+
+        JarTransformer transformer = new JarTransformer(new File(jars.get(0)), new File(jars.get(1)), classpath, implementors);
+        try {
+            transformer.transform();
+        } catch (IOException ioe) {
+            System.err.println("JarTransformer : " + ioe.getMessage());
+            System.exit(1);
+        }
+        System.out.println("JarTransformer : transformed " + transformer.getTransformedCount() + " of " +
+                transformer.getClassCount() + " classes");
+    }
+
+    private static void usage()
+    {
+        System.err.println("usage: JarTransformer [-implementors] [-classpath path] input.jar output.jar");
+        System.exit(1);
+    }
+
+    public int getClassCount()
+    {
+        return classCount;
+    }
+
+    public int getTransformedCount()
+    {
+        return transformedCount;
+    }
+
+    /**
+     * rewrite the input jar to the output jar. the output is written to a temporary file alongside the
+     * output jar and then renamed so the output may safely be the same file as the input.
+     * @throws IOException if the input cannot be read or the output cannot be written
+     */
+    public void transform() throws IOException
+    {
+        classCount = 0;
+        transformedCount = 0;
+
+        // the loader is only ever used to locate class bytes as resources. no class is loaded via it
+        URLClassLoader loader = new URLClassLoader(toURLs(), null);
+        // call site counters are allocated by the running JVM so they cannot be used ahead of time
+        JokreTransformer jokreTransformer = new JokreTransformer(false, false);
+        File dir = outputJar.getAbsoluteFile().getParentFile();
+        File tmpFile = File.createTempFile(outputJar.getName(), ".tmp", dir);
+        JarFile jarFile = new JarFile(inputJar);
+
+        try {
+            JarOutputStream out = new JarOutputStream(new FileOutputStream(tmpFile));
+            try {
+                Enumeration<JarEntry> entries = jarFile.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (isSignatureFile(name)) {
+                        // rewritten classes would no longer match the signature
+                        System.err.println("JarTransformer : dropping signature file " + name);
+                        continue;
+                    }
+                    byte[] bytes = readBytes(jarFile.getInputStream(entry));
+                    if (name.endsWith(".class")) {
+                        bytes = transformClass(jokreTransformer, loader, name.substring(0, name.length() - ".class".length()), bytes);
+                    }
+                    JarEntry newEntry = new JarEntry(name);
+                    newEntry.setTime(entry.getTime());
+                    out.putNextEntry(newEntry);
+                    out.write(bytes);
+                    out.closeEntry();
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            tmpFile.delete();
+            throw ioe;
+        } finally {
+            jarFile.close();
+        }
+
+        if (!tmpFile.renameTo(outputJar)) {
+            outputJar.delete();
+            if (!tmpFile.renameTo(outputJar)) {
+                tmpFile.delete();
+                throw new IOException("unable to write " + outputJar);
+            }
+        }
+    }
+
+    private byte[] transformClass(JokreTransformer jokreTransformer, ClassLoader loader, String className, byte[] bytes)
+    {
+        classCount++;
+        byte[] newBytes = bytes;
+
+        if (transformImplementors && isMapImplementorClass(className)) {
+            newBytes = jokreTransformer.extendMapImplementorAPI(loader, className, null, null, newBytes);
+        }
+
+        try {
+            byte[] transformed = jokreTransformer.transformCallSites(loader, className, newBytes, null);
+            if (transformed != null) {
+                newBytes = transformed;
+            }
+        } catch (Exception e) {
+            // leave this class as it is and carry on with the rest of the jar
+            System.err.println("JarTransformer : unable to transform class " + className + " : " + e);
+        }
+
+        if (newBytes != bytes) {
+            transformedCount++;
+        }
+
+        return newBytes;
+    }
+
+    private URL[] toURLs() throws MalformedURLException
+    {
+        URL[] urls = new URL[classpath.size() + 1];
+        urls[0] = inputJar.toURI().toURL();
+        for (int i = 0; i < classpath.size(); i++) {
+            urls[i + 1] = classpath.get(i).toURI().toURL();
+        }
+        return urls;
+    }
+
+    private static boolean isMapImplementorClass(String className)
+    {
+        return (className.equals(MapAdapterConstants.CLASS_CACHE_SUPPORT) ||
+                className.equals(MapAdapterConstants.CLASS_ABSTRACT_DELEGATING_CACHE));
+    }
+
+    private static boolean isSignatureFile(String name)
+    {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0) {
+            return false;
+        }
+        String upper = name.toUpperCase();
+        return (upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC"));
+    }
+
+    private static byte[] readBytes(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        try {
+            while ((read = stream.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            stream.close();
+        }
+        return out.toByteArray();
+    }
+}
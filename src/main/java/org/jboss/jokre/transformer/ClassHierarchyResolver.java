@@ -0,0 +1,328 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.transformer;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.jboss.jokre.transformer.MapAdapterConstants.*;
+
+/**
+ * Resolver used to decide whether a call target class implements NonReturnMap. the super and interface
+ * names are read directly from the class file bytes using a ClassReader so we never load, link or initialize
+ * a class from inside a transform. when a class has no readable bytes, e.g. a generated proxy, the names
+ * are taken from the class itself if the loader has already loaded it. results are memoized per class
+ * loader and shared across transforms. an answer which depends on a class whose supertypes could not be
+ * found is not memoized since the class may be readable or loaded by the time of the next check.
+ */
+public class ClassHierarchyResolver
+{
+    /**
+     * per loader caches mapping internal class names to the result of the NonReturnMap check. loaders are
+     * only weakly referenced so that we do not pin undeployed loaders and a hit takes no lock.
+     */
+    private final ConcurrentHashMap<LoaderKey, ConcurrentHashMap<String, Boolean>> loaderCaches;
+
+    /**
+     * queue onto which the keys of collected loaders are posted so their caches can be dropped
+     */
+    private final ReferenceQueue<ClassLoader> collected;
+
+    /**
+     * cache for the bootstrap loader which is never collected
+     */
+    private final ConcurrentHashMap<String, Boolean> bootstrapCache;
+
+    /**
+     * loader whose parent is the bootstrap loader. it defines no classes of its own so its resource lookups
+     * only search the bootstrap classpath. ClassLoader.getSystemResourceAsStream would also search the
+     * application classpath, finding classes the bootstrap loader cannot see
+     */
+    private static final ClassLoader BOOTSTRAP_RESOURCE_LOADER = new ClassLoader(null) {};
+
+    /**
+     * ClassLoader.findLoadedClass made accessible or null if access is refused. this finds a class which
+     * the loader has already loaded without ever loading one
+     */
+    private static final Method FIND_LOADED_CLASS = lookupFindLoadedClass();
+
+    public ClassHierarchyResolver()
+    {
+        loaderCaches = new ConcurrentHashMap<LoaderKey, ConcurrentHashMap<String, Boolean>>();
+        collected = new ReferenceQueue<ClassLoader>();
+        bootstrapCache = new ConcurrentHashMap<String, Boolean>();
+    }
+
+    /**
+     * open a resource found on the bootstrap classpath
+     * @param resourceName the resource name
+     * @return a stream for the resource or null if the bootstrap classpath does not contain it
+     */
+    public static InputStream getBootstrapResourceAsStream(String resourceName)
+    {
+        return BOOTSTRAP_RESOURCE_LOADER.getResourceAsStream(resourceName);
+    }
+
+    /**
+     * check whether the named class is NonReturnMap or inherits from it either via its superclass chain or
+     * via an implemented interface
+     * @param loader the loader of the class whose call site is being transformed
+     * @param className the internal format name of the call target class
+     * @return true if the class is known to implement NonReturnMap otherwise false
+     */
+    public boolean isNonReturnMap(ClassLoader loader, String className)
+    {
+        return Boolean.TRUE.equals(isNonReturnMap(loader, className, cacheFor(loader)));
+    }
+
+    /**
+     * @return TRUE or FALSE if the answer is known or null if the supertypes of some class in the
+     * hierarchy could not be found
+     */
+    private Boolean isNonReturnMap(ClassLoader loader, String className, ConcurrentHashMap<String, Boolean> cache)
+    {
+        Boolean cached = cache.get(className);
+        if (cached != null) {
+            return cached;
+        }
+
+        Boolean result = computeNonReturnMap(loader, className, cache);
+
+        // racing transforms will compute the same answer so there is no need for putIfAbsent here
+
+        if (result != null) {
+            cache.put(className, result);
+        }
+
+        return result;
+    }
+
+    private Boolean computeNonReturnMap(ClassLoader loader, String className, ConcurrentHashMap<String, Boolean> cache)
+    {
+        if (className.equals(CLASS_NON_RETURN_MAP)) {
+            return Boolean.TRUE;
+        }
+
+        // the implementor classes only acquire NonReturnMap when Jokre transforms them so their
+        // bytes on disk will not mention the interface
+
+        if (className.equals(CLASS_CACHE_SUPPORT) || className.equals(CLASS_ABSTRACT_DELEGATING_CACHE)) {
+            return Boolean.TRUE;
+        }
+
+        // JDK runtime classes cannot implement our interface. this also avoids parsing runtime
+        // class files which may be newer than our version of ASM understands
+
+        if (className.startsWith("java/")) {
+            return Boolean.FALSE;
+        }
+
+        String[] supertypes = readSupertypes(loader, className);
+
+        if (supertypes == null) {
+            supertypes = readLoadedSupertypes(loader, className);
+        }
+
+        if (supertypes == null) {
+            return null;
+        }
+
+        boolean known = true;
+
+        for (int i = 0; i < supertypes.length; i++) {
+            Boolean result = isNonReturnMap(loader, supertypes[i], cache);
+            if (result == null) {
+                known = false;
+            } else if (result.booleanValue()) {
+                return Boolean.TRUE;
+            }
+        }
+
+        return (known ? Boolean.FALSE : null);
+    }
+
+    /**
+     * locate the bytes for a class as a resource using the supplied loader and parse the header
+     * @param loader the loader used to locate the class file or null for the bootstrap loader
+     * @param className the internal format name of the class
+     * @return the class's interfaces followed by its superclass, if any, or null if the class file
+     * cannot be found or parsed
+     */
+    private String[] readSupertypes(ClassLoader loader, String className)
+    {
+        String resourceName = className + ".class";
+        InputStream stream;
+
+        // n.b. resource lookup delegates to the parent loaders just as class lookup does but it
+        // never defines or initializes a class so it cannot recursively invoke our transformer
+
+        if (loader != null) {
+            stream = loader.getResourceAsStream(resourceName);
+        } else {
+            stream = getBootstrapResourceAsStream(resourceName);
+        }
+
+        if (stream == null) {
+            return null;
+        }
+
+        try {
+            ClassReader reader = new ClassReader(stream);
+            String[] interfaces = reader.getInterfaces();
+            String superName = reader.getSuperName();
+            if (superName == null) {
+                return interfaces;
+            }
+            String[] supertypes = new String[interfaces.length + 1];
+            System.arraycopy(interfaces, 0, supertypes, 0, interfaces.length);
+            supertypes[interfaces.length] = superName;
+            return supertypes;
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // ClassReader throws unchecked exceptions for malformed bytes
+            return null;
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * find the supertypes of a class which the loader has already loaded. this covers classes generated at
+     * runtime, which have no class file resource, and classes whose bytes could not be read. a class being
+     * redefined or retransformed is always found this way since it is loaded by its defining loader
+     * @param loader the loader used to find the class or null for the bootstrap loader
+     * @param className the internal format name of the class
+     * @return the class's interfaces followed by its superclass, if any, or null if the loader has not
+     * loaded the class
+     */
+    private String[] readLoadedSupertypes(ClassLoader loader, String className)
+    {
+        // bootstrap classes always have bytes on the bootstrap path
+
+        if (loader == null || FIND_LOADED_CLASS == null) {
+            return null;
+        }
+
+        Class<?> loaded;
+
+        try {
+            loaded = (Class<?>)FIND_LOADED_CLASS.invoke(loader, className.replace('/', '.'));
+        } catch (Exception e) {
+            return null;
+        }
+
+        if (loaded == null) {
+            return null;
+        }
+
+        Class<?>[] interfaces = loaded.getInterfaces();
+        Class<?> superclass = loaded.getSuperclass();
+        String[] supertypes = new String[interfaces.length + (superclass != null ? 1 : 0)];
+        for (int i = 0; i < interfaces.length; i++) {
+            supertypes[i] = interfaces[i].getName().replace('.', '/');
+        }
+        if (superclass != null) {
+            supertypes[interfaces.length] = superclass.getName().replace('.', '/');
+        }
+        return supertypes;
+    }
+
+    private static Method lookupFindLoadedClass()
+    {
+        try {
+            Method method = ClassLoader.class.getDeclaredMethod("findLoadedClass", String.class);
+            method.setAccessible(true);
+            return method;
+        } catch (Exception e) {
+            System.err.println("Jokre : unable to access ClassLoader.findLoadedClass, classes without class files will not be resolved " + e);
+            return null;
+        }
+    }
+
+    private ConcurrentHashMap<String, Boolean> cacheFor(ClassLoader loader)
+    {
+        if (loader == null) {
+            return bootstrapCache;
+        }
+
+        ConcurrentHashMap<String, Boolean> cache = loaderCaches.get(new LoaderKey(loader, null));
+        if (cache != null) {
+            return cache;
+        }
+
+        // first use by this loader. drop the caches of collected loaders before adding a new one
+
+        Reference<? extends ClassLoader> ref;
+        while ((ref = collected.poll()) != null) {
+            loaderCaches.remove(ref);
+        }
+
+        ConcurrentHashMap<String, Boolean> newCache = new ConcurrentHashMap<String, Boolean>();
+        cache = loaderCaches.putIfAbsent(new LoaderKey(loader, collected), newCache);
+        return (cache != null ? cache : newCache);
+    }
+
+    /**
+     * weak key which matches the same loader by identity. keys used for lookups are not registered
+     * with a queue. a key whose loader has been collected only matches itself
+     */
+    private static class LoaderKey extends WeakReference<ClassLoader>
+    {
+        private final int hash;
+
+        LoaderKey(ClassLoader loader, ReferenceQueue<ClassLoader> queue)
+        {
+            super(loader, queue);
+            hash = System.identityHashCode(loader);
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object other)
+        {
+            if (other == this) {
+                return true;
+            }
+            if (!(other instanceof LoaderKey)) {
+                return false;
+            }
+            ClassLoader loader = get();
+            return (loader != null && loader == ((LoaderKey)other).get());
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.transformer;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.EmptyVisitor;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceInterpreter;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.jboss.jokre.transformer.MapAdapterConstants.*;
+
+/**
+ * Visitor used to identify put calls whose result is dead even though it is not simply popped. a result
+ * is dead if it is stored in a local which is never read before being overwritten, if it is cast and the
+ * cast value is dead or if it is popped. the result must be consumed by the instruction immediately
+ * following the call since that is where the call adapter substitutes a null for it.
+ *
+ * finding unread stores needs a dataflow pass over the whole method so only the named methods are scanned
+ * and the pass is skipped for a method with no candidate store. methods with JSR instructions are skipped
+ * too as inlining their subroutines would renumber the put calls.
+ */
+public class DeadPutResultScanner extends EmptyVisitor
+{
+    private String className;
+    private List<String> methodNames;
+    private List<String> jsrMethodNames;
+    private List<MethodNode> methods;
+
+    /**
+     * find the put calls in the named methods whose results are dead
+     * @param reader a reader for the class being transformed
+     * @param methodNames the names of the methods which are to be transformed. if this is null no methods
+     * are scanned
+     * @param jsrMethodNames the names of the methods which contain JSR instructions
+     * @return a possibly empty map from method name plus descriptor to the indices of the put calls in that
+     * method whose results are dead. every call to a method named put with the Map.put descriptor is
+     * counted in order of appearance whatever its owner.
+     */
+    public static Map<String, Set<Integer>> scan(ClassReader reader, List<String> methodNames, List<String> jsrMethodNames)
+    {
+        if (methodNames == null) {
+            return Collections.emptyMap();
+        }
+
+        DeadPutResultScanner scanner = new DeadPutResultScanner(methodNames, jsrMethodNames);
+        // n.b. debug info is retained because the call adapter sees line number labels and we must agree
+        // with it about which calls are directly followed by an instruction
+        reader.accept(scanner, ClassReader.SKIP_FRAMES);
+
+        Map<String, Set<Integer>> result = new HashMap<String, Set<Integer>>();
+        for (MethodNode method : scanner.methods) {
+            Set<Integer> dead = scanner.findDeadResults(method);
+            if (!dead.isEmpty()) {
+                result.put(method.name + method.desc, dead);
+            }
+        }
+        return result;
+    }
+
+    private DeadPutResultScanner(List<String> methodNames, List<String> jsrMethodNames)
+    {
+        this.methodNames = methodNames;
+        this.jsrMethodNames = jsrMethodNames;
+        this.methods = new ArrayList<MethodNode>();
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces)
+    {
+        this.className = name;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
+    {
+        // returning null means the reader skips the code for this method
+        if (!methodNames.contains(name) || jsrMethodNames.contains(name)) {
+            return null;
+        }
+
+        MethodNode method = new MethodNode(access, name, desc, signature, exceptions);
+        methods.add(method);
+        return method;
+    }
+
+    private Set<Integer> findDeadResults(MethodNode method)
+    {
+        InsnList instructions = method.instructions;
+        Set<Integer> dead = new HashSet<Integer>();
+        // index of put calls whose result is stored, mapped to the store which consumes it
+        Map<Integer, AbstractInsnNode> storedResults = new HashMap<Integer, AbstractInsnNode>();
+        int putIndex = 0;
+
+        for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (!isPutCall(insn)) {
+                continue;
+            }
+            AbstractInsnNode consumer = insn.getNext();
+            while (consumer != null && consumer.getOpcode() == Opcodes.CHECKCAST) {
+                consumer = consumer.getNext();
+            }
+            // a null opcode means a label, line number or frame which the call adapter treats as a
+            // possible branch target so the result must be left on the stack
+            if (consumer != null) {
+                if (consumer.getOpcode() == Opcodes.POP) {
+                    dead.add(putIndex);
+                } else if (consumer.getOpcode() == Opcodes.ASTORE) {
+                    storedResults.put(putIndex, consumer);
+                }
+            }
+            putIndex++;
+        }
+
+        if (!storedResults.isEmpty()) {
+            Set<AbstractInsnNode> readStores = findReadStores(method);
+            if (readStores != null) {
+                for (Map.Entry<Integer, AbstractInsnNode> entry : storedResults.entrySet()) {
+                    if (!readStores.contains(entry.getValue())) {
+                        dead.add(entry.getKey());
+                    }
+                }
+            }
+        }
+
+        return dead;
+    }
+
+    /**
+     * find every store instruction whose value may be read by a subsequent load
+     * @return the set of stores or null if the method could not be analyzed
+     */
+    private Set<AbstractInsnNode> findReadStores(MethodNode method)
+    {
+        Frame[] frames;
+        try {
+            frames = new Analyzer(new SourceInterpreter()).analyze(className, method);
+        } catch (AnalyzerException e) {
+            return null;
+        }
+
+        // the source interpreter records for each local the instructions which may have stored its
+        // current value so the stores feeding a load are those recorded in the frame before the load
+
+        InsnList instructions = method.instructions;
+        Set<AbstractInsnNode> readStores = new HashSet<AbstractInsnNode>();
+        int size = instructions.size();
+        for (int i = 0; i < size; i++) {
+            AbstractInsnNode insn = instructions.get(i);
+            if (insn.getOpcode() == Opcodes.ALOAD && frames[i] != null) {
+                SourceValue value = (SourceValue)frames[i].getLocal(((VarInsnNode)insn).var);
+                for (Object source : value.insns) {
+                    readStores.add((AbstractInsnNode)source);
+                }
+            }
+        }
+        return readStores;
+    }
+
+    /**
+     * @return true if the instruction is a call to a method named put with the Map.put descriptor
+     */
+    private static boolean isPutCall(AbstractInsnNode insn)
+    {
+        if (insn.getType() != AbstractInsnNode.METHOD_INSN) {
+            return false;
+        }
+        MethodInsnNode call = (MethodInsnNode)insn;
+        return call.name.equals(PUT_METHOD_NAME) && call.desc.equals(PUT_METHOD_DESC);
+    }
+}
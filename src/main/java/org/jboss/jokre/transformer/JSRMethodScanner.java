@@ -0,0 +1,87 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.transformer;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.EmptyVisitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Visitor used to identify which of the methods we are about to transform contain JSR instructions and
+ * hence need their subroutines inlining. only the code of the named methods is scanned.
+ */
+public class JSRMethodScanner extends EmptyVisitor
+{
+    private List<String> methodNames;
+    private List<String> jsrMethodNames;
+
+    /**
+     * find the subset of the named methods which employ JSR
+     * @param reader a reader for the class being transformed
+     * @param methodNames the names of the methods which are to be transformed or null for all methods
+     * @return a possibly empty list of the names of those methods which contain a JSR instruction
+     */
+    public static List<String> scan(ClassReader reader, List<String> methodNames)
+    {
+        // JSR and RET are illegal from version 51 on so there is no need to look at the code
+        if (reader.readUnsignedShort(6) >= Opcodes.V1_7) {
+            return Collections.emptyList();
+        }
+
+        JSRMethodScanner scanner = new JSRMethodScanner(methodNames);
+        reader.accept(scanner, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return scanner.jsrMethodNames;
+    }
+
+    private JSRMethodScanner(List<String> methodNames)
+    {
+        this.methodNames = methodNames;
+        this.jsrMethodNames = new ArrayList<String>();
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, final String name, String desc, String signature, String[] exceptions)
+    {
+        // returning null means the reader skips the code for this method
+        if (methodNames != null && !methodNames.contains(name)) {
+            return null;
+        }
+
+        return new EmptyVisitor()
+        {
+            @Override
+            public void visitJumpInsn(int opcode, Label label)
+            {
+                if (opcode == Opcodes.JSR && !jsrMethodNames.contains(name)) {
+                    jsrMethodNames.add(name);
+                }
+            }
+        };
+    }
+}
@@ -22,14 +22,25 @@
 */
 package org.jboss.jokre.transformer;
 
+import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
+import org.jboss.jokre.DiscardHint;
+import org.jboss.jokre.NearCache;
+import org.jboss.jokre.ReadYourWrites;
+import org.jboss.jokre.agent.ClassLoaderRegistry;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * class  which does the actual bytecode transformation to calls to  Map.put() with
@@ -37,25 +48,234 @@ import java.util.List;
  */
 public class JokreTransformer
 {
+    /**
+     * resolver used to identify NonReturnMap call targets from their class bytes. it is shared across
+     * transforms so each class hierarchy only gets parsed once
+     */
+    private ClassHierarchyResolver hierarchyResolver = new ClassHierarchyResolver();
+
+    /**
+     * on-disk cache of transformed bytes or null if caching has not been configured
+     */
+    private TransformCache transformCache;
+
+    /**
+     * true if call sites are to be routed via NonReturnMapBridge rather than calling the NonReturnMap
+     * API directly. this is needed when the Map implementor classes were loaded before the agent was
+     * attached as retransformation cannot add the NonReturnMap interface to them
+     */
+    private boolean bridge;
+
+    /**
+     * true if transformed call sites are to count their fast, slow and fallback hits
+     */
+    private boolean countCallSites;
+
+    /**
+     * true if the put methods generated for Map implementors are to record their latency
+     */
+    private boolean timeImplementors = (System.getProperty(TIME_IMPLEMENTORS) != null);
+
+    /**
+     * keys of call sites which are to be left as plain put calls even when their method is transformed. a
+     * key is qualified by the id of the loader whose copy of the class contains the site unless it was
+     * loaded from a profile, in which case it applies to every loader
+     */
+    private Set<String> excludedSites = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * true if results discarded by the caller of a wrapper method are to be passed down to the wrapper
+     */
+    private boolean followWrappers;
+
+    /**
+     * names of the wrapper methods called from each method, indexed by internal class name and then
+     * by method name
+     */
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, Set<String>>> wrapperNames =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, Set<String>>>();
+
+    /**
+     * true if the get method of the Infinispan cache implementation is to be instrumented so that a thread
+     * can read back its own fast path writes while they are in flight
+     */
+    private boolean readYourWrites;
+
+    /**
+     * true if the get method of the Infinispan cache implementation is to notify Jokre of its callers and
+     * their get call sites are to be redirected to NearCache
+     */
+    private boolean nearCache;
+
+    /**
+     * class#method entries, with the class in external format, for wrappers transformed since the last
+     * call to drainWrappers
+     */
+    private ConcurrentLinkedQueue<String> newWrappers = new ConcurrentLinkedQueue<String>();
+
+    public JokreTransformer()
+    {
+        this(false);
+    }
+
+    public JokreTransformer(boolean bridge)
+    {
+        this(bridge, System.getProperty(COUNT_CALL_SITES) != null);
+    }
+
+    public JokreTransformer(boolean bridge, boolean countCallSites)
+    {
+        this.bridge = bridge;
+        this.countCallSites = countCallSites;
+        this.followWrappers = (System.getProperty(FOLLOW_WRAPPERS) != null);
+        if (followWrappers && bridge) {
+            System.err.println("JokreTransformer : wrappers cannot be followed when the agent is attached after infinispan");
+            followWrappers = false;
+        }
+        // bridged call sites always use the original put so there is never a write in flight
+        this.readYourWrites = ReadYourWrites.isEnabled() && !bridge;
+        // the notifying get has to be added before the cache implementation is loaded
+        this.nearCache = NearCache.isConfigured() && !bridge;
+        if (NearCache.isConfigured() && bridge) {
+            System.err.println("JokreTransformer : near caching is not available when the agent is attached after infinispan");
+        }
+        this.transformCache = computeTransformCache(countCallSites, followWrappers);
+    }
+
+    /**
+     * @return true if call sites are routed via NonReturnMapBridge
+     */
+    public boolean isBridge()
+    {
+        return bridge;
+    }
+
+    /**
+     * stop a call site being transformed. the site reverts to a plain put call the next time its
+     * class is retransformed
+     * @param siteKey the key computed for the site by CallSiteCounters.siteKey. only the copy of the class
+     * defined by the loader named in the key is affected unless the key is for ANY_LOADER
+     * @return true if the site was not already excluded
+     */
+    public boolean excludeSite(String siteKey)
+    {
+        return excludedSites.add(siteKey);
+    }
+
+    /**
+     * forget the excluded sites in classes defined by loaders which have been collected
+     * @param loaderIds the ids of the collected loaders
+     */
+    public void releaseExcludedSites(List<Integer> loaderIds)
+    {
+        Iterator<String> iterator = excludedSites.iterator();
+        while (iterator.hasNext()) {
+            String siteKey = iterator.next();
+            if (loaderIds.contains(ClassLoaderRegistry.loaderId(siteKey.substring(0, siteKey.indexOf('#'))))) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the keys of all call sites which have been excluded from transformation
+     */
+    public Set<String> getExcludedSites()
+    {
+        return Collections.unmodifiableSet(excludedSites);
+    }
+
+    /**
+     * @return true if results discarded by the caller of a wrapper method are passed down to the wrapper
+     */
+    public boolean isFollowingWrappers()
+    {
+        return followWrappers;
+    }
+
+    /**
+     * record that a method calls a wrapper method so that a DiscardHint is set when it discards the
+     * result. the hint is set the next time the caller's class is transformed
+     * @param className the caller's class name in internal format
+     * @param methodName the name of the calling method
+     * @param wrapperName the name of the wrapper method
+     * @return true if this call was not already recorded
+     */
+    public boolean addWrapperCall(String className, String methodName, String wrapperName)
+    {
+        ConcurrentHashMap<String, Set<String>> methods = wrapperNames.get(className);
+        if (methods == null) {
+            ConcurrentHashMap<String, Set<String>> newMethods = new ConcurrentHashMap<String, Set<String>>();
+            methods = wrapperNames.putIfAbsent(className, newMethods);
+            if (methods == null) {
+                methods = newMethods;
+            }
+        }
+        Set<String> names = methods.get(methodName);
+        if (names == null) {
+            Set<String> newNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            names = methods.putIfAbsent(methodName, newNames);
+            if (names == null) {
+                names = newNames;
+            }
+        }
+        return names.add(wrapperName);
+    }
+
+    /**
+     * @return the class#method entries for the wrapper methods transformed since the last call, with each
+     * class name in external format
+     */
+    public List<String> drainWrappers()
+    {
+        List<String> result = new ArrayList<String>();
+        String wrapper;
+        while ((wrapper = newWrappers.poll()) != null) {
+            result.add(wrapper);
+        }
+        return result;
+    }
+
+    /**
+     * @return a description of the options which affect the generated code for use in transform cache keys
+     */
+    public String getVariant()
+    {
+        return (bridge ? "bridge;" : ";") + (timeImplementors ? "timed;" : ";") + (readYourWrites ? "overlay;" : ";") + (nearCache ? "near;" : ";");
+    }
+
+    /**
+     * @return the on-disk cache of transformed class bytes or null if none has been configured
+     */
+    public TransformCache getTransformCache()
+    {
+        return transformCache;
+    }
+
     public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
                             ProtectionDomain protectionDomain, byte[] classfileBuffer, List<String> methodNames)
     {
-        // traceTransform(className, methodNames);
-        ClassReader reader = new ClassReader(classfileBuffer);
-        // TODO -- see if we really need to compute and expand frames
-        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-        // ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-        MapPutCallAdapter adapter = new MapPutCallAdapter(writer, loader, methodNames);
+        return transform(loader, ClassLoaderRegistry.ANY_LOADER, className, classBeingRedefined, protectionDomain, classfileBuffer, methodNames);
+    }
 
+    /**
+     * transform Map.put call sites in a class
+     * @param loaderId the ClassLoaderRegistry id of the defining loader or ANY_LOADER. it qualifies the
+     * keys used to register and exclude the class's call sites
+     */
+    public byte[] transform(ClassLoader loader, int loaderId, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer, List<String> methodNames)
+    {
+        // traceTransform(className, methodNames);
         try {
-            reader.accept(adapter, 0);
-            // reader.accept(adapter, 0);
-            if (adapter.isTransformed()) {
-                byte[] newBytes = writer.toByteArray();
-                maybeDumpClass(className, newBytes);
+            byte[] newBytes = transformCallSites(loader, loaderId, className, classfileBuffer, methodNames);
+            if (newBytes != null) {
                 return newBytes;
             } else {
-                System.err.println("JokreTransformer : Failed to transform class " + className);
+                // if every site in the class has been excluded then handing back the original bytes is correct
+                if (excludedSites.isEmpty()) {
+                    System.err.println("JokreTransformer : Failed to transform class " + className);
+                }
                 return classfileBuffer;
             }
         } catch (Exception e) {
@@ -65,6 +285,69 @@ public class JokreTransformer
         }
     }
 
+    /**
+     * transform Map.put call sites in the supplied class bytes
+     * @param loader the loader used to locate the bytes of call target classes
+     * @param className the internal format name of the class
+     * @param classfileBuffer the bytes to transform
+     * @param methodNames the names of the methods to transform or null if all methods should be transformed
+     * @return the transformed bytes or null if no call site was transformed
+     */
+    public byte[] transformCallSites(ClassLoader loader, String className, byte[] classfileBuffer, List<String> methodNames)
+    {
+        return transformCallSites(loader, ClassLoaderRegistry.ANY_LOADER, className, classfileBuffer, methodNames);
+    }
+
+    /**
+     * transform Map.put call sites in the supplied class bytes
+     * @param loader the loader used to locate the bytes of call target classes
+     * @param loaderId the ClassLoaderRegistry id of the defining loader or ANY_LOADER
+     * @param className the internal format name of the class
+     * @param classfileBuffer the bytes to transform
+     * @param methodNames the names of the methods to transform or null if all methods should be transformed
+     * @return the transformed bytes or null if no call site was transformed
+     */
+    public byte[] transformCallSites(ClassLoader loader, int loaderId, String className, byte[] classfileBuffer, List<String> methodNames)
+    {
+        ClassReader reader = new ClassReader(classfileBuffer);
+        // n.b. we do not use COMPUTE_FRAMES as it needs to load classes to find common super types and
+        // reanalyses every method. instead frames are expanded on input so the call adapter can track
+        // the stack shape at each call site and emit frames for the labels it inserts. we don't need
+        // COMPUTE_MAXS either as the call adapter knows how much extra stack it uses. passing the reader
+        // to the writer allows methods we do not transform to be copied through unchanged
+        ClassWriter writer = new ClassWriter(reader, 0);
+
+        List<String> jsrMethodNames = JSRMethodScanner.scan(reader, methodNames);
+        Map<String, Set<Integer>> deadPutResults = DeadPutResultScanner.scan(reader, methodNames, jsrMethodNames);
+        Map<String, Set<String>> classWrapperNames = null;
+        Map<String, WrapperCallScanner.Result> wrapperSites = null;
+        if (followWrappers) {
+            classWrapperNames = wrapperNames.get(className);
+            wrapperSites = WrapperCallScanner.scan(reader, methodNames, jsrMethodNames, classWrapperNames);
+        }
+        MapGetCallAdapter getAdapter = null;
+        if (nearCache) {
+            // get calls are replaced one for one so this can sit below the put adapter without disturbing
+            // the frames it computes
+            getAdapter = new MapGetCallAdapter(writer, loader, methodNames, hierarchyResolver);
+        }
+        MapPutCallAdapter adapter = new MapPutCallAdapter((getAdapter != null ? getAdapter : writer), loader, loaderId, methodNames, jsrMethodNames, hierarchyResolver,
+                bridge, countCallSites, excludedSites, deadPutResults, wrapperSites, classWrapperNames);
+        reader.accept(adapter, ClassReader.EXPAND_FRAMES);
+        if (adapter.isTransformed() || (getAdapter != null && getAdapter.isTransformed())) {
+            String classNameExternal = className.replace('/', '.');
+            for (Map.Entry<String, String> entry : adapter.getWrappers().entrySet()) {
+                DiscardHint.register(loader, classNameExternal, entry.getKey());
+                newWrappers.add(classNameExternal + "#" + entry.getValue());
+            }
+            byte[] newBytes = writer.toByteArray();
+            maybeDumpClass(className, newBytes);
+            return newBytes;
+        } else {
+            return null;
+        }
+    }
+
     /**
      * Modify the supplied Map class implementer so it's API can be optimized by the Jokre optimizer.
      * This requires instrumenting the normal slow path put(key, value) method so it notifies Jokre
@@ -81,7 +364,7 @@ public class JokreTransformer
     {
         ClassReader reader = new ClassReader(classfileBuffer);
         ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS|ClassWriter.COMPUTE_FRAMES);
-        MapPutImplementorAdapter adapter = new MapPutImplementorAdapter(writer, loader, className);
+        MapPutImplementorAdapter adapter = new MapPutImplementorAdapter(writer, loader, className, timeImplementors);
 
         try {
             reader.accept(adapter, ClassReader.EXPAND_FRAMES);
@@ -96,6 +379,76 @@ public class JokreTransformer
         }
     }
 
+    /**
+     * Modify the supplied Map class implementer so that its put(key, value) method notifies Jokre when
+     * it is called. This is the variant of extendMapImplementorAPI used for a class which has already
+     * been loaded. Retransformation may not add methods or interfaces so no alternative implementations
+     * are added. Instead transformed call sites use NonReturnMapBridge.
+     * @param className
+     * @param classfileBuffer
+     */
+    public byte[] instrumentMapImplementorPut(String className, byte[] classfileBuffer)
+    {
+        ClassReader reader = new ClassReader(classfileBuffer);
+        // the inserted code has no branches and leaves the locals alone so existing frames are still valid
+        ClassWriter writer = new ClassWriter(reader, 0);
+        MapPutNotifyAdapter adapter = new MapPutNotifyAdapter(writer);
+
+        try {
+            reader.accept(adapter, 0);
+            byte[] newBytes = writer.toByteArray();
+            maybeDumpClass(className, newBytes);
+            return newBytes;
+        } catch (Exception e) {
+            System.err.println("JokreTransformer : Failed to instrument MAP API class " + className);
+            System.err.println("JokreTransformer.transform : exception " + e);
+            e.printStackTrace(System.err);
+            return classfileBuffer;
+        }
+    }
+
+    /**
+     * @param className the internal name of a class
+     * @return true if the class's get method must be instrumented for the read your writes overlay or
+     * for near caching
+     */
+    public boolean isMapGetClass(String className)
+    {
+        return (readYourWrites || nearCache) && className.equals(MapAdapterConstants.CLASS_CACHE_IMPL);
+    }
+
+    /**
+     * Modify the get(key) method of the supplied Map class implementer so that it returns any value the
+     * calling thread has written to the key through a fast path put which has not yet completed and/or
+     * so that it notifies Jokre of its callers for near caching.
+     * @param className
+     * @param classfileBuffer
+     */
+    public byte[] instrumentMapGet(String className, byte[] classfileBuffer)
+    {
+        ClassReader reader = new ClassReader(classfileBuffer);
+        // the inserted code has no branches and leaves the locals alone so existing frames are still valid
+        ClassWriter writer = new ClassWriter(reader, 0);
+        ClassAdapter adapter = (nearCache ? new MapGetNotifyAdapter(writer) : null);
+        if (readYourWrites) {
+            // this sees the get method before it is renamed so the overlay ends up in get$original where
+            // near cache misses see it too
+            adapter = new MapGetOverlayAdapter(adapter != null ? adapter : writer);
+        }
+
+        try {
+            reader.accept(adapter, 0);
+            byte[] newBytes = writer.toByteArray();
+            maybeDumpClass(className, newBytes);
+            return newBytes;
+        } catch (Exception e) {
+            System.err.println("JokreTransformer : Failed to instrument MAP get in class " + className);
+            System.err.println("JokreTransformer.transform : exception " + e);
+            e.printStackTrace(System.err);
+            return classfileBuffer;
+        }
+    }
+
     public static void maybeDumpClass(String fullName, byte[] bytes)
     {
         if (dumpGeneratedClasses) {
@@ -172,6 +525,29 @@ public class JokreTransformer
         }
     }
 
+    private static TransformCache computeTransformCache(boolean countCallSites, boolean followWrappers)
+    {
+        String cacheDir = System.getProperty(TRANSFORM_CACHE_DIRECTORY);
+        if (cacheDir == null) {
+            return null;
+        }
+        if (countCallSites) {
+            // counted call sites embed ids allocated in this JVM so their bytes cannot be reused
+            System.out.println("JokreTransformer : Transform cache disabled because call site counting is enabled");
+            return null;
+        }
+        if (followWrappers) {
+            // the sites which pass a DiscardHint depend upon the calls seen in this JVM
+            System.out.println("JokreTransformer : Transform cache disabled because wrappers are being followed");
+            return null;
+        }
+        if (!ensureDumpDirectory(cacheDir)) {
+            System.out.println("JokreTransformer : Cannot cache transformed bytes in directory " + cacheDir);
+            return null;
+        }
+        return new TransformCache(new File(cacheDir));
+    }
+
     private static boolean ensureDumpDirectory(String fileName)
     {
         File file = new File(fileName);
@@ -226,4 +602,24 @@ public class JokreTransformer
      * system property set (to any value) in order to switch on dumping of generated bytecode to .class files
      */
     public static final String DUMP_GENERATED_CLASSES_DIR = JOKRE_PACKAGE_PREFIX + "dump.generated.classes.directory";
+
+    /**
+     * system property naming a directory in which transformed bytecode is cached across runs
+     */
+    public static final String TRANSFORM_CACHE_DIRECTORY = JOKRE_PACKAGE_PREFIX + "transform.cache.directory";
+
+    /**
+     * system property set (to any value) in order to count fast, slow and fallback hits at each transformed call site
+     */
+    public static final String COUNT_CALL_SITES = JOKRE_PACKAGE_PREFIX + "count.call.sites";
+
+    /**
+     * system property set (to any value) in order to record per cache latency histograms for Map implementor put methods
+     */
+    public static final String TIME_IMPLEMENTORS = JOKRE_PACKAGE_PREFIX + "time.implementors";
+
+    /**
+     * system property set (to any value) in order to pass discarded put results down through wrapper methods
+     */
+    public static final String FOLLOW_WRAPPERS = JOKRE_PACKAGE_PREFIX + "follow.wrappers";
 }
@@ -38,6 +38,7 @@ public class MapAdapterConstants
     public final static String PUT_METHOD_FAST_PATH_NAME = "put$fastPath";
     public final static String PUT_METHOD_ORIGINAL_SLOW_PATH_NAME = "put$originalSlowPath";
     public final static String PUT_METHOD_ALTERNATIVE_SLOW_PATH_NAME = "put$alternativeSlowPath";
+    public final static String PUT_METHOD_EXCLUDED_SITE_NAME = "put$excludedSite";
     public final static String PUT_METHOD_DESC = "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
     public final static String SET_METHOD_DESC = "(Ljava/lang/Object;Ljava/lang/Object;)V";
 
@@ -52,4 +53,78 @@ public class MapAdapterConstants
     public final static String NOTIFY_MAP_PUT_METHOD_NAME = "notifyMapPut";
     public final static String NOTIFY_MAP_PUT_METHOD_DESC = "()Z";
     public final static String CLASS_JOKRE = "org/jboss/jokre/agent/Jokre";
+
+    public final static String CLASS_NON_RETURN_MAP_BRIDGE = "org/jboss/jokre/NonReturnMapBridge";
+    public final static String BRIDGE_FAST_PATH_DESC = "(Ljava/util/Map;Ljava/lang/Object;Ljava/lang/Object;)V";
+    public final static String BRIDGE_ALTERNATIVE_SLOW_PATH_DESC = "(Ljava/util/Map;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+
+    public final static String CLASS_CALL_SITE_COUNTERS = "org/jboss/jokre/CallSiteCounters";
+    public final static String COUNT_FAST_METHOD_NAME = "fast";
+    public final static String COUNT_SLOW_METHOD_NAME = "slow";
+    public final static String COUNT_FALLBACK_METHOD_NAME = "fallback";
+    public final static String COUNT_METHOD_DESC = "(I)V";
+
+    public final static String CLASS_LATENCY_HISTOGRAMS = "org/jboss/jokre/LatencyHistograms";
+    public final static String RECORD_LATENCY_METHOD_NAME = "record";
+    public final static String RECORD_LATENCY_METHOD_DESC = "(Ljava/lang/String;IJ)V";
+    public final static String GET_NAME_METHOD_NAME = "getName";
+    public final static String GET_NAME_METHOD_DESC = "()Ljava/lang/String;";
+    public final static int LATENCY_PUT = 0;
+    public final static int LATENCY_FAST_PATH = 1;
+    public final static int LATENCY_ALTERNATIVE_SLOW_PATH = 2;
+
+    public final static String CLASS_FAST_PATH_MAP = "org/jboss/jokre/FastPathMap";
+    public final static String CLASS_FAST_PATH_POLICY = "org/jboss/jokre/FastPathPolicy";
+    public final static String FAST_PATH_POLICY_DESC = "Lorg/jboss/jokre/FastPathPolicy;";
+    public final static String POLICY_FIELD_NAME = "jokre$policy";
+    public final static String GET_POLICY_METHOD_NAME = "jokre$getPolicy";
+    public final static String GET_POLICY_METHOD_DESC = "()Lorg/jboss/jokre/FastPathPolicy;";
+    public final static String SET_POLICY_METHOD_NAME = "jokre$setPolicy";
+    public final static String SET_POLICY_METHOD_DESC = "(Lorg/jboss/jokre/FastPathPolicy;)V";
+    public final static String CACHE_NAME_METHOD_NAME = "jokre$cacheName";
+    public final static String PUT_METHOD_SYNC_NO_RETURN_NAME = "put$syncNoReturn";
+    public final static String PUT_METHOD_ASYNC_NAME = "put$async";
+    public final static String PUT_METHOD_ORIGINAL_NAME = "put$original";
+    public final static String PUT_ASYNC_METHOD_NAME = "putAsync";
+    public final static String PUT_ASYNC_METHOD_DESC = "(Ljava/lang/Object;Ljava/lang/Object;)Lorg/infinispan/util/concurrent/NotifyingFuture;";
+    public final static String POLICY_IS_ACTIVE_METHOD_NAME = "isActive";
+    public final static String POLICY_IS_ACTIVE_METHOD_DESC = "()Z";
+    public final static String POLICY_PUT_METHOD_NAME = "put";
+    public final static String POLICY_PUT_METHOD_DESC = "(Lorg/jboss/jokre/FastPathMap;Ljava/lang/Object;Ljava/lang/Object;)V";
+
+    public final static String CLASS_DISCARD_HINT = "org/jboss/jokre/DiscardHint";
+    public final static String DISCARD_HINT_TAKE_METHOD_NAME = "take";
+    public final static String DISCARD_HINT_TAKE_METHOD_DESC = "(Ljava/lang/Object;Ljava/lang/String;)Z";
+    public final static String DISCARD_HINT_SET_METHOD_NAME = "set";
+    public final static String DISCARD_HINT_SET_METHOD_DESC = "(Ljava/lang/Object;Ljava/lang/String;)V";
+    public final static String DISCARD_HINT_SET_IF_METHOD_NAME = "setIf";
+    public final static String DISCARD_HINT_SET_IF_METHOD_DESC = "(Ljava/lang/Object;ZLjava/lang/String;)V";
+    public final static String DISCARD_HINT_PUT_METHOD_NAME = "put";
+    public final static String DISCARD_HINT_PUT_METHOD_DESC = "(Lorg/jboss/jokre/NonReturnMap;Ljava/lang/Object;Ljava/lang/Object;Z)Ljava/lang/Object;";
+
+    public final static String CLASS_CACHE_IMPL = "org/infinispan/CacheImpl";
+    public final static String GET_METHOD_NAME = "get";
+    public final static String GET_METHOD_DESC = "(Ljava/lang/Object;)Ljava/lang/Object;";
+    public final static String CLASS_READ_YOUR_WRITES = "org/jboss/jokre/ReadYourWrites";
+    public final static String OVERLAY_METHOD_NAME = "overlay";
+    public final static String OVERLAY_METHOD_DESC = "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+
+    public final static String NOTIFY_MAP_GET_METHOD_NAME = "notifyMapGet";
+    public final static String NOTIFY_MAP_GET_METHOD_DESC = "(Ljava/lang/Object;)Z";
+    public final static String GET_METHOD_ORIGINAL_NAME = "get$original";
+    public final static String CLASS_NEAR_CACHE = "org/jboss/jokre/NearCache";
+    public final static String NEAR_CACHE_DESC = "Lorg/jboss/jokre/NearCache;";
+    public final static String NEAR_CACHE_GET_METHOD_DESC = "(Ljava/util/Map;Ljava/lang/Object;)Ljava/lang/Object;";
+    public final static String NEAR_CACHE_FIELD_NAME = "jokre$nearCache";
+    public final static String GET_NEAR_CACHE_METHOD_NAME = "jokre$getNearCache";
+    public final static String GET_NEAR_CACHE_METHOD_DESC = "()Lorg/jboss/jokre/NearCache;";
+    public final static String SET_NEAR_CACHE_METHOD_NAME = "jokre$setNearCache";
+    public final static String SET_NEAR_CACHE_METHOD_DESC = "(Lorg/jboss/jokre/NearCache;)V";
+    public final static String INVALIDATE_METHOD_NAME = "invalidate";
+    public final static String INVALIDATE_METHOD_DESC = "(Ljava/lang/Object;)V";
+    public final static String LISTENER_ANNOTATION_DESC = "Lorg/infinispan/notifications/Listener;";
+    public final static String CLASS_CACHE_ENTRY_EVENT = "org/infinispan/notifications/cachelistener/event/CacheEntryEvent";
+    public final static String CACHE_ENTRY_EVENT_DESC = "L" + CLASS_CACHE_ENTRY_EVENT + ";";
+    public final static String GET_KEY_METHOD_NAME = "getKey";
+    public final static String GET_KEY_METHOD_DESC = "()Ljava/lang/Object;";
 }
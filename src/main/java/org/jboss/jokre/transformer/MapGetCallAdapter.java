@@ -0,0 +1,113 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.transformer;
+
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import static org.jboss.jokre.transformer.MapAdapterConstants.*;
+
+import java.util.List;
+
+/**
+ * Adapter used to redirect calls to Map.get to NearCache.get. the static call takes the map and key in
+ * the order they are already stacked and returns the value so it replaces the get call one for one and
+ * no labels, frames or extra stack are needed. NearCache.get falls back to a plain get for any map which
+ * is not near cached.
+ */
+public class MapGetCallAdapter extends ClassAdapter
+{
+    private ClassLoader loader;
+    private List<String> methodNames;
+    private ClassHierarchyResolver resolver;
+    private boolean transformed;
+
+    public MapGetCallAdapter(ClassVisitor cv, ClassLoader loader, List<String> methodNames, ClassHierarchyResolver resolver)
+    {
+        super(cv);
+        this.loader = loader;
+        this.methodNames = methodNames;
+        this.resolver = resolver;
+        this.transformed = false;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
+    {
+        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+
+        // a null method name list means every method is a candidate
+        if (methodNames == null || methodNames.contains(name)) {
+            return new MapGetCallMethodAdapter(mv);
+        } else {
+            // handing back the writer's own visitor allows it to copy the method bytes through verbatim
+            return mv;
+        }
+    }
+
+    public boolean isTransformed() {
+        return transformed;
+    }
+
+    /**
+     * method adapter which identifies Map.get calls and redirects them
+     */
+    private class MapGetCallMethodAdapter extends MethodAdapter
+    {
+        MapGetCallMethodAdapter(MethodVisitor mv)
+        {
+            super(mv);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc)
+        {
+            if (name.equals(GET_METHOD_NAME) && desc.equals(GET_METHOD_DESC) && isMapGet(opcode, owner)) {
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_NEAR_CACHE, GET_METHOD_NAME, NEAR_CACHE_GET_METHOD_DESC);
+                transformed = true;
+            } else {
+                super.visitMethodInsn(opcode, owner, name, desc);
+            }
+        }
+
+        private boolean isMapGet(int opcode, String owner)
+        {
+            // the same targets as for put. n.b. we must not load the owner class here as we are inside a transform
+
+            switch (opcode) {
+                case Opcodes.INVOKEINTERFACE:
+                    return (owner.equals(CLASS_MAP) ||
+                            owner.equals(CLASS_CONCURRENT_MAP) ||
+                            owner.equals(CLASS_CACHE) ||
+                            owner.equals(CLASS_ADVANCED_CACHE));
+                case Opcodes.INVOKEVIRTUAL:
+                    return resolver.isNonReturnMap(loader, owner);
+                default:
+                    return false;
+            }
+        }
+    }
+}
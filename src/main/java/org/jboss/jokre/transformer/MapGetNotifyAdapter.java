@@ -0,0 +1,94 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.transformer;
+
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import static org.jboss.jokre.transformer.MapAdapterConstants.*;
+
+/**
+ * Adapter used to make the get method of the Infinispan cache implementation notify Jokre of its callers
+ * so that their get call sites can be redirected to a NearCache. the original get is renamed to
+ * get$original, overriding the version MapPutImplementorAdapter adds to the implementor, so that a near
+ * cache miss can read the cache without notifying. a new get notifies Jokre then calls get$original.
+ * the class must be loaded after the implementor was transformed so this is not used when the agent is
+ * attached late.
+ */
+public class MapGetNotifyAdapter extends ClassAdapter
+{
+    private String className;
+    private int access;
+    private String signature;
+    private String[] exceptions;
+    private boolean renamed;
+
+    public MapGetNotifyAdapter(ClassVisitor cv)
+    {
+        super(cv);
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces)
+    {
+        this.className = name;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
+    {
+        if (name.equals(GET_METHOD_NAME) && desc.equals(GET_METHOD_DESC) && (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_STATIC)) == 0) {
+            this.access = access;
+            this.signature = signature;
+            this.exceptions = exceptions;
+            this.renamed = true;
+            // the body is copied unchanged so its frames remain valid
+            name = GET_METHOD_ORIGINAL_NAME;
+        }
+        return super.visitMethod(access, name, desc, signature, exceptions);
+    }
+
+    @Override
+    public void visitEnd()
+    {
+        if (renamed) {
+            // generate a get which notifies Jokre and then calls the original. it has no branches so it
+            // needs no frames. it keeps the original's access flags so that subclasses may still override it
+            MethodVisitor mv = super.visitMethod(access, GET_METHOD_NAME, GET_METHOD_DESC, signature, exceptions);
+            mv.visitCode();
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_JOKRE, NOTIFY_MAP_GET_METHOD_NAME, NOTIFY_MAP_GET_METHOD_DESC);
+            mv.visitInsn(Opcodes.POP);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, className, GET_METHOD_ORIGINAL_NAME, GET_METHOD_DESC);
+            mv.visitInsn(Opcodes.ARETURN);
+            mv.visitMaxs(2, 2);
+            mv.visitEnd();
+        }
+        super.visitEnd();
+    }
+}
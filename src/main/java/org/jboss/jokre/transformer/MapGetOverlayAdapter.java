@@ -0,0 +1,76 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.transformer;
+
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import static org.jboss.jokre.transformer.MapAdapterConstants.*;
+
+/**
+ * Adapter used to instrument the get method of the Infinispan cache implementation so that each value it
+ * returns is passed through ReadYourWrites.overlay. this lets a thread read back a fast path write which
+ * is still in flight. the key is reloaded from its parameter slot so the method must not reassign it.
+ */
+public class MapGetOverlayAdapter extends ClassAdapter
+{
+    public MapGetOverlayAdapter(ClassVisitor cv)
+    {
+        super(cv);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
+    {
+        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+
+        if (name.equals(GET_METHOD_NAME) && desc.equals(GET_METHOD_DESC) && (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_STATIC)) == 0) {
+            return new MethodAdapter(mv)
+            {
+                @Override
+                public void visitInsn(int opcode)
+                {
+                    if (opcode == Opcodes.ARETURN) {
+                        // no branches are added and the locals are untouched so existing frames remain valid
+                        super.visitVarInsn(Opcodes.ALOAD, 0);
+                        super.visitVarInsn(Opcodes.ALOAD, 1);
+                        super.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_READ_YOUR_WRITES, OVERLAY_METHOD_NAME, OVERLAY_METHOD_DESC);
+                    }
+                    super.visitInsn(opcode);
+                }
+
+                @Override
+                public void visitMaxs(int maxStack, int maxLocals)
+                {
+                    // the cache and key are pushed above the result
+                    super.visitMaxs(maxStack + 2, maxLocals);
+                }
+            };
+        }
+
+        return mv;
+    }
+}
@@ -23,10 +23,17 @@
 package org.jboss.jokre.transformer;
 
 import org.objectweb.asm.*;
+import org.objectweb.asm.commons.AnalyzerAdapter;
 import org.objectweb.asm.commons.JSRInlinerAdapter;
+import org.jboss.jokre.CallSiteCounters;
+import org.jboss.jokre.agent.ClassLoaderRegistry;
 import static org.jboss.jokre.transformer.MapAdapterConstants.*;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Adapter used to transform calls to Map.put into a potentially more efficient implementation
@@ -34,34 +41,109 @@ import java.util.List;
 public class MapPutCallAdapter extends ClassAdapter
 {
     private ClassLoader loader;
+    private int loaderId;
     private List<String> methodNames;
+    private List<String> jsrMethodNames;
+    private ClassHierarchyResolver resolver;
     private boolean transformed;
+    private String className;
+    private boolean requiresFrames;
+    private boolean bridge;
+    private boolean countSites;
+    private String sourceFile;
+    private Set<String> excludedSites;
+    private Map<String, Set<Integer>> deadPutResults;
+    private Map<String, WrapperCallScanner.Result> wrapperSites;
+    private Map<String, Set<String>> wrapperNames;
+    private Map<String, String> wrappers;
+
+    public MapPutCallAdapter(ClassVisitor cv, ClassLoader loader, List<String> methodNames, List<String> jsrMethodNames,
+                             ClassHierarchyResolver resolver)
+    {
+        this(cv, loader, ClassLoaderRegistry.ANY_LOADER, methodNames, jsrMethodNames, resolver, false, false, null, null, null, null);
+    }
 
-    public MapPutCallAdapter(ClassVisitor cv, ClassLoader loader, List<String> methodNames)
+    /**
+     * @param loaderId the ClassLoaderRegistry id of the loader defining the class or ANY_LOADER. it
+     * qualifies the keys used to register and exclude call sites
+     * @param bridge true if call sites are to be routed via NonReturnMapBridge
+     * @param countSites true if call sites are to count their fast, slow and fallback hits
+     * @param excludedSites keys of call sites, as computed by CallSiteCounters.siteKey, which are to be
+     * left as plain put calls or null if there are none. a key for ANY_LOADER excludes the site whatever
+     * the loader
+     * @param deadPutResults indices of the put calls in each method whose results are dead, as computed by
+     * DeadPutResultScanner, or null if none are known
+     * @param wrapperSites the DiscardHint sites in each method, as computed by WrapperCallScanner, or null if
+     * wrappers are not being followed
+     * @param wrapperNames the names of the wrapper methods called from each method, as passed to
+     * WrapperCallScanner, or null if there are none
+     */
+    public MapPutCallAdapter(ClassVisitor cv, ClassLoader loader, int loaderId, List<String> methodNames, List<String> jsrMethodNames,
+                             ClassHierarchyResolver resolver, boolean bridge, boolean countSites, Set<String> excludedSites,
+                             Map<String, Set<Integer>> deadPutResults, Map<String, WrapperCallScanner.Result> wrapperSites,
+                             Map<String, Set<String>> wrapperNames)
     {
         super(cv);
         this.loader = loader;
+        this.loaderId = loaderId;
         this.methodNames = methodNames;
+        this.jsrMethodNames = jsrMethodNames;
+        this.resolver = resolver;
+        this.bridge = bridge;
+        // the bridge dispatches at runtime so there is no inline guard whose outcome we could count
+        this.countSites = countSites && !bridge;
+        this.excludedSites = excludedSites;
+        this.deadPutResults = deadPutResults;
+        // the bridge has no variant of the alternative slow path which can discard the result
+        this.wrapperSites = (bridge ? null : wrapperSites);
+        this.wrapperNames = wrapperNames;
+        this.wrappers = new HashMap<String, String>();
         this.transformed = false;
     }
 
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces)
+    {
+        this.className = name;
+        // class files from version 50 on carry a StackMapTable so we have to supply frames for the
+        // labels we insert. the minor version lives in the top 16 bits so mask it off
+        // n.b. a bridge call replaces the put call one for one so no labels or frames are needed
+        this.requiresFrames = !bridge && (version & 0xFFFF) >= Opcodes.V1_6;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public void visitSource(String source, String debug)
+    {
+        this.sourceFile = source;
+        super.visitSource(source, debug);
+    }
+
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
     {
         MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
 
-        if (methodNames.contains(name))
+        // a null method name list means every method is a candidate
+        if (methodNames == null || methodNames.contains(name))
         {
-            // TODO -- see if we really need to use a JSR inliner
-            MapPutCallMethodAdapter adapter = new MapPutCallMethodAdapter(mv);
-            //return adapter;
-            MethodVisitor inliner = new JSRInlinerAdapter(adapter, access, name, desc, signature, exceptions);
-            return inliner;
-            // return new MapPutMethodAdapter(inliner, access, name, desc, signature, exceptions);
+            MapPutCallMethodAdapter adapter = new MapPutCallMethodAdapter(mv, access, name, desc);
+            MethodVisitor next = adapter;
+            if (requiresFrames) {
+                // track the frame state of the original code so the adapter can describe the
+                // stack at the labels it inserts without recomputing frames for the whole method
+                AnalyzerAdapter analyzer = new AnalyzerAdapter(className, access, name, desc, adapter);
+                adapter.setAnalyzer(analyzer);
+                next = analyzer;
+            }
+            if (jsrMethodNames.contains(name)) {
+                // we only pay for buffering and inlining subroutines when a method we rewrite needs it
+                return new JSRInlinerAdapter(next, access, name, desc, signature, exceptions);
+            }
+            return next;
         } else {
-            //return mv;
-            MethodVisitor inliner = new JSRInlinerAdapter(mv, access, name, desc, signature, exceptions);
-            return inliner;
+            // handing back the writer's own visitor allows it to copy the method bytes through verbatim
+            return mv;
         }
     }
 
@@ -69,6 +151,14 @@ public class MapPutCallAdapter extends ClassAdapter
         return transformed;
     }
 
+    /**
+     * @return the wrapper methods which now take a DiscardHint on entry as a map from the key they take to
+     * the method name
+     */
+    public Map<String, String> getWrappers() {
+        return wrappers;
+    }
+
     /**
      * method adapter which identifies Map.put calls and transforms them
      */
@@ -78,13 +168,80 @@ public class MapPutCallAdapter extends ClassAdapter
         private boolean isPending;
         private int pendingOpcode;
         private String pendingOwner;
+        private boolean methodTransformed;
 
-        public MapPutCallMethodAdapter(MethodVisitor mv)
+        /**
+         * analyzer tracking the frame state of the original code or null if we do not need to emit frames
+         */
+        private AnalyzerAdapter analyzer;
+        /**
+         * locals and stack in force immediately before the pending put call
+         */
+        private List<Object> pendingLocals;
+        private List<Object> pendingStack;
+        /**
+         * frame for the join label at the end of the last generated call sequence. we hold on to it until
+         * we see the next instruction because the original code may supply its own frame at that offset
+         */
+        private Object[] joinLocals;
+        private Object[] joinStack;
+        /**
+         * locals in force on entry to the method and a flag recording whether any frame has been
+         * written yet. the writer treats the first frame it sees as the implicit entry frame so a
+         * method with no frames of its own needs that frame emitting before we add ours
+         */
+        private Object[] initialLocals;
+        private boolean frameVisited;
+        /**
+         * details used to register call sites when site counting is enabled. the ordinal counts put
+         * call sites in the order they appear so it identifies a site across retransforms
+         */
+        private String methodName;
+        private String methodDesc;
+        private int currentLine = -1;
+        private int pendingLine;
+        private int siteOrdinal = 0;
+        private int pendingOrdinal;
+        /**
+         * indices of the put calls in this method whose results are dead or null if there are none. the
+         * index counts every call named put with the Map.put descriptor, as DeadPutResultScanner does
+         */
+        private Set<Integer> deadResults;
+        private int putCallIndex = 0;
+        private boolean pendingDead;
+        /**
+         * DiscardHint sites in this method or null if there are none. calls to wrappers are counted using
+         * the names WrapperCallScanner was given, in the same way as it counts them
+         */
+        private boolean isStatic;
+        private WrapperCallScanner.Result wrapperResult;
+        private Set<String> calleeNames;
+        private int wrapperCallIndex = 0;
+        private boolean pendingTail;
+        /**
+         * extra stack needed by the code we insert
+         */
+        private int extraStack = 0;
+
+        public MapPutCallMethodAdapter(MethodVisitor mv, int access, String methodName, String methodDesc)
         {
             super(mv);
+            this.methodName = methodName;
+            this.methodDesc = methodDesc;
+            this.deadResults = (deadPutResults != null ? deadPutResults.get(methodName + methodDesc) : null);
+            this.isStatic = ((access & Opcodes.ACC_STATIC) != 0);
+            this.wrapperResult = (wrapperSites != null ? wrapperSites.get(methodName + methodDesc) : null);
+            this.calleeNames = (wrapperResult != null && wrapperNames != null ? wrapperNames.get(methodName) : null);
             isPending = false;
             pendingOwner = null;
             pendingOpcode = 0;
+            methodTransformed = false;
+            analyzer = null;
+        }
+
+        public void setAnalyzer(AnalyzerAdapter analyzer)
+        {
+            this.analyzer = analyzer;
         }
 
         /**
@@ -103,10 +260,31 @@ public class MapPutCallAdapter extends ClassAdapter
 
             isPending = false;
             transformed = true;
+            methodTransformed = true;
+            boolean discardable = pendingTail && !throwAway;
+
+            if (bridge) {
+                // the static bridge takes the same operands as the put call so it can simply replace it
+                if (throwAway) {
+                    // [... map, key, value] ==> [...]
+                    super.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_NON_RETURN_MAP_BRIDGE, PUT_METHOD_FAST_PATH_NAME, BRIDGE_FAST_PATH_DESC);
+                } else {
+                    // [... map, key, value] ==> [... retvalue]
+                    super.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_NON_RETURN_MAP_BRIDGE, PUT_METHOD_ALTERNATIVE_SLOW_PATH_NAME, BRIDGE_ALTERNATIVE_SLOW_PATH_DESC);
+                }
+                return true;
+            }
 
             // generate the required put call sequence if a put call is pending and
             // then clear the pending flag
 
+            extraStack = Math.max(extraStack, (discardable ? 3 : 2));
+
+            int siteId = -1;
+            if (countSites) {
+                siteId = CallSiteCounters.register(className, loaderId, methodName, methodDesc, sourceFile, pendingLine, pendingOrdinal);
+            }
+
             Label l1 = new Label();
             Label l2 = new Label();
             // [... map, key, value] ==> [... key, value, map, key, value]
@@ -119,6 +297,12 @@ public class MapPutCallAdapter extends ClassAdapter
             super.visitTypeInsn(Opcodes.INSTANCEOF, CLASS_NON_RETURN_MAP);
             // [... key, value, map, bool] ==> [... key, value, map]
             super.visitJumpInsn(Opcodes.IFEQ, l1);
+            if (countSites) {
+                // [... key, value, map] ==> [... key, value, map]
+                pushInt(siteId);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_CALL_SITE_COUNTERS,
+                        (throwAway ? COUNT_FAST_METHOD_NAME : COUNT_SLOW_METHOD_NAME), COUNT_METHOD_DESC);
+            }
             // [... key, value, map ] ==> [... key, value, map]
             super.visitTypeInsn(Opcodes.CHECKCAST, CLASS_NON_RETURN_MAP);
             // [... key, value, map ] ==> [... map, key, value, map]
@@ -128,12 +312,32 @@ public class MapPutCallAdapter extends ClassAdapter
             if (throwAway) {
                 // [... map, key, value] ==> [...]
                 super.visitMethodInsn(Opcodes.INVOKEINTERFACE, CLASS_NON_RETURN_MAP, PUT_METHOD_FAST_PATH_NAME, SET_METHOD_DESC);
+            } else if (discardable) {
+                // the result is returned from this wrapper so let the hint taken on entry decide the path
+                // [... map, key, value] ==> [... map, key, value, discard]
+                super.visitVarInsn(Opcodes.ILOAD, wrapperResult.discardLocal);
+                // [... map, key, value, discard] ==> [... retvalue]
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_DISCARD_HINT, DISCARD_HINT_PUT_METHOD_NAME, DISCARD_HINT_PUT_METHOD_DESC);
             } else {
                 // [... map, key, value] ==> [... retvalue]
                 super.visitMethodInsn(Opcodes.INVOKEINTERFACE, CLASS_NON_RETURN_MAP, PUT_METHOD_ALTERNATIVE_SLOW_PATH_NAME, PUT_METHOD_DESC);
             }
             super.visitJumpInsn(Opcodes.GOTO, l2);
             super.visitLabel(l1);
+            if (analyzer != null) {
+                // [... key, value, map ] with the map still typed as the original call target
+                int size = pendingStack.size();
+                List<Object> stack = new ArrayList<Object>(pendingStack.subList(0, size - 3));
+                stack.add(pendingStack.get(size - 2));
+                stack.add(pendingStack.get(size - 1));
+                stack.add(pendingStack.get(size - 3));
+                emitFrame(compressFrameTypes(pendingLocals), compressFrameTypes(stack));
+            }
+            if (countSites) {
+                // [... key, value, map] ==> [... key, value, map]
+                pushInt(siteId);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_CALL_SITE_COUNTERS, COUNT_FALLBACK_METHOD_NAME, COUNT_METHOD_DESC);
+            }
             // [... key, value, map ] ==> [... map, key, value, map]
             super.visitInsn(Opcodes.DUP_X2);
             // [... map, key, value, map ] ==> [... map, key, value]
@@ -145,6 +349,18 @@ public class MapPutCallAdapter extends ClassAdapter
                 super.visitInsn(Opcodes.POP);
             }
             super.visitLabel(l2);
+            if (analyzer != null) {
+                // [...] or [... retval] depending upon whether the result was thrown away
+                int size = pendingStack.size();
+                List<Object> stack = new ArrayList<Object>(pendingStack.subList(0, size - 3));
+                if (!throwAway) {
+                    stack.add("java/lang/Object");
+                }
+                joinLocals = compressFrameTypes(pendingLocals);
+                joinStack = compressFrameTypes(stack);
+            }
+            pendingLocals = null;
+            pendingStack = null;
 
             // we return true here to indicate that the pop has been taken care of.
             // if the caller was going to generate a pop then this will inhibit it.
@@ -152,81 +368,164 @@ public class MapPutCallAdapter extends ClassAdapter
             return true;
         }
 
+        /**
+         * generate any pending put call ahead of an instruction other than a POP. if the call's result is
+         * known to be dead the fast path is taken and a null is pushed for the instruction to consume
+         */
+        private void generatePendingBeforeInsn()
+        {
+            if (isPending && pendingDead) {
+                generatePending(true);
+                flushJoinFrame();
+                // [...] ==> [... null]
+                super.visitInsn(Opcodes.ACONST_NULL);
+            } else {
+                generatePending(false);
+                flushJoinFrame();
+            }
+        }
+
         @Override
         public void visitInsn(int opcode) {
             if (opcode == Opcodes.POP) {
                 if (!generatePending(true)) {
+                    flushJoinFrame();
                     super.visitInsn(opcode);
                 }
             } else {
-                generatePending(false);
+                generatePendingBeforeInsn();
                 super.visitInsn(opcode);
             }
         }
 
         @Override
-        public void visitIntInsn(int opcode, int operand) {
+        public void visitLabel(Label label) {
+            // a pending put must be generated before the label as it may be a branch target. we retain any
+            // join frame because the original code may follow this label with its own frame
             generatePending(false);
+            super.visitLabel(label);
+        }
+
+        @Override
+        public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+            // a frame supplied by the original code describes the join offset at least as well as ours
+            generatePending(false);
+            joinLocals = null;
+            joinStack = null;
+            frameVisited = true;
+            if (type == Opcodes.F_NEW && isWrapper()) {
+                local = addDiscardLocal(local, nLocal);
+                nLocal = local.length;
+            }
+            super.visitFrame(type, nLocal, local, nStack, stack);
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            currentLine = line;
+            super.visitLineNumber(line, start);
+        }
+
+        @Override
+        public void visitCode() {
+            if (analyzer != null) {
+                initialLocals = compressFrameTypes(analyzer.locals);
+            }
+            super.visitCode();
+            if (isWrapper()) {
+                // take the hint left by our caller and save it for the tail calls which return our result
+                String key = wrapperKey(className, methodName, methodDesc, isStatic);
+                // [] ==> [target]
+                if (isStatic) {
+                    super.visitLdcInsn(Type.getObjectType(className));
+                } else {
+                    super.visitVarInsn(Opcodes.ALOAD, 0);
+                }
+                // [target] ==> [target, key]
+                super.visitLdcInsn(key);
+                // [target, key] ==> [discard]
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_DISCARD_HINT, DISCARD_HINT_TAKE_METHOD_NAME, DISCARD_HINT_TAKE_METHOD_DESC);
+                // [discard] ==> []
+                super.visitVarInsn(Opcodes.ISTORE, wrapperResult.discardLocal);
+                extraStack = Math.max(extraStack, 2);
+                transformed = true;
+                methodTransformed = true;
+                wrappers.put(key, methodName);
+            }
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            generatePendingBeforeInsn();
             super.visitIntInsn(opcode, operand);
         }
 
         @Override
         public void visitVarInsn(int opcode, int var) {
-            generatePending(false);
+            generatePendingBeforeInsn();
             super.visitVarInsn(opcode, var);
         }
 
         @Override
         public void visitTypeInsn(int opcode, String desc) {
-            generatePending(false);
+            generatePendingBeforeInsn();
             super.visitTypeInsn(opcode, desc);
         }
 
         @Override
         public void visitFieldInsn(int opcode, String owner, String name, String desc) {
-            generatePending(false);
+            generatePendingBeforeInsn();
             super.visitFieldInsn(opcode, owner, name, desc);
         }
 
         @Override
         public void visitJumpInsn(int opcode, Label label) {
-            generatePending(false);
+            generatePendingBeforeInsn();
             super.visitJumpInsn(opcode, label);
         }
 
         @Override
         public void visitLdcInsn(Object cst) {
-            generatePending(false);
+            generatePendingBeforeInsn();
             super.visitLdcInsn(cst);
         }
 
         @Override
         public void visitIincInsn(int var, int increment) {
-            generatePending(false);
+            generatePendingBeforeInsn();
             super.visitIincInsn(var, increment);
         }
 
         @Override
         public void visitTableSwitchInsn(int min, int max, Label dflt, Label[] labels) {
-            generatePending(false);
+            generatePendingBeforeInsn();
             super.visitTableSwitchInsn(min, max, dflt, labels);
         }
 
         @Override
         public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
-            generatePending(false);
+            generatePendingBeforeInsn();
             super.visitLookupSwitchInsn(dflt, keys, labels);
         }
 
         @Override
         public void visitMultiANewArrayInsn(String desc, int dims) {
-            generatePending(false);
+            generatePendingBeforeInsn();
             super.visitMultiANewArrayInsn(desc, dims);
         }
 
         @Override
         public void visitMethodInsn(int opcode, String owner, String name, String desc) {
-            generatePending(false);
+            generatePendingBeforeInsn();
+
+            if (calleeNames != null && calleeNames.contains(name)) {
+                int callIndex = wrapperCallIndex++;
+                if (wrapperResult.discardedCalls.contains(callIndex)) {
+                    setHint(opcode, owner, name, desc, false);
+                } else if (wrapperResult.tailCalls.contains(callIndex)) {
+                    setHint(opcode, owner, name, desc, true);
+                }
+            }
 
             // we are interested in cases where the call is to java.util.Map.put() or
             // java.util.concurrent.ConcurrentMap.put(). These are the only two map
@@ -239,6 +538,8 @@ public class MapPutCallAdapter extends ClassAdapter
                 return;
             }
 
+            int callIndex = putCallIndex++;
+
             switch(opcode) {
                 case Opcodes.INVOKEINTERFACE:
                 {
@@ -248,20 +549,16 @@ public class MapPutCallAdapter extends ClassAdapter
                             owner.equals(CLASS_ADVANCED_CACHE))
                     {
                         // delay generation of the put call until we see the next instruction
-                        isPending  = true;
-                        pendingOwner = owner;
-                        pendingOpcode = opcode;
-                        return;
+                        if (startPending(opcode, owner, callIndex)) {
+                            return;
+                        }
                     }
                 }
                 break;
                 case Opcodes.INVOKEVIRTUAL:
                 {
-                    if (isNonReturnMap(owner)) {
+                    if (isNonReturnMap(owner) && startPending(opcode, owner, callIndex)) {
                         // delay generation of the put call until we see the next instruction
-                        isPending  = true;
-                        pendingOwner = owner;
-                        pendingOpcode = opcode;
                         return;
                     }
                     break;
@@ -274,45 +571,231 @@ public class MapPutCallAdapter extends ClassAdapter
         @Override
         public void visitMaxs(int maxStack, int maxLocals) {
             // high water mark is 2 higher when we generate the transformed call
-            // if (methodTransformed) {
-            //     maxStack += 2;
-            // }
+            maxStack += extraStack;
+            if (isWrapper()) {
+                maxLocals = Math.max(maxLocals, wrapperResult.discardLocal + 1);
+            }
+            joinLocals = null;
+            joinStack = null;
             super.visitMaxs(maxStack, maxLocals);
         }
 
-        private boolean isNonReturnMap(String owner)
+        /**
+         * @param ordinal the ordinal of a call site in this method
+         * @return true if the site has been excluded from transformation in this loader's copy of the class
+         * or in every copy
+         */
+        private boolean isExcluded(int ordinal)
         {
-            //  TODO we use a class load here for now but we may need to avoid this later
-
-            Class<?> ownerClass;
-            try {
-                ownerClass = loader.loadClass(owner.replace('/', '.'));
-            } catch (Exception e) {
+            if (excludedSites == null || excludedSites.isEmpty()) {
                 return false;
             }
+            return (excludedSites.contains(CallSiteCounters.siteKey(className, loaderId, methodName, methodDesc, ordinal)) ||
+                    (loaderId != ClassLoaderRegistry.ANY_LOADER &&
+                     excludedSites.contains(CallSiteCounters.siteKey(className, ClassLoaderRegistry.ANY_LOADER, methodName, methodDesc, ordinal))));
+        }
 
-            return isInfinispanCacheClass(ownerClass);
+        /**
+         * mark a put call as pending. if its site has been excluded from transformation then the call is
+         * instead replaced with a call to a static method which puts without notifying the agent
+         * @param callIndex the index of the call among all put calls in the method
+         * @return true if the call is now pending or has been replaced or false if it must be generated as it is
+         */
+        private boolean startPending(int opcode, String owner, int callIndex)
+        {
+            // n.b. the ordinal must be allocated whether or not the site is transformed so that it
+            // identifies the same site every time this method is transformed
+            pendingLine = currentLine;
+            pendingOrdinal = siteOrdinal++;
+            if (isExcluded(pendingOrdinal)) {
+                // an excluded site mostly sees plain maps but a plain put on a NonReturnMap would walk the
+                // stack to notify the agent every time. the static method takes the same operands as the put
+                // call so no frames are needed
+                // [... map, key, value] ==> [... retvalue]
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_NON_RETURN_MAP_BRIDGE,
+                        (bridge ? PUT_METHOD_ALTERNATIVE_SLOW_PATH_NAME : PUT_METHOD_EXCLUDED_SITE_NAME),
+                        BRIDGE_ALTERNATIVE_SLOW_PATH_DESC);
+                transformed = true;
+                methodTransformed = true;
+                return true;
+            }
+            if (!capturePendingFrame()) {
+                return false;
+            }
+            isPending  = true;
+            pendingDead = (deadResults != null && deadResults.contains(callIndex));
+            pendingTail = (isWrapper() && wrapperResult.tailPuts.contains(callIndex));
+            pendingOwner = owner;
+            pendingOpcode = opcode;
+            return true;
         }
 
-        private boolean isInfinispanCacheClass(Class<?> candidate)
+        /**
+         * record the frame state in force before a put call we are about to delay
+         * @return false if frames are required but the analyzer cannot describe the current frame in
+         * which case the call must be left as it is
+         */
+        private boolean capturePendingFrame()
         {
-            // n.b. reflection gives us class names in external format
-            if (candidate.getName().equals(MapAdapterConstants.CLASS_NON_RETURN_MAP_EXTERNAL)) {
+            if (analyzer == null) {
                 return true;
             }
-            // check local interfaces
-            Class<?> interfaces[] = candidate.getInterfaces();
-            for (int i = 0; i < interfaces.length; i++) {
-                if (isInfinispanCacheClass(interfaces[i])) {
-                    return true;
+            // n.b. the analyzer forwards each instruction before executing it so the call
+            // target and arguments are still on its stack at this point
+            if (analyzer.locals == null) {
+                return false;
+            }
+            // the analyzer's lists are raw so view them as lists of unknown type before copying
+            pendingLocals = new ArrayList<Object>((List<?>)analyzer.locals);
+            pendingStack = new ArrayList<Object>((List<?>)analyzer.stack);
+            return true;
+        }
+
+        /**
+         * emit the frame for the join label of the last generated call sequence if the original
+         * code did not supply one
+         */
+        private void flushJoinFrame()
+        {
+            if (joinLocals != null) {
+                emitFrame(joinLocals, joinStack);
+                joinLocals = null;
+                joinStack = null;
+            }
+        }
+
+        private void pushInt(int value)
+        {
+            if (value <= 5) {
+                super.visitInsn(Opcodes.ICONST_0 + value);
+            } else if (value <= Byte.MAX_VALUE) {
+                super.visitIntInsn(Opcodes.BIPUSH, value);
+            } else if (value <= Short.MAX_VALUE) {
+                super.visitIntInsn(Opcodes.SIPUSH, value);
+            } else {
+                super.visitLdcInsn(Integer.valueOf(value));
+            }
+        }
+
+        private void emitFrame(Object[] locals, Object[] stack)
+        {
+            if (!frameVisited) {
+                super.visitFrame(Opcodes.F_NEW, initialLocals.length, initialLocals, 0, new Object[0]);
+                frameVisited = true;
+            }
+            if (isWrapper()) {
+                locals = addDiscardLocal(locals, locals.length);
+            }
+            super.visitFrame(Opcodes.F_NEW, locals.length, locals, stack.length, stack);
+        }
+
+        /**
+         * @return true if this method takes a DiscardHint on entry
+         */
+        private boolean isWrapper()
+        {
+            return wrapperResult != null && wrapperResult.discardLocal >= 0;
+        }
+
+        /**
+         * set a DiscardHint ahead of a call to a wrapper method
+         * @param conditional true if the hint is only to be set when our own caller discards our result
+         */
+        private void setHint(int opcode, String owner, String name, String desc, boolean conditional)
+        {
+            boolean staticCall = (opcode == Opcodes.INVOKESTATIC);
+            if (staticCall) {
+                // [... args] ==> [... args, owner]
+                super.visitLdcInsn(Type.getObjectType(owner));
+            } else {
+                // copy the receiver from beneath at most two single slot arguments
+                switch (Type.getArgumentTypes(desc).length) {
+                    case 0:
+                        // [... recv] ==> [... recv, recv]
+                        super.visitInsn(Opcodes.DUP);
+                        break;
+                    case 1:
+                        // [... recv, a] ==> [... recv, a, recv, a]
+                        super.visitInsn(Opcodes.DUP2);
+                        // [... recv, a, recv, a] ==> [... recv, a, recv]
+                        super.visitInsn(Opcodes.POP);
+                        break;
+                    default:
+                        // [... recv, a, b] ==> [... a, b, recv, a, b]
+                        super.visitInsn(Opcodes.DUP2_X1);
+                        // [... a, b, recv, a, b] ==> [... a, b, recv]
+                        super.visitInsn(Opcodes.POP2);
+                        // [... a, b, recv] ==> [... recv, a, b, recv]
+                        super.visitInsn(Opcodes.DUP_X2);
+                        break;
                 }
             }
-            Class<?> superclass = candidate.getSuperclass();
-            if (superclass != Object.class && superclass != null) {
-                return isInfinispanCacheClass(superclass);
+            if (conditional) {
+                // [... target] ==> [... target, discard, key]
+                super.visitVarInsn(Opcodes.ILOAD, wrapperResult.discardLocal);
+                super.visitLdcInsn(wrapperKey(owner, name, desc, staticCall));
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_DISCARD_HINT, DISCARD_HINT_SET_IF_METHOD_NAME, DISCARD_HINT_SET_IF_METHOD_DESC);
+            } else {
+                // [... target] ==> [... target, key]
+                super.visitLdcInsn(wrapperKey(owner, name, desc, staticCall));
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_DISCARD_HINT, DISCARD_HINT_SET_METHOD_NAME, DISCARD_HINT_SET_METHOD_DESC);
+            }
+            extraStack = Math.max(extraStack, 3);
+            transformed = true;
+            methodTransformed = true;
+        }
+
+        /**
+         * append the slot holding the hint taken on entry to a frame's locals
+         */
+        private Object[] addDiscardLocal(Object[] locals, int nLocal)
+        {
+            List<Object> result = new ArrayList<Object>(wrapperResult.discardLocal + 1);
+            int slots = 0;
+            for (int i = 0; i < nLocal; i++) {
+                result.add(locals[i]);
+                slots += (locals[i] == Opcodes.LONG || locals[i] == Opcodes.DOUBLE ? 2 : 1);
+            }
+            while (slots < wrapperResult.discardLocal) {
+                result.add(Opcodes.TOP);
+                slots++;
+            }
+            result.add(Opcodes.INTEGER);
+            return result.toArray();
+        }
+
+        /**
+         * convert analyzer frame types to visitFrame format. the analyzer uses two slots for long and
+         * double values whereas visitFrame expects a single entry
+         */
+        private Object[] compressFrameTypes(List<?> types)
+        {
+            List<Object> result = new ArrayList<Object>(types.size());
+            int size = types.size();
+            for (int i = 0; i < size; i++) {
+                Object type = types.get(i);
+                result.add(type);
+                if (type == Opcodes.LONG || type == Opcodes.DOUBLE) {
+                    i++;
+                }
             }
+            return result.toArray();
+        }
+
+        /**
+         * @return the key a wrapper and its callers use for DiscardHint. a static method is qualified with
+         * its owner since its target is the owner class. n.b. the key is loaded as a constant so it is interned
+         */
+        private String wrapperKey(String owner, String name, String desc, boolean staticCall)
+        {
+            return (staticCall ? owner + "." + name + desc : name + desc);
+        }
+
+        private boolean isNonReturnMap(String owner)
+        {
+            // n.b. we must not load the owner class here as we are inside a transform
 
-            return false;
+            return resolver.isNonReturnMap(loader, owner);
         }
     }
 }
\ No newline at end of file
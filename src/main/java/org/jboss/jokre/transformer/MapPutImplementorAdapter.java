@@ -24,6 +24,7 @@ package org.jboss.jokre.transformer;
 
 import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
@@ -39,25 +40,36 @@ public class MapPutImplementorAdapter extends ClassAdapter
     String[] asyncExceptions;
     String signature;
     String asyncSignature;
+    private boolean timed;
 
     public MapPutImplementorAdapter(ClassVisitor cv, ClassLoader loader, String className)
+    {
+        this(cv, loader, className, false);
+    }
+
+    /**
+     * @param timed true if the generated put methods should record their latency in LatencyHistograms
+     */
+    public MapPutImplementorAdapter(ClassVisitor cv, ClassLoader loader, String className, boolean timed)
     {
         super(cv);
         this.className =  className;
         this.exceptions = null;
+        this.timed = timed;
     }
 
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces)
     {
-        // add the extra interface which we want this class to implement
+        // add the extra interfaces which we want this class to implement
 
         final int length = interfaces.length;
-        String[] newInterfaces = new String[length +1];
+        String[] newInterfaces = new String[length + 2];
         for (int i = 0; i < length; i++) {
             newInterfaces[i]= interfaces[i];
         }
         newInterfaces[length] = MapAdapterConstants.CLASS_NON_RETURN_MAP;
+        newInterfaces[length + 1] = MapAdapterConstants.CLASS_FAST_PATH_MAP;
 
         super.visit(version, access, name, signature, superName, newInterfaces);
     }
@@ -95,22 +107,36 @@ public class MapPutImplementorAdapter extends ClassAdapter
         mv.visitCode();
         mv.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_JOKRE, NOTIFY_MAP_PUT_METHOD_NAME, NOTIFY_MAP_PUT_METHOD_DESC);
         mv.visitInsn(Opcodes.POP);
+        startTimer(mv);
         mv.visitVarInsn(Opcodes.ALOAD, 0);
         mv.visitVarInsn(Opcodes.ALOAD, 1);
         mv.visitVarInsn(Opcodes.ALOAD, 2);
         mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, className, PUT_METHOD_ORIGINAL_SLOW_PATH_NAME, PUT_METHOD_DESC);
+        stopTimer(mv, LATENCY_PUT);
         mv.visitInsn(Opcodes.ARETURN);
         mv.visitMaxs(3, 3);
         mv.visitEnd();
 
-        // generate put$fastPath which calls putAsync
+        // generate put$fastPath which calls set unless a FastPathPolicy is active in which case
+        // the policy decides how to do the put
 
         mv = super.visitMethod(access, PUT_METHOD_FAST_PATH_NAME, SET_METHOD_DESC, asyncSignature, exceptions);
         mv.visitCode();
+        Label direct = new Label();
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_FAST_PATH_POLICY, POLICY_IS_ACTIVE_METHOD_NAME, POLICY_IS_ACTIVE_METHOD_DESC);
+        mv.visitJumpInsn(Opcodes.IFEQ, direct);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_FAST_PATH_POLICY, POLICY_PUT_METHOD_NAME, POLICY_PUT_METHOD_DESC);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitLabel(direct);
+        startTimer(mv);
         mv.visitVarInsn(Opcodes.ALOAD, 0);
         mv.visitVarInsn(Opcodes.ALOAD, 1);
         mv.visitVarInsn(Opcodes.ALOAD, 2);
         mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, className, SET_METHOD_NAME, SET_METHOD_DESC);
+        stopTimer(mv, LATENCY_FAST_PATH);
         mv.visitInsn(Opcodes.RETURN);
         mv.visitMaxs(3, 3);
         mv.visitEnd();
@@ -118,12 +144,158 @@ public class MapPutImplementorAdapter extends ClassAdapter
         // generate put$alternativeSlowPath which is not instrumented and calls the original slowpath
         mv = super.visitMethod(access, PUT_METHOD_ALTERNATIVE_SLOW_PATH_NAME, PUT_METHOD_DESC, signature, exceptions);
         mv.visitCode();
+        startTimer(mv);
         mv.visitVarInsn(Opcodes.ALOAD, 0);
         mv.visitVarInsn(Opcodes.ALOAD, 1);
         mv.visitVarInsn(Opcodes.ALOAD, 2);
         mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, className, PUT_METHOD_ORIGINAL_SLOW_PATH_NAME, PUT_METHOD_DESC);
+        stopTimer(mv, LATENCY_ALTERNATIVE_SLOW_PATH);
         mv.visitInsn(Opcodes.ARETURN);
         mv.visitMaxs(3, 3);
         mv.visitEnd();
+
+        generateFastPathMapMethods();
+    }
+
+    /**
+     * generate the field and methods which implement FastPathMap
+     */
+    private void generateFastPathMapMethods()
+    {
+        int access = Opcodes.ACC_PUBLIC;
+
+        // the policy is looked up by name on first use so there is no need to initialise this field
+        super.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_TRANSIENT, POLICY_FIELD_NAME, FAST_PATH_POLICY_DESC, null, null).visitEnd();
+
+        MethodVisitor mv = super.visitMethod(access, GET_POLICY_METHOD_NAME, GET_POLICY_METHOD_DESC, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, className, POLICY_FIELD_NAME, FAST_PATH_POLICY_DESC);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(1, 1);
+        mv.visitEnd();
+
+        mv = super.visitMethod(access, SET_POLICY_METHOD_NAME, SET_POLICY_METHOD_DESC, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, className, POLICY_FIELD_NAME, FAST_PATH_POLICY_DESC);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(2, 2);
+        mv.visitEnd();
+
+        // the near cache is also created on first use
+
+        super.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_TRANSIENT, NEAR_CACHE_FIELD_NAME, NEAR_CACHE_DESC, null, null).visitEnd();
+
+        mv = super.visitMethod(access, GET_NEAR_CACHE_METHOD_NAME, GET_NEAR_CACHE_METHOD_DESC, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, className, NEAR_CACHE_FIELD_NAME, NEAR_CACHE_DESC);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(1, 1);
+        mv.visitEnd();
+
+        mv = super.visitMethod(access, SET_NEAR_CACHE_METHOD_NAME, SET_NEAR_CACHE_METHOD_DESC, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, className, NEAR_CACHE_FIELD_NAME, NEAR_CACHE_DESC);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(2, 2);
+        mv.visitEnd();
+
+        // generate get$original which just calls get. the cache implementation overrides this with its own
+        // get when MapGetNotifyAdapter makes that get notify Jokre
+
+        mv = super.visitMethod(access, GET_METHOD_ORIGINAL_NAME, GET_METHOD_DESC, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, CLASS_MAP, GET_METHOD_NAME, GET_METHOD_DESC);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(2, 2);
+        mv.visitEnd();
+
+        mv = super.visitMethod(access, CACHE_NAME_METHOD_NAME, GET_NAME_METHOD_DESC, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, CLASS_CACHE, GET_NAME_METHOD_NAME, GET_NAME_METHOD_DESC);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(1, 1);
+        mv.visitEnd();
+
+        // generate put$syncNoReturn which calls set. this and the following put variants are timed as
+        // fast path puts since they stand in for put$fastPath whenever a policy is active
+
+        mv = super.visitMethod(access, PUT_METHOD_SYNC_NO_RETURN_NAME, SET_METHOD_DESC, asyncSignature, exceptions);
+        mv.visitCode();
+        startTimer(mv);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, className, SET_METHOD_NAME, SET_METHOD_DESC);
+        stopTimer(mv, LATENCY_FAST_PATH);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(3, 3);
+        mv.visitEnd();
+
+        // generate put$async which calls putAsync and returns the future so that the policy can track
+        // the write for the read your writes overlay
+
+        mv = super.visitMethod(access, PUT_METHOD_ASYNC_NAME, PUT_METHOD_DESC, null, exceptions);
+        mv.visitCode();
+        startTimer(mv);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, CLASS_CACHE, PUT_ASYNC_METHOD_NAME, PUT_ASYNC_METHOD_DESC);
+        stopTimer(mv, LATENCY_FAST_PATH);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(3, 3);
+        mv.visitEnd();
+
+        // generate put$original which calls the original put implementation and drops the result. this
+        // bypasses the instrumented put so it does not notify Jokre
+
+        mv = super.visitMethod(access, PUT_METHOD_ORIGINAL_NAME, SET_METHOD_DESC, asyncSignature, exceptions);
+        mv.visitCode();
+        startTimer(mv);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, className, PUT_METHOD_ORIGINAL_SLOW_PATH_NAME, PUT_METHOD_DESC);
+        mv.visitInsn(Opcodes.POP);
+        stopTimer(mv, LATENCY_FAST_PATH);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(3, 3);
+        mv.visitEnd();
+    }
+
+    /**
+     * if timing is enabled save the start time in the local slot following the key and value. n.b. the
+     * class writer computes maxs so the extra stack and locals need not be declared
+     */
+    private void startTimer(MethodVisitor mv)
+    {
+        if (timed) {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System", "nanoTime", "()J");
+            mv.visitVarInsn(Opcodes.LSTORE, 3);
+        }
+    }
+
+    /**
+     * if timing is enabled record the time elapsed since the start time against this cache's name.
+     * any return value on the stack is left in place. exceptional returns are not recorded
+     */
+    private void stopTimer(MethodVisitor mv, int kind)
+    {
+        if (timed) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, CLASS_CACHE, GET_NAME_METHOD_NAME, GET_NAME_METHOD_DESC);
+            mv.visitInsn(Opcodes.ICONST_0 + kind);
+            mv.visitVarInsn(Opcodes.LLOAD, 3);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_LATENCY_HISTOGRAMS, RECORD_LATENCY_METHOD_NAME, RECORD_LATENCY_METHOD_DESC);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,73 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.transformer;
+
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import static org.jboss.jokre.transformer.MapAdapterConstants.*;
+
+/**
+ * Adapter used to instrument the put method of a Map implementor which has already been loaded. this is
+ * the transform used when the agent is attached late. a retransform may not add interfaces or methods so,
+ * unlike MapPutImplementorAdapter, this only inserts a call to notify Jokre at the start of put.
+ */
+public class MapPutNotifyAdapter extends ClassAdapter
+{
+    public MapPutNotifyAdapter(ClassVisitor cv)
+    {
+        super(cv);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
+    {
+        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+
+        if (name.equals(PUT_METHOD_NAME) && desc.equals(PUT_METHOD_DESC) && (access & Opcodes.ACC_ABSTRACT) == 0) {
+            return new MethodAdapter(mv)
+            {
+                @Override
+                public void visitCode()
+                {
+                    super.visitCode();
+                    // no branches are added and the locals are untouched so existing frames remain valid
+                    super.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_JOKRE, NOTIFY_MAP_PUT_METHOD_NAME, NOTIFY_MAP_PUT_METHOD_DESC);
+                    super.visitInsn(Opcodes.POP);
+                }
+
+                @Override
+                public void visitMaxs(int maxStack, int maxLocals)
+                {
+                    // the notify result needs one stack slot before any arguments are pushed
+                    super.visitMaxs(Math.max(maxStack, 1), maxLocals);
+                }
+            };
+        }
+
+        return mv;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.transformer;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import static org.jboss.jokre.transformer.MapAdapterConstants.*;
+
+/**
+ * Generates the Infinispan cache listener which invalidates NearCache entries. the agent's classes are
+ * loaded from the bootstrap classpath where the Infinispan annotations cannot be resolved so the listener
+ * is generated and defined in a loader which can see them. the generated class looks like this
+ *
+ * <pre>
+ * &#64;Listener
+ * public class NearCacheListener
+ * {
+ *     private final NearCache nearCache;
+ *
+ *     public NearCacheListener(NearCache nearCache) { this.nearCache = nearCache; }
+ *
+ *     &#64;CacheEntryModified &#64;CacheEntryRemoved &#64;CacheEntryInvalidated
+ *     public void onEvent(CacheEntryEvent event) { nearCache.invalidate(event.getKey()); }
+ * }
+ * </pre>
+ */
+public class NearCacheListenerGenerator
+{
+    /**
+     * the name of the generated class in external format
+     */
+    public static final String LISTENER_CLASS_NAME = "org.jboss.jokre.generated.NearCacheListener";
+
+    private static final String LISTENER_CLASS = LISTENER_CLASS_NAME.replace('.', '/');
+    private static final String LISTENER_FIELD_NAME = "nearCache";
+    private static final String CONSTRUCTOR_DESC = "(" + NEAR_CACHE_DESC + ")V";
+
+    private static final String[] EVENT_ANNOTATIONS = {
+            "Lorg/infinispan/notifications/cachelistener/annotation/CacheEntryModified;",
+            "Lorg/infinispan/notifications/cachelistener/annotation/CacheEntryRemoved;",
+            "Lorg/infinispan/notifications/cachelistener/annotation/CacheEntryInvalidated;"
+    };
+
+    /**
+     * @return the bytes of the listener class
+     */
+    public static byte[] generate()
+    {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, LISTENER_CLASS, null, "java/lang/Object", null);
+        AnnotationVisitor av = writer.visitAnnotation(LISTENER_ANNOTATION_DESC, true);
+        av.visitEnd();
+
+        writer.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, LISTENER_FIELD_NAME, NEAR_CACHE_DESC, null, null).visitEnd();
+
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", CONSTRUCTOR_DESC, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, LISTENER_CLASS, LISTENER_FIELD_NAME, NEAR_CACHE_DESC);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(2, 2);
+        mv.visitEnd();
+
+        // one method can handle every event since they all extend CacheEntryEvent. it is called both
+        // before and after each change which is what the near cache needs
+
+        mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "onEvent", "(" + CACHE_ENTRY_EVENT_DESC + ")V", null, null);
+        for (String annotation : EVENT_ANNOTATIONS) {
+            mv.visitAnnotation(annotation, true).visitEnd();
+        }
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, LISTENER_CLASS, LISTENER_FIELD_NAME, NEAR_CACHE_DESC);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, CLASS_CACHE_ENTRY_EVENT, GET_KEY_METHOD_NAME, GET_KEY_METHOD_DESC);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CLASS_NEAR_CACHE, INVALIDATE_METHOD_NAME, INVALIDATE_METHOD_DESC);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(2, 2);
+        mv.visitEnd();
+
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+}
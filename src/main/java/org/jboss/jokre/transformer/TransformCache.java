@@ -0,0 +1,189 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.transformer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * On-disk cache of transformed class bytes. entries are keyed by a digest of the original class bytes
+ * combined with the transform configuration so a hit can be returned without running ASM at all.
+ * entries are written to a temporary file and then renamed so readers never see a partial entry.
+ */
+public class TransformCache
+{
+    /**
+     * version tag mixed into every key. bump this whenever the generated code changes shape so that
+     * entries written by an older agent are ignored
+     */
+    private static final String FORMAT_VERSION = "jokre-8";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private File directory;
+
+    public TransformCache(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * compute the cache key for a transform
+     * @param classfileBuffer the original class bytes presented to the transformer
+     * @param extendAPI true if the class is a Map implementor which will have the NonReturnMap API added
+     * @param variant a description of the transformer options which affect the generated code
+     * @param methodNames the methods whose call sites are to be transformed or null if none
+     * @return a hex digest identifying the transform result
+     */
+    public String key(byte[] classfileBuffer, boolean extendAPI, String variant, List<String> methodNames)
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM is required to provide SHA-1
+            throw new RuntimeException(e);
+        }
+        digest.update(classfileBuffer);
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(FORMAT_VERSION);
+        builder.append(extendAPI ? ";api;" : ";;");
+        builder.append(variant);
+        if (methodNames != null) {
+            // method lists come from a concurrent map so sort them to get a stable key
+            List<String> sorted = new ArrayList<String>(methodNames);
+            Collections.sort(sorted);
+            for (String methodName : sorted) {
+                builder.append(methodName);
+                builder.append(',');
+            }
+        }
+        try {
+            digest.update(builder.toString().getBytes("UTF-8"));
+        } catch (IOException e) {
+            // every JVM is required to provide UTF-8
+            throw new RuntimeException(e);
+        }
+
+        byte[] hash = digest.digest();
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * retrieve a previously cached transform result
+     * @param className the internal format name of the class
+     * @param key the key computed for the transform
+     * @return the cached bytes or null if there is no entry
+     */
+    public byte[] load(String className, String key)
+    {
+        File file = entryFile(className, key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size == 0 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] bytes = new byte[(int)size];
+            buffer.get(bytes);
+            return bytes;
+        } catch (IOException ioe) {
+            System.err.println("TransformCache : Error reading cached bytes from " + file);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * save a transform result. failures are reported and otherwise ignored since the cache is only an
+     * optimization
+     * @param className the internal format name of the class
+     * @param key the key computed for the transform
+     * @param bytes the transformed class bytes
+     */
+    public void store(String className, String key, byte[] bytes)
+    {
+        File file = entryFile(className, key);
+        if (file.exists()) {
+            // another thread or an earlier run got there first. the contents are the same
+            return;
+        }
+
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile(file.getName(), ".tmp", directory);
+            FileOutputStream fos = new FileOutputStream(tmpFile);
+            try {
+                fos.write(bytes);
+                // make sure the bytes are on disk before the entry becomes visible under its real name
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            if (tmpFile.renameTo(file)) {
+                tmpFile = null;
+            }
+        } catch (IOException ioe) {
+            System.err.println("TransformCache : Error saving transformed bytes to " + file);
+        } finally {
+            // a failed rename means someone else installed the entry or the directory is unusable
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private File entryFile(String className, String key)
+    {
+        return new File(directory, className.replace('/', '.') + "-" + key + ".class");
+    }
+}
@@ -0,0 +1,242 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre.transformer;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.EmptyVisitor;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.jboss.jokre.transformer.MapAdapterConstants.*;
+
+/**
+ * Visitor used to find the call sites which pass a DiscardHint between a caller and a wrapper method. a
+ * wrapper is a method which returns the result of a put call, or of a call to another wrapper, without
+ * using it. a caller site is a call to a known wrapper whose result is popped. the calls which may be
+ * wrappers are identified by name for each method, having been seen on the stack above a put call.
+ *
+ * a hint names the receiver of the wrapper call. the receiver can only be copied from beneath the
+ * arguments using stack operations when there are at most two single slot arguments so calls to instance
+ * methods with more arguments are ignored.
+ */
+public class WrapperCallScanner extends EmptyVisitor
+{
+    /**
+     * details of the hint sites found in one method
+     */
+    public static class Result
+    {
+        /**
+         * local slot in which a wrapper saves the hint it takes on entry or -1 if the method is not a wrapper
+         */
+        public int discardLocal = -1;
+        /**
+         * indices of the put calls whose result is returned, counting every call named put with the
+         * Map.put descriptor
+         */
+        public Set<Integer> tailPuts = new HashSet<Integer>();
+        /**
+         * indices of the wrapper calls whose result is returned, counting every call to a wrapper name
+         */
+        public Set<Integer> tailCalls = new HashSet<Integer>();
+        /**
+         * indices of the wrapper calls whose result is popped, counting every call to a wrapper name
+         */
+        public Set<Integer> discardedCalls = new HashSet<Integer>();
+    }
+
+    private List<String> methodNames;
+    private List<String> jsrMethodNames;
+    private Map<String, Set<String>> wrapperNames;
+    private List<MethodNode> methods;
+
+    /**
+     * find the hint sites in the methods which may call wrappers or be wrappers themselves
+     * @param reader a reader for the class being transformed
+     * @param methodNames the names of the methods which are to be transformed or null for all methods
+     * @param jsrMethodNames the names of the methods which contain JSR instructions
+     * @param wrapperNames the names of the methods called from each method which may be wrappers. a
+     * method with no entry may still be a wrapper of put
+     * @return a possibly empty map from method name plus descriptor to the sites found in that method
+     */
+    public static Map<String, Result> scan(ClassReader reader, List<String> methodNames, List<String> jsrMethodNames,
+                                           Map<String, Set<String>> wrapperNames)
+    {
+        // a wrapper keys its hint on its class constant which needs version 49
+        if (methodNames == null || reader.readUnsignedShort(6) < Opcodes.V1_5) {
+            return Collections.emptyMap();
+        }
+
+        WrapperCallScanner scanner = new WrapperCallScanner(methodNames, jsrMethodNames, wrapperNames);
+        reader.accept(scanner, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+
+        Map<String, Result> results = new HashMap<String, Result>();
+        for (MethodNode method : scanner.methods) {
+            Result result = scanner.findSites(method);
+            if (result != null) {
+                results.put(method.name + method.desc, result);
+            }
+        }
+        return results;
+    }
+
+    private WrapperCallScanner(List<String> methodNames, List<String> jsrMethodNames, Map<String, Set<String>> wrapperNames)
+    {
+        this.methodNames = methodNames;
+        this.jsrMethodNames = jsrMethodNames;
+        this.wrapperNames = wrapperNames;
+        this.methods = new ArrayList<MethodNode>();
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
+    {
+        // returning null means the reader skips the code for this method
+        if (!methodNames.contains(name) || jsrMethodNames.contains(name) || name.equals("<init>")) {
+            return null;
+        }
+
+        MethodNode method = new MethodNode(access, name, desc, signature, exceptions);
+        methods.add(method);
+        return method;
+    }
+
+    private Result findSites(MethodNode method)
+    {
+        Set<String> names = (wrapperNames != null ? wrapperNames.get(method.name) : null);
+        Result result = new Result();
+        int putIndex = 0;
+        int callIndex = 0;
+
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn.getType() != AbstractInsnNode.METHOD_INSN) {
+                continue;
+            }
+            MethodInsnNode call = (MethodInsnNode)insn;
+            boolean isPut = call.name.equals(PUT_METHOD_NAME) && call.desc.equals(PUT_METHOD_DESC);
+            boolean isWrapperCall = (names != null && names.contains(call.name));
+            if (!isPut && !isWrapperCall) {
+                continue;
+            }
+
+            int consumer = consumerOpcode(call);
+            if (isPut && consumer == Opcodes.ARETURN) {
+                result.tailPuts.add(putIndex);
+            }
+            if (isWrapperCall && isHintable(call)) {
+                if (consumer == Opcodes.ARETURN) {
+                    result.tailCalls.add(callIndex);
+                } else if (consumer == Opcodes.POP) {
+                    result.discardedCalls.add(callIndex);
+                }
+            }
+            if (isPut) {
+                putIndex++;
+            }
+            if (isWrapperCall) {
+                callIndex++;
+            }
+        }
+
+        if (!result.tailPuts.isEmpty() || !result.tailCalls.isEmpty()) {
+            // the hint taken on entry is saved in a slot beyond those used by the original code
+            result.discardLocal = method.maxLocals;
+        } else if (result.discardedCalls.isEmpty()) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * @return the opcode of the instruction which consumes the result of a call. casts, labels and line
+     * numbers are skipped as is the release of a monitor, which is how a synchronized block returns a value,
+     * since none of them use the result. -1 is returned if there is no such instruction
+     */
+    private static int consumerOpcode(AbstractInsnNode call)
+    {
+        AbstractInsnNode consumer = nextInsn(call);
+        while (consumer != null) {
+            if (consumer.getOpcode() == Opcodes.CHECKCAST) {
+                consumer = nextInsn(consumer);
+            } else if (consumer.getOpcode() == Opcodes.ALOAD && nextInsn(consumer) != null &&
+                    nextInsn(consumer).getOpcode() == Opcodes.MONITOREXIT) {
+                consumer = nextInsn(nextInsn(consumer));
+            } else {
+                return consumer.getOpcode();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the next real instruction after a node or null if there is none
+     */
+    private static AbstractInsnNode nextInsn(AbstractInsnNode node)
+    {
+        AbstractInsnNode next = node.getNext();
+        while (next != null && next.getOpcode() < 0) {
+            next = next.getNext();
+        }
+        return next;
+    }
+
+    /**
+     * @return true if a hint can be set for a call
+     */
+    private static boolean isHintable(MethodInsnNode call)
+    {
+        int returnSort = Type.getReturnType(call.desc).getSort();
+        if (returnSort != Type.OBJECT && returnSort != Type.ARRAY) {
+            return false;
+        }
+        if (call.getOpcode() == Opcodes.INVOKESTATIC) {
+            return true;
+        }
+        if (call.getOpcode() == Opcodes.INVOKESPECIAL) {
+            // a constructor or a super call for which the receiver is not a useful key
+            return false;
+        }
+        Type[] argumentTypes = Type.getArgumentTypes(call.desc);
+        if (argumentTypes.length > 2) {
+            return false;
+        }
+        for (Type argumentType : argumentTypes) {
+            if (argumentType.getSize() != 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.jokre;
+
+import org.infinispan.manager.DefaultCacheManager;
+import org.jboss.jokre.agent.Jokre;
+
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a caller which discards the result of a wrapper around Map.put has the wrapper's put take
+ * the fast path, while a caller which uses the result of the same wrapper still gets the previous value.
+ * instance and static wrappers are covered along with a chain of two wrappers, in which the outer
+ * wrapper passes the hint on with setIf. the default cache is put in write behind mode so a fast path
+ * put is buffered, and counted, rather than written straight through. n.b. this needs the Jokre agent to
+ * be installed with system properties org.jboss.jokre.follow.wrappers set and org.jboss.jokre.write.behind
+ * set to * and a write behind interval long enough that the flusher thread does not run during the test
+ */
+public class DiscardHintTest
+{
+    static Map<String, String> map = new DefaultCacheManager().getCache();
+
+    static Dao dao = new Dao(map);
+
+    private static final Pattern WRITES = Pattern.compile("writes (\\d+) ");
+
+    /**
+     * a DAO whose save method is a wrapper and whose store method wraps the wrapper
+     */
+    public static class Dao
+    {
+        private Map<String, String> map;
+
+        public Dao(Map<String, String> map)
+        {
+            this.map = map;
+        }
+
+        public String save(String key, String value)
+        {
+            return map.put(key, value);
+        }
+
+        public String store(String key, String value)
+        {
+            return save(key, value);
+        }
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        new DiscardHintTest().runTest();
+    }
+
+    @Test
+    public void test() throws Exception
+    {
+        runTest();
+    }
+
+    public void runTest() throws Exception
+    {
+        // keep calling until every wrapper and caller has been transformed and each discarding caller
+        // has its put buffered by write behind
+        long deadline = System.currentTimeMillis() + 30000;
+        int i = 0;
+        boolean instanceFast = false;
+        boolean staticFast = false;
+        boolean chainFast = false;
+        while (!(instanceFast && staticFast && chainFast)) {
+            assertTrue("wrapper callers were not transformed instance " + instanceFast + " static " + staticFast + " chain " + chainFast,
+                    System.currentTimeMillis() < deadline);
+            long before = writes();
+            discardInstance("warm", "v" + i);
+            instanceFast = (writes() == before + 1);
+            before = writes();
+            discardStatic("warm", "v" + i);
+            staticFast = (writes() == before + 1);
+            before = writes();
+            discardChain("warm", "v" + i);
+            chainFast = (writes() == before + 1);
+            useInstance("warm", "v" + i);
+            useStatic("warm", "v" + i);
+            useChain("warm", "v" + i);
+            i++;
+            Thread.sleep(10);
+        }
+        WriteBehindBuffer.flushAll();
+
+        checkWrapper("instance", 0);
+        checkWrapper("static", 1);
+        checkWrapper("chain", 2);
+
+        Jokre.stats();
+        System.out.println();
+    }
+
+    /**
+     * check that discarding the result of a wrapper takes the fast path and using it does not
+     * @param key the key to write
+     * @param which 0 for the instance wrapper, 1 for the static wrapper or 2 for the wrapper chain
+     */
+    private void checkWrapper(String key, int which) throws Exception
+    {
+        // this put may itself have been transformed to write behind so flush it through
+        map.put(key, "initial");
+        WriteBehindBuffer.flushAll();
+
+        // the discarded put is buffered so it is counted but not yet visible
+        long before = writes();
+        discard(which, key, "discarded");
+        assertEquals(key, before + 1, writes());
+        assertEquals(key, "initial", map.get(key));
+        WriteBehindBuffer.flushAll();
+        assertEquals(key, "discarded", map.get(key));
+
+        // the used put returns the previous value and writes straight through
+        before = writes();
+        assertEquals(key, "discarded", use(which, key, "used"));
+        assertEquals(key, before, writes());
+        assertEquals(key, "used", map.get(key));
+    }
+
+    private static void discard(int which, String key, String value)
+    {
+        switch (which) {
+            case 0:
+                discardInstance(key, value);
+                break;
+            case 1:
+                discardStatic(key, value);
+                break;
+            default:
+                discardChain(key, value);
+                break;
+        }
+    }
+
+    private static String use(int which, String key, String value)
+    {
+        switch (which) {
+            case 0:
+                return useInstance(key, value);
+            case 1:
+                return useStatic(key, value);
+            default:
+                return useChain(key, value);
+        }
+    }
+
+    public static String saveStatic(String key, String value)
+    {
+        return map.put(key, value);
+    }
+
+    public static void discardInstance(String key, String value)
+    {
+        dao.save(key, value);
+    }
+
+    public static void discardStatic(String key, String value)
+    {
+        saveStatic(key, value);
+    }
+
+    public static void discardChain(String key, String value)
+    {
+        dao.store(key, value);
+    }
+
+    public static String useInstance(String key, String value)
+    {
+        String previous = dao.save(key, value);
+        return previous;
+    }
+
+    public static String useStatic(String key, String value)
+    {
+        String previous = saveStatic(key, value);
+        return previous;
+    }
+
+    public static String useChain(String key, String value)
+    {
+        String previous = dao.store(key, value);
+        return previous;
+    }
+
+    /**
+     * @return the number of writes buffered for the default cache or 0 if it has no write behind buffer yet
+     */
+    private static long writes()
+    {
+        for (String description : WriteBehindBuffer.describe()) {
+            Matcher matcher = WRITES.matcher(description);
+            if (description.startsWith("cache ___defaultcache ") && matcher.find()) {
+                return Long.parseLong(matcher.group(1));
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package test;
+
+import org.jboss.jokre.agent.CallSiteIds;
+
+import java.util.Collections;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that CallSiteIds hands out dense, stable ids which survive the table being resized and that
+ * releasing a loader's ids stops them matching without disturbing the ids of other loaders. this drives
+ * CallSiteIds directly so needs no agent
+ */
+public class CallSiteIdsTest
+{
+    // enough entries to force several resizes of the initial table
+    private static final int ENTRIES = 5000;
+
+    public static void main(String args[]) throws Exception
+    {
+        new CallSiteIdsTest().runTest();
+    }
+
+    @Test
+    public void test() throws Exception
+    {
+        runTest();
+    }
+
+    public void runTest() throws Exception
+    {
+        CallSiteIds ids = new CallSiteIds();
+
+        assertEquals(-1, ids.lookup("test.A", 1, "run"));
+
+        // ids are allocated densely in intern order
+        for (int i = 0; i < ENTRIES; i++) {
+            assertEquals(i, ids.intern(className(i), loaderId(i), methodName(i)));
+        }
+        assertEquals(ENTRIES, ids.size());
+
+        // interning again returns the same id and every id still maps to its names after the resizes
+        for (int i = 0; i < ENTRIES; i++) {
+            assertEquals(i, ids.intern(className(i), loaderId(i), methodName(i)));
+            assertEquals(i, ids.lookup(className(i), loaderId(i), methodName(i)));
+            assertEquals(className(i), ids.className(i));
+            assertEquals(loaderId(i), ids.loaderId(i));
+            assertEquals(methodName(i), ids.methodName(i));
+        }
+        assertEquals(ENTRIES, ids.size());
+
+        // entries differing only in loader or method name get distinct ids
+        assertEquals(-1, ids.lookup(className(0), loaderId(0) + 2, methodName(0)));
+        assertEquals(-1, ids.lookup(className(0), loaderId(0), methodName(1)));
+
+        // released ids no longer match while the other loader's ids are unaffected
+        ids.release(Collections.singletonList(1));
+        for (int i = 0; i < ENTRIES; i++) {
+            if (loaderId(i) == 1) {
+                assertEquals(-1, ids.lookup(className(i), loaderId(i), methodName(i)));
+                assertNull(ids.className(i));
+                assertNull(ids.methodName(i));
+            } else {
+                assertEquals(i, ids.lookup(className(i), loaderId(i), methodName(i)));
+                assertEquals(className(i), ids.className(i));
+            }
+        }
+
+        // ids are never reused so re-interning a released entry allocates a new id
+        assertEquals(ENTRIES, ids.intern(className(0), loaderId(0), methodName(0)));
+        assertEquals(ENTRIES + 1, ids.size());
+
+        System.out.println("CallSiteIdsTest : " + ids.size() + " ids");
+    }
+
+    private static String className(int i)
+    {
+        return "test.C" + (i / 10);
+    }
+
+    private static int loaderId(int i)
+    {
+        return 1 + (i & 1);
+    }
+
+    private static String methodName(int i)
+    {
+        return "m" + (i % 10);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package test;
+
+import org.infinispan.manager.DefaultCacheManager;
+import org.jboss.jokre.CallSiteCounters;
+import org.jboss.jokre.agent.Jokre;
+
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that put call sites whose result is dead without being popped, i.e. cast and stored in a local
+ * which is never read, stored in a local which is overwritten before it is read or stored without a cast,
+ * take the fast path while a site whose result is read still takes the slow path. n.b. this needs the Jokre agent
+ * to be installed with system property org.jboss.jokre.count.call.sites set
+ */
+public class DeadPutResultTest
+{
+    static Map<String, String> map = new DefaultCacheManager().getCache();
+
+    private static final String[] DEAD_METHODS = { "doUnreadStore", "doOverwrittenStore", "doUncastStore" };
+
+    public static void main(String args[]) throws Exception
+    {
+        new DeadPutResultTest().runTest();
+    }
+
+    @Test
+    public void test() throws Exception
+    {
+        runTest();
+    }
+
+    public void runTest() throws Exception
+    {
+        // keep writing until the agent has transformed every call site and each has counted a hit
+        long deadline = System.currentTimeMillis() + 30000;
+        int i = 0;
+        while (!transformed()) {
+            assertTrue("put call sites were not transformed", System.currentTimeMillis() < deadline);
+            doUnreadStore(map, "a", "v" + i);
+            doOverwrittenStore(map, "b", "v" + i);
+            doUncastStore(map, "c", "v" + i);
+            doLiveStore(map, "d", "v" + i);
+            i++;
+            Thread.sleep(10);
+        }
+
+        for (int j = 0; j < 100; j++) {
+            doUnreadStore(map, "a", "w" + j);
+            doOverwrittenStore(map, "b", "w" + j);
+            doUncastStore(map, "c", "w" + j);
+            assertEquals(j == 0 ? "v" + (i - 1) : "w" + (j - 1), doLiveStore(map, "d", "w" + j));
+        }
+
+        // the dead results never take the slow path and the writes still reach the cache
+        for (String methodName : DEAD_METHODS) {
+            CallSiteCounters.Site site = findSite(methodName);
+            assertTrue(site.toString(), site.getCount(CallSiteCounters.FAST) >= 100);
+            assertEquals(site.toString(), 0, site.getCount(CallSiteCounters.SLOW));
+            assertEquals(site.toString(), 0, site.getCount(CallSiteCounters.FALLBACK));
+        }
+        assertEquals("w99", map.get("a"));
+        assertEquals("w99", map.get("b"));
+        assertEquals("w99", map.get("c"));
+
+        // a result which is read takes the slow path
+        CallSiteCounters.Site live = findSite("doLiveStore");
+        assertEquals(live.toString(), 0, live.getCount(CallSiteCounters.FAST));
+        assertTrue(live.toString(), live.getCount(CallSiteCounters.SLOW) >= 100);
+
+        Jokre.stats();
+        System.out.println();
+    }
+
+    public static void doUnreadStore(Map<String, String> map, String key, String value)
+    {
+        String previous = map.put(key, value);
+    }
+
+    public static String doOverwrittenStore(Map<String, String> map, String key, String value)
+    {
+        String previous = map.put(key, value);
+        previous = value;
+        return previous;
+    }
+
+    public static void doUncastStore(Map<String, String> map, String key, String value)
+    {
+        // unlike the String stores above there is no checkcast between the call and the store
+        Object previous = map.put(key, value);
+    }
+
+    public static String doLiveStore(Map<String, String> map, String key, String value)
+    {
+        String previous = map.put(key, value);
+        return previous;
+    }
+
+    private static boolean transformed()
+    {
+        for (String methodName : DEAD_METHODS) {
+            CallSiteCounters.Site site = findSite(methodName);
+            if (site == null || site.getTotal() == 0) {
+                return false;
+            }
+        }
+        CallSiteCounters.Site live = findSite("doLiveStore");
+        return live != null && live.getTotal() > 0;
+    }
+
+    /**
+     * @return the registered put call site in the named method of this class or null if it has not been
+     * transformed yet
+     */
+    private static CallSiteCounters.Site findSite(String methodName)
+    {
+        for (int id = 0; id < CallSiteCounters.getSiteCount(); id++) {
+            CallSiteCounters.Site site = CallSiteCounters.getSite(id);
+            if (DeadPutResultTest.class.getName().equals(site.getClassName()) && methodName.equals(site.getMethodName())) {
+                return site;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package test;
+
+import org.infinispan.Cache;
+import org.infinispan.commands.write.PutKeyValueCommand;
+import org.infinispan.context.InvocationContext;
+import org.infinispan.interceptors.base.CommandInterceptor;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.util.concurrent.FutureListener;
+import org.infinispan.util.concurrent.NotifyingFuture;
+import org.jboss.jokre.FastPathFailures;
+import org.jboss.jokre.FastPathPolicy;
+import org.jboss.jokre.agent.Jokre;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that once the cap on outstanding async fast path writes is reached further writes fall back to
+ * synchronous puts and that an async write which fails is counted and passed to the FastPathFailures
+ * handler. a local cache completes async puts before returning so an interceptor is added which holds
+ * async puts open until the test completes them. n.b. this needs the Jokre agent to be installed
+ */
+public class InFlightCapTest
+{
+    static Cache<String, String> map = new DefaultCacheManager().getCache();
+
+    private static final String CACHE_NAME = "___defaultcache";
+
+    private static final Pattern STATS = Pattern.compile("in flight (\\d+)/\\S+ completed (\\d+) failed (\\d+) blocked \\d+ fallbacks (\\d+)");
+
+    public static void main(String args[]) throws Exception
+    {
+        new InFlightCapTest().runTest();
+    }
+
+    @Test
+    public void test() throws Exception
+    {
+        runTest();
+    }
+
+    public void runTest() throws Exception
+    {
+        HoldingInterceptor interceptor = new HoldingInterceptor();
+        map.getAdvancedCache().addInterceptor(interceptor, 0);
+        FastPathPolicy.setMode(CACHE_NAME, FastPathPolicy.ASYNC);
+        FastPathPolicy.setMaxInFlight(CACHE_NAME, 1);
+
+        final List<Object[]> reported = new ArrayList<Object[]>();
+        FastPathFailures.setHandler(new FastPathFailures.Handler()
+        {
+            public void failed(String cacheName, Object key, Object value, Throwable cause)
+            {
+                reported.add(new Object[] { cacheName, key, value, cause });
+            }
+        });
+
+        // keep writing until the agent has transformed the put call site and writes are made async
+        long deadline = System.currentTimeMillis() + 30000;
+        int i = 0;
+        while (interceptor.asyncPuts == 0) {
+            assertTrue("put call site was not switched to async", System.currentTimeMillis() < deadline);
+            doPut(map, "key", "v" + i++);
+            Thread.sleep(10);
+        }
+
+        // hold the next async write open so that it occupies the only slot
+        interceptor.hold = true;
+        doPut(map, "held", "1");
+        interceptor.hold = false;
+        assertEquals(1, interceptor.held.size());
+        long[] before = stats();
+        assertEquals(1, before[0]);
+
+        // a write made while the cap is reached is performed synchronously
+        doPut(map, "fallback", "2");
+        long[] after = stats();
+        assertEquals(before[3] + 1, after[3]);
+        assertEquals(1, after[0]);
+        assertEquals("2", map.get("fallback"));
+        assertEquals(0, reported.size());
+
+        // fail the held write. the next write reaps it, which frees its slot and reports the failure
+        interceptor.held.get(0).fail(new RuntimeException("induced failure"));
+        doPut(map, "next", "3");
+        after = stats();
+        assertEquals(before[2] + 1, after[2]);
+        assertEquals(before[3] + 1, after[3]);
+        assertEquals(1, reported.size());
+        Object[] failure = reported.get(0);
+        assertEquals(CACHE_NAME, failure[0]);
+        assertEquals("held", failure[1]);
+        assertEquals("1", failure[2]);
+        assertEquals("induced failure", ((Throwable)failure[3]).getMessage());
+        assertEquals("3", map.get("next"));
+
+        FastPathFailures.setHandler(null);
+        Jokre.stats();
+        System.out.println();
+    }
+
+    public static void doPut(Map<String, String> map, String key, String value)
+    {
+        map.put(key, value);
+    }
+
+    /**
+     * @return the in flight, completed, failed and fallback counts reported for the default cache
+     */
+    private static long[] stats()
+    {
+        for (String description : FastPathPolicy.describe()) {
+            Matcher matcher = STATS.matcher(description);
+            if (description.startsWith("cache " + CACHE_NAME + " ") && matcher.find()) {
+                long[] values = new long[4];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Long.parseLong(matcher.group(i + 1));
+                }
+                return values;
+            }
+        }
+        fail("no in flight writes reported for " + CACHE_NAME);
+        return null;
+    }
+
+    /**
+     * interceptor which counts async puts and, while hold is set, returns a future which stays incomplete
+     * until the test completes it instead of performing the put
+     */
+    public static class HoldingInterceptor extends CommandInterceptor
+    {
+        volatile int asyncPuts = 0;
+        volatile boolean hold = false;
+        final List<HeldFuture> held = new ArrayList<HeldFuture>();
+
+        @Override
+        public Object visitPutKeyValueCommand(InvocationContext ctx, PutKeyValueCommand command) throws Throwable
+        {
+            if (!ctx.isUseFutureReturnType()) {
+                return invokeNextInterceptor(ctx, command);
+            }
+            asyncPuts++;
+            if (!hold) {
+                return invokeNextInterceptor(ctx, command);
+            }
+            HeldFuture future = new HeldFuture();
+            held.add(future);
+            return future;
+        }
+    }
+
+    public static class HeldFuture extends FutureTask<Object> implements NotifyingFuture<Object>
+    {
+        HeldFuture()
+        {
+            super(new Callable<Object>()
+            {
+                public Object call()
+                {
+                    return null;
+                }
+            });
+        }
+
+        void fail(Throwable cause)
+        {
+            setException(cause);
+        }
+
+        public NotifyingFuture<Object> attachListener(FutureListener<Object> listener)
+        {
+            return this;
+        }
+    }
+}
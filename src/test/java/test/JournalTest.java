@@ -0,0 +1,273 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package test;
+
+import org.infinispan.manager.DefaultCacheManager;
+import org.jboss.jokre.WriteBehindBuffer;
+import org.jboss.jokre.WriteJournal;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that write behind writes which are journaled but not flushed when the JVM halts are replayed
+ * after a restart, both when the journal has been compacted and when it has filled up. each case runs a
+ * crash JVM, which buffers writes and then halts, followed by a check JVM, which verifies the replay.
+ * n.b. this needs the Jokre agent to be installed. the child JVMs are given the same agent
+ */
+public class JournalTest
+{
+    private static final String CACHE_NAME = "___defaultcache";
+
+    /**
+     * size of each journal file. small enough that the compaction case compacts and the full case fills up
+     */
+    private static final int JOURNAL_SIZE = 20000;
+
+    /**
+     * number of writes in each flushed round of the crash phase
+     */
+    private static final int ROUND_SIZE = 50;
+
+    private static final Pattern JOURNAL_STATS = Pattern.compile("outstanding (\\d+) awaiting replay (\\d+) replayed (\\d+) unjournaled (\\d+) compactions (\\d+) full (\\d+)");
+
+    public static void main(String args[]) throws Exception
+    {
+        if (args.length == 0) {
+            new JournalTest().runTest();
+        } else if (args[0].equals("crash")) {
+            crash(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        } else {
+            check(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+        }
+    }
+
+    @Test
+    public void test() throws Exception
+    {
+        runTest();
+    }
+
+    public void runTest() throws Exception
+    {
+        // flushed rounds fill the journal with acknowledged writes so it must compact to make room for the
+        // writes which are still buffered when the JVM halts. all of these are replayed
+        long[] stats = runCase(20, 100);
+        assertTrue("journal was not compacted", stats[4] > 0);
+        assertEquals(0, stats[5]);
+        assertEquals(100, stats[0]);
+
+        // the journal fills up with unflushed writes so the rest are performed synchronously and are not
+        // replayed. every write which was journaled is replayed
+        stats = runCase(0, 1000);
+        assertTrue("journal did not fill up", stats[5] > 0);
+        assertTrue(stats[3] > 0);
+        assertTrue(stats[0] > 0 && stats[0] < 1000);
+    }
+
+    /**
+     * run a crash JVM followed by a check JVM sharing a new journal
+     * @return the journal statistics reported by the crash JVM just before it halted
+     */
+    private long[] runCase(int rounds, int finalWrites) throws Exception
+    {
+        File base = File.createTempFile("jokre-journal", "");
+        base.delete();
+        File[] files = { new File(base.getPath() + ".0"), new File(base.getPath() + ".1") };
+        try {
+            List<String> journalArgs = new ArrayList<String>();
+            journalArgs.add("-D" + WriteJournal.JOURNAL_FILE + "=" + base.getPath());
+            journalArgs.add("-D" + WriteJournal.JOURNAL_SIZE + "=" + JOURNAL_SIZE);
+
+            List<String> crashArgs = new ArrayList<String>(journalArgs);
+            crashArgs.add("-D" + WriteBehindBuffer.WRITE_BEHIND + "=*");
+            crashArgs.add("-D" + WriteBehindBuffer.WRITE_BEHIND_INTERVAL + "=600000");
+            String output = runChild(crashArgs, "crash", String.valueOf(rounds), String.valueOf(finalWrites));
+            long[] stats = parseStats(output);
+            assertNotNull("crash JVM did not report its journal", stats);
+
+            runChild(journalArgs, "check", String.valueOf(rounds), String.valueOf(finalWrites), String.valueOf(stats[0]));
+            return stats;
+        } finally {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * run this class in a child JVM with the same agent and class path
+     * @return the output of the child
+     */
+    private static String runChild(List<String> jvmArgs, String... args) throws Exception
+    {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String inputArg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (inputArg.startsWith("-javaagent:")) {
+                command.add(inputArg);
+            }
+        }
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(JournalTest.class.getName());
+        for (String arg : args) {
+            command.add(arg);
+        }
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        StringBuilder output = new StringBuilder();
+        InputStream in = process.getInputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            output.append(new String(buffer, 0, count));
+        }
+        int status = process.waitFor();
+        System.out.println(args[0] + " JVM output :");
+        System.out.println(output);
+        assertEquals(args[0] + " JVM failed", 0, status);
+        return output.toString();
+    }
+
+    /**
+     * child phase which buffers writes and halts without flushing the last of them
+     * @param rounds the number of rounds of writes which are flushed and hence acknowledged
+     * @param finalWrites the number of writes left buffered when the JVM halts
+     */
+    private static void crash(int rounds, int finalWrites) throws Exception
+    {
+        Map<String, String> map = new DefaultCacheManager().getCache();
+
+        // keep writing until the agent has transformed the put call site and writes are being buffered
+        long deadline = System.currentTimeMillis() + 30000;
+        int i = 0;
+        while (WriteBehindBuffer.describe().isEmpty()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new Exception("put call site was not switched to write behind");
+            }
+            doPut(map, "warm", "v" + i++);
+            Thread.sleep(10);
+        }
+        WriteBehindBuffer.flushAll();
+
+        for (int r = 0; r < rounds; r++) {
+            for (i = 0; i < ROUND_SIZE; i++) {
+                doPut(map, "r" + r + "-" + i, "v" + i);
+            }
+            WriteBehindBuffer.flushAll();
+        }
+
+        for (i = 0; i < finalWrites; i++) {
+            doPut(map, "j" + i, "v" + i);
+        }
+
+        System.out.println(WriteJournal.getJournal());
+        System.out.flush();
+        Runtime.getRuntime().halt(0);
+    }
+
+    /**
+     * child phase which triggers replay of the journal and checks which writes were replayed
+     * @param rounds the number of flushed rounds written by the crash phase
+     * @param finalWrites the number of writes left buffered by the crash phase
+     * @param expected the number of writes the crash phase left unacknowledged in the journal
+     */
+    private static void check(int rounds, int finalWrites, int expected) throws Exception
+    {
+        Map<String, String> map = new DefaultCacheManager().getCache();
+
+        // keep writing until the agent has transformed the put call site. the first fast path put replays
+        // the journaled writes for the cache
+        long deadline = System.currentTimeMillis() + 30000;
+        long[] stats = parseStats(String.valueOf(WriteJournal.getJournal()));
+        while (stats[2] == 0) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new Exception("journaled writes were not replayed : " + WriteJournal.getJournal());
+            }
+            doPut(map, "trigger", "t");
+            Thread.sleep(10);
+            stats = parseStats(String.valueOf(WriteJournal.getJournal()));
+        }
+        System.out.println(WriteJournal.getJournal());
+        check(stats[1] == 0, "writes are still awaiting replay");
+        check(stats[2] == expected, "expected " + expected + " replayed writes");
+
+        // the replayed writes are the first ones journaled. writes made after the journal filled up were
+        // performed synchronously and were lost with the crashed JVM
+        for (int i = 0; i < finalWrites; i++) {
+            String value = map.get("j" + i);
+            if (i < expected) {
+                check(("v" + i).equals(value), "write " + i + " was not replayed");
+            } else {
+                check(value == null, "write " + i + " was unexpectedly replayed");
+            }
+        }
+
+        // acknowledged writes are not replayed
+        for (int r = 0; r < rounds; r++) {
+            check(map.get("r" + r + "-0") == null, "acknowledged write in round " + r + " was replayed");
+        }
+        System.exit(0);
+    }
+
+    private static void check(boolean condition, String message) throws Exception
+    {
+        if (!condition) {
+            throw new Exception(message);
+        }
+    }
+
+    public static void doPut(Map<String, String> map, String key, String value)
+    {
+        map.put(key, value);
+    }
+
+    /**
+     * @return the outstanding, awaiting replay, replayed, unjournaled, compactions and full counts from a
+     * journal description or null if the text does not contain one
+     */
+    private static long[] parseStats(String text)
+    {
+        Matcher matcher = JOURNAL_STATS.matcher(text);
+        if (!matcher.find()) {
+            return null;
+        }
+        long[] values = new long[6];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Long.parseLong(matcher.group(i + 1));
+        }
+        return values;
+    }
+}
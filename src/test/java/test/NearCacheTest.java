@@ -0,0 +1,136 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package test;
+
+import org.infinispan.manager.DefaultCacheManager;
+import org.jboss.jokre.NearCache;
+import org.jboss.jokre.agent.Jokre;
+
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that Map.get call sites on a near cached cache are served from the near cache, that writes and
+ * removes invalidate the near cached copy and that the near cache statistics are accurate. n.b. this needs
+ * the Jokre agent to be installed with system property org.jboss.jokre.near.cache set to *
+ */
+public class NearCacheTest
+{
+    static Map<String, String> map = new DefaultCacheManager().getCache();
+
+    private static final Pattern STATS = Pattern.compile("hits (\\d+) misses (\\d+) .* size (\\d+)/(\\d+) .* invalidations (\\d+)");
+
+    public static void main(String args[]) throws Exception
+    {
+        new NearCacheTest().runTest();
+    }
+
+    @Test
+    public void test() throws Exception
+    {
+        runTest();
+    }
+
+    public void runTest() throws Exception
+    {
+        map.put("a", "1");
+
+        // keep reading until the agent has redirected the get call site to the near cache
+        long deadline = System.currentTimeMillis() + 30000;
+        while (stats()[0] == 0) {
+            assertTrue("get call site was not redirected to the near cache", System.currentTimeMillis() < deadline);
+            assertEquals("1", doGet(map, "a"));
+            Thread.sleep(10);
+        }
+
+        // a hit after a put serves the cached value without a miss
+        long[] before = stats();
+        for (int i = 0; i < 100; i++) {
+            assertEquals("1", doGet(map, "a"));
+        }
+        long[] after = stats();
+        assertEquals(before[0] + 100, after[0]);
+        assertEquals(before[1], after[1]);
+
+        // a put invalidates the cached copy
+        map.put("a", "2");
+        assertTrue(stats()[4] > after[4]);
+        assertEquals("2", doGet(map, "a"));
+        assertEquals("2", doGet(map, "a"));
+
+        // a remove invalidates the cached copy
+        map.remove("a");
+        assertNull(doGet(map, "a"));
+
+        // reading distinct keys fills the near cache with exactly one entry per key
+        for (int i = 0; i < 10; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        before = stats();
+        for (int r = 0; r < 2; r++) {
+            for (int i = 0; i < 10; i++) {
+                assertEquals("v" + i, doGet(map, "k" + i));
+            }
+        }
+        after = stats();
+        assertEquals(before[1] + 10, after[1]);
+        assertEquals(before[0] + 10, after[0]);
+        assertEquals(10, after[2]);
+        assertEquals(1024, after[3]);
+
+        // clearing the cache empties the near cache
+        map.clear();
+        assertNull(doGet(map, "k0"));
+        assertEquals(0, stats()[2]);
+
+        Jokre.stats();
+        System.out.println();
+    }
+
+    public static String doGet(Map<String, String> map, String key)
+    {
+        return map.get(key);
+    }
+
+    /**
+     * @return the hits, misses, size, capacity and invalidations reported for the default cache or zeros
+     * if it has no near cache yet
+     */
+    private static long[] stats()
+    {
+        long[] values = new long[5];
+        for (String description : NearCache.describe()) {
+            Matcher matcher = STATS.matcher(description);
+            if (description.startsWith("cache ___defaultcache ") && matcher.find()) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Long.parseLong(matcher.group(i + 1));
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package test;
+
+import org.infinispan.manager.DefaultCacheManager;
+import org.jboss.jokre.WriteBehindBuffer;
+import org.jboss.jokre.agent.Jokre;
+
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a thread reads back its own write behind write while the write is pending, that other
+ * threads do not see the write until it is flushed and that the pending value is evicted once the write
+ * has completed. n.b. this needs the Jokre agent to be installed with system properties
+ * org.jboss.jokre.read.your.writes set and org.jboss.jokre.write.behind set to * and a write behind
+ * interval long enough that the flusher thread does not run during the test
+ */
+public class ReadYourWritesTest
+{
+    static Map<String, String> map = new DefaultCacheManager().getCache();
+
+    private static final Pattern WRITES = Pattern.compile("writes (\\d+) ");
+
+    public static void main(String args[]) throws Exception
+    {
+        new ReadYourWritesTest().runTest();
+    }
+
+    @Test
+    public void test() throws Exception
+    {
+        runTest();
+    }
+
+    public void runTest() throws Exception
+    {
+        map.put("key", "initial");
+
+        // keep writing until the agent has transformed the put call site and writes are being buffered
+        long deadline = System.currentTimeMillis() + 30000;
+        int i = 0;
+        while (writes() == 0) {
+            assertTrue("put call site was not switched to write behind", System.currentTimeMillis() < deadline);
+            doPut(map, "other", "v" + i++);
+            Thread.sleep(10);
+        }
+        WriteBehindBuffer.flushAll();
+
+        // the writing thread sees its pending write but other threads still see the cache contents
+        doPut(map, "key", "pending");
+        assertEquals("pending", map.get("key"));
+        assertEquals("pending", map.get("key"));
+        assertEquals("initial", getInOtherThread("key"));
+
+        // once the write completes another thread sees it too
+        WriteBehindBuffer.flushAll();
+        assertEquals("pending", getInOtherThread("key"));
+
+        // the first read after completion evicts the pending value so a later write by another thread
+        // becomes visible to the writing thread
+        assertEquals("pending", map.get("key"));
+        assertEquals("pending", putInOtherThread("key", "updated"));
+        assertEquals("updated", map.get("key"));
+
+        Jokre.stats();
+        System.out.println();
+    }
+
+    public static void doPut(Map<String, String> map, String key, String value)
+    {
+        map.put(key, value);
+    }
+
+    private static String getInOtherThread(final String key) throws Exception
+    {
+        final String[] result = new String[1];
+        Thread thread = new Thread()
+        {
+            public void run()
+            {
+                result[0] = map.get(key);
+            }
+        };
+        thread.start();
+        thread.join();
+        return result[0];
+    }
+
+    private static String putInOtherThread(final String key, final String value) throws Exception
+    {
+        final String[] result = new String[1];
+        Thread thread = new Thread()
+        {
+            public void run()
+            {
+                // the result is used so this put is synchronous
+                result[0] = map.put(key, value);
+            }
+        };
+        thread.start();
+        thread.join();
+        return result[0];
+    }
+
+    /**
+     * @return the number of writes buffered for the default cache or 0 if it has no write behind buffer yet
+     */
+    private static long writes()
+    {
+        for (String description : WriteBehindBuffer.describe()) {
+            Matcher matcher = WRITES.matcher(description);
+            if (description.startsWith("cache ___defaultcache ") && matcher.find()) {
+                return Long.parseLong(matcher.group(1));
+            }
+        }
+        return 0;
+    }
+}
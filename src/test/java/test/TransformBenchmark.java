@@ -0,0 +1,305 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package test;
+
+import org.jboss.jokre.transformer.ClassHierarchyResolver;
+import org.jboss.jokre.transformer.JokreTransformer;
+import org.jboss.jokre.transformer.MapAdapterConstants;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.EmptyVisitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Measures call site transformer throughput in classes per second by rewriting every method which calls
+ * Map.put in each class of the infinispan core jar. it also times the NonReturnMap check made by
+ * ClassHierarchyResolver over every class in the jar, cold in a fresh loader and warm from one and from
+ * several threads, against the loadClass and reflection check it replaced. n.b. this does not need the
+ * Jokre agent to be installed.
+ */
+public class TransformBenchmark
+{
+    public static void main(String args[]) throws Exception
+    {
+        int iterations = (args.length > 0 ? Integer.parseInt(args[0]) : 20);
+        new TransformBenchmark().runTest(iterations);
+    }
+
+    @Test
+    public void test() throws Exception
+    {
+        runTest(5);
+    }
+
+    public void runTest(int iterations) throws Exception
+    {
+        List<String> classNames = new ArrayList<String>();
+        List<byte[]> classBytes = new ArrayList<byte[]>();
+        List<List<String>> classMethods = new ArrayList<List<String>>();
+
+        loadCandidates(classNames, classBytes, classMethods);
+
+        int count = classNames.size();
+        long totalBytes = 0;
+        for (byte[] bytes : classBytes) {
+            totalBytes += bytes.length;
+        }
+        System.out.println("TransformBenchmark : " + count + " classes (" + totalBytes + " bytes) contain Map.put calls");
+
+        JokreTransformer transformer = new JokreTransformer();
+        ClassLoader loader = TransformBenchmark.class.getClassLoader();
+
+        // first pass warms up the transformer and the hierarchy cache
+
+        transformAll(transformer, loader, classNames, classBytes, classMethods);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            transformAll(transformer, loader, classNames, classBytes, classMethods);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double seconds = elapsed / 1000000000.0;
+        long classesPerSecond = (long)((count * (long)iterations) / seconds);
+        System.out.println("TransformBenchmark : " + iterations + " iterations in " + (elapsed / 1000000) + "ms");
+        System.out.println("TransformBenchmark : " + classesPerSecond + " classes/sec");
+
+        runResolverTest(iterations);
+    }
+
+    public void runResolverTest(int iterations) throws Exception
+    {
+        ClassLoader loader = TransformBenchmark.class.getClassLoader();
+        if (!(loader instanceof URLClassLoader)) {
+            System.out.println("TransformBenchmark : resolver timings skipped, the class path is not available as URLs");
+            return;
+        }
+        URL[] urls = ((URLClassLoader)loader).getURLs();
+        final List<String> classNames = loadClassNames();
+
+        // each round checks every class in a new loader, as happens when an application is deployed.
+        // the first round of each kind warms up the JIT and is not counted
+
+        long resolverNanos = 0;
+        long loadClassNanos = 0;
+        ClassHierarchyResolver resolver = null;
+        ClassLoader resolverLoader = null;
+        for (int i = 0; i <= iterations; i++) {
+            resolver = new ClassHierarchyResolver();
+            resolverLoader = new URLClassLoader(urls, null);
+            long start = System.nanoTime();
+            for (String className : classNames) {
+                resolver.isNonReturnMap(resolverLoader, className);
+            }
+            long resolverElapsed = System.nanoTime() - start;
+
+            ClassLoader freshLoader = new URLClassLoader(urls, null);
+            start = System.nanoTime();
+            for (String className : classNames) {
+                loadAndCheck(freshLoader, className);
+            }
+            long loadClassElapsed = System.nanoTime() - start;
+
+            if (i > 0) {
+                resolverNanos += resolverElapsed;
+                loadClassNanos += loadClassElapsed;
+            }
+        }
+
+        System.out.println("TransformBenchmark : NonReturnMap check of " + classNames.size() + " classes in a new loader " +
+                (resolverNanos / iterations / 1000000) + "ms using ClassHierarchyResolver " +
+                (loadClassNanos / iterations / 1000000) + "ms using loadClass");
+
+        // warm checks only hit the resolver's caches
+
+        int checks = iterations * 100;
+        long start = System.nanoTime();
+        checkAll(resolver, resolverLoader, classNames, checks);
+        long elapsed = System.nanoTime() - start;
+        long totalChecks = (long)checks * classNames.size();
+        System.out.println("TransformBenchmark : warm check " + (elapsed / totalChecks) + "ns on 1 thread");
+
+        int threadCount = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        Thread[] threads = new Thread[threadCount];
+        final ClassHierarchyResolver warmResolver = resolver;
+        final ClassLoader warmLoader = resolverLoader;
+        final int threadChecks = checks;
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                public void run()
+                {
+                    checkAll(warmResolver, warmLoader, classNames, threadChecks);
+                }
+            };
+        }
+        start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        elapsed = System.nanoTime() - start;
+        System.out.println("TransformBenchmark : warm check " + (elapsed / totalChecks) + "ns elapsed per check on each of " +
+                threadCount + " threads");
+    }
+
+    private static void checkAll(ClassHierarchyResolver resolver, ClassLoader loader, List<String> classNames, int rounds)
+    {
+        for (int i = 0; i < rounds; i++) {
+            for (String className : classNames) {
+                resolver.isNonReturnMap(loader, className);
+            }
+        }
+    }
+
+    /**
+     * the check used before ClassHierarchyResolver, which loads the class and walks its supertypes
+     */
+    private static boolean loadAndCheck(ClassLoader loader, String className)
+    {
+        Class<?> candidate;
+        try {
+            candidate = loader.loadClass(className.replace('/', '.'));
+        } catch (Throwable t) {
+            // optional dependencies of some classes are not on the class path
+            return false;
+        }
+        return isNonReturnMap(candidate);
+    }
+
+    private static boolean isNonReturnMap(Class<?> candidate)
+    {
+        if (candidate.getName().equals(MapAdapterConstants.CLASS_NON_RETURN_MAP_EXTERNAL)) {
+            return true;
+        }
+        Class<?> interfaces[] = candidate.getInterfaces();
+        for (int i = 0; i < interfaces.length; i++) {
+            if (isNonReturnMap(interfaces[i])) {
+                return true;
+            }
+        }
+        Class<?> superclass = candidate.getSuperclass();
+        return (superclass != null && superclass != Object.class && isNonReturnMap(superclass));
+    }
+
+    private void transformAll(JokreTransformer transformer, ClassLoader loader, List<String> classNames,
+                              List<byte[]> classBytes, List<List<String>> classMethods)
+    {
+        int count = classNames.size();
+        for (int i = 0; i < count; i++) {
+            transformer.transform(loader, classNames.get(i), null, null, classBytes.get(i), classMethods.get(i));
+        }
+    }
+
+    private void loadCandidates(List<String> classNames, List<byte[]> classBytes, List<List<String>> classMethods)
+            throws IOException
+    {
+        URL url = TransformBenchmark.class.getClassLoader().getResource(MapAdapterConstants.CLASS_CACHE_SUPPORT + ".class");
+        JarFile jarFile = ((JarURLConnection)url.openConnection()).getJarFile();
+        Enumeration<JarEntry> entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            JarEntry entry = entries.nextElement();
+            String entryName = entry.getName();
+            if (!entryName.endsWith(".class")) {
+                continue;
+            }
+            byte[] bytes = readBytes(jarFile.getInputStream(entry));
+            List<String> methodNames = findPutCallers(bytes);
+            if (!methodNames.isEmpty()) {
+                classNames.add(entryName.substring(0, entryName.length() - ".class".length()));
+                classBytes.add(bytes);
+                classMethods.add(methodNames);
+            }
+        }
+    }
+
+    private List<String> loadClassNames() throws IOException
+    {
+        List<String> classNames = new ArrayList<String>();
+        URL url = TransformBenchmark.class.getClassLoader().getResource(MapAdapterConstants.CLASS_CACHE_SUPPORT + ".class");
+        JarFile jarFile = ((JarURLConnection)url.openConnection()).getJarFile();
+        Enumeration<JarEntry> entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            String entryName = entries.nextElement().getName();
+            if (entryName.endsWith(".class")) {
+                classNames.add(entryName.substring(0, entryName.length() - ".class".length()));
+            }
+        }
+        return classNames;
+    }
+
+    private List<String> findPutCallers(byte[] bytes)
+    {
+        final List<String> methodNames = new ArrayList<String>();
+        ClassReader reader = new ClassReader(bytes);
+        reader.accept(new EmptyVisitor() {
+            @Override
+            public MethodVisitor visitMethod(int access, final String name, String desc, String signature, String[] exceptions)
+            {
+                return new EmptyVisitor() {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String methodName, String methodDesc)
+                    {
+                        if (opcode == Opcodes.INVOKEINTERFACE &&
+                                owner.equals(MapAdapterConstants.CLASS_MAP) &&
+                                methodName.equals(MapAdapterConstants.PUT_METHOD_NAME) &&
+                                !methodNames.contains(name)) {
+                            methodNames.add(name);
+                        }
+                    }
+                };
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+
+        return methodNames;
+    }
+
+    private byte[] readBytes(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        try {
+            while ((read = stream.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            stream.close();
+        }
+        return out.toByteArray();
+    }
+}
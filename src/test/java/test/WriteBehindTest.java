@@ -0,0 +1,116 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2011, Red Hat and individual contributors
+* by the @authors tag.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package test;
+
+import org.infinispan.manager.DefaultCacheManager;
+import org.jboss.jokre.WriteBehindBuffer;
+import org.jboss.jokre.agent.Jokre;
+
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that write behind coalesces repeated fast path writes to a key into a single buffered entry
+ * and that a flush writes the last value through to the cache. n.b. this needs the Jokre agent to be
+ * installed with system property org.jboss.jokre.write.behind set to * and a write behind interval long
+ * enough that the flusher thread does not run during the test
+ */
+public class WriteBehindTest
+{
+    static Map<String, String> map = new DefaultCacheManager().getCache();
+
+    private static final Pattern STATS = Pattern.compile("writes (\\d+) flushed (\\d+) .* occupancy (\\d+)/\\d+ flushes (\\d+)");
+
+    public static void main(String args[]) throws Exception
+    {
+        new WriteBehindTest().runTest();
+    }
+
+    @Test
+    public void test() throws Exception
+    {
+        runTest();
+    }
+
+    public void runTest() throws Exception
+    {
+        // keep writing until the agent has transformed the put call site and writes are being buffered
+        long deadline = System.currentTimeMillis() + 30000;
+        int i = 0;
+        while (stats()[0] == 0) {
+            assertTrue("put call site was not switched to write behind", System.currentTimeMillis() < deadline);
+            doPut(map, "key", "v" + i++);
+            Thread.sleep(10);
+        }
+        WriteBehindBuffer.flushAll();
+
+        // repeated writes to one key occupy a single entry and are not visible until flushed
+        long[] before = stats();
+        assertEquals(0, before[2]);
+        for (i = 0; i < 1000; i++) {
+            doPut(map, "key", "w" + i);
+        }
+        long[] after = stats();
+        assertEquals(before[0] + 1000, after[0]);
+        assertEquals(before[1], after[1]);
+        assertEquals(1, after[2]);
+        assertFalse("w999".equals(map.get("key")));
+
+        // a flush writes only the last value
+        WriteBehindBuffer.flushAll();
+        after = stats();
+        assertEquals(before[1] + 1, after[1]);
+        assertEquals(0, after[2]);
+        assertEquals("w999", map.get("key"));
+
+        Jokre.stats();
+        System.out.println();
+    }
+
+    public static void doPut(Map<String, String> map, String key, String value)
+    {
+        map.put(key, value);
+    }
+
+    /**
+     * @return the writes, flushed entries, occupancy and flushes reported for the default cache or zeros
+     * if it has no write behind buffer yet
+     */
+    private static long[] stats()
+    {
+        long[] values = new long[4];
+        for (String description : WriteBehindBuffer.describe()) {
+            Matcher matcher = STATS.matcher(description);
+            if (description.startsWith("cache ___defaultcache ") && matcher.find()) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Long.parseLong(matcher.group(i + 1));
+                }
+            }
+        }
+        return values;
+    }
+}